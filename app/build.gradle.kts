@@ -29,6 +29,10 @@ android {
             )
         }
     }
+    testOptions {
+        // Host unit tests exercise the storage classes, which log through android.util.Log
+        unitTests.isReturnDefaultValues = true
+    }
     compileOptions {
         sourceCompatibility = JavaVersion.VERSION_17
         targetCompatibility = JavaVersion.VERSION_17
@@ -43,6 +47,8 @@ dependencies {
     implementation(libs.constraintlayout)
     implementation(libs.nanohttpd)
     testImplementation(libs.junit)
+    // Real org.json for the JVM tests; android.jar only has stubs
+    testImplementation(libs.json)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -3,218 +3,1503 @@ package com.hiro.localbackend;
 import android.content.Context;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 import fi.iki.elonen.NanoHTTPD;
 
 public class AndroidBackendServer extends NanoHTTPD {
 
     private static final String TAG = "AndroidBackendServer";
+    private static final String BUSY_BODY = "{\"error\":\"Server busy\"}";
+    private static final byte[] SERVICE_UNAVAILABLE_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: " + BUSY_BODY.length() + "\r\n"
+            + "Retry-After: 1\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + BUSY_BODY).getBytes(StandardCharsets.US_ASCII);
+
+    // CORS headers are the same for every response
+    private static final String CORS_ALLOW_ORIGIN = "*";
+    private static final String CORS_ALLOW_METHODS = "GET, POST, PUT, DELETE, OPTIONS";
+    private static final String CORS_ALLOW_HEADERS = "Content-Type, If-Match, If-None-Match, If-Modified-Since";
+    // Lets browser clients read the paging headers
+    private static final String CORS_EXPOSE_HEADERS = "Link, X-Next-Cursor, ETag, Last-Modified, Retry-After";
+
+    // Page size when only a cursor is given, and the largest page a client may ask for
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // RFC 7231 date format for Last-Modified; SimpleDateFormat is not thread-safe
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    });
+
+    // Largest batch or import accepted in one request
+    private static final int MAX_BATCH_OPERATIONS = 100_000;
+    // Largest request bodies, checked against Content-Length before any of the body is read.
+    // Single items and batches are read into memory whole; imports are streamed, so only
+    // the overall limit applies to them.
+    static final long MAX_ITEM_BODY_BYTES = 64 * 1024;
+    private static final long MAX_BATCH_BODY_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_REQUEST_BODY_BYTES = 64 * 1024 * 1024;
+
+    // Keys of batch operations, matched without decoding them: ItemCollection.operationKeys
+    // puts op and id first and the collection's fields after them
+    private static final int KEY_OP = 0;
+    private static final int KEY_ID = 1;
+    private static final int KEY_FIRST_FIELD = 2;
+
+    // Change feed: changes per response, how long a poll may wait for one, and how often an
+    // idle event stream sends a keepalive
+    private static final int MAX_CHANGES_PER_RESPONSE = 500;
+    private static final int DEFAULT_CHANGES_WAIT_SECONDS = 25;
+    private static final int MAX_CHANGES_WAIT_SECONDS = 60;
+    private static final long CHANGE_STREAM_HEARTBEAT_MS = 15_000;
+
+    // Unread request body a connection will skip to reach the next request; past this it
+    // is cheaper to close the connection than to read and discard the rest
+    private static final long MAX_DRAIN_BYTES = 64 * 1024;
+    // How long stop() waits for requests in progress before closing the stores
+    private static final long STOP_TIMEOUT_MS = 5000;
+    // If-Match named no version the item is at; never a real version or ANY_VERSION
+    private static final long NO_MATCHING_VERSION = -2;
+
+    // The connection and request body of the request this worker is serving
+    private static final ThreadLocal<ConnectionHandler> CURRENT_CONNECTION = new ThreadLocal<>();
+    private static final ThreadLocal<BoundedInputStream> REQUEST_BODY = new ThreadLocal<>();
+
     private final Context context;
+    private final ServerConfig config;
+    private final RequestExecutor requestExecutor;
+    private final Router router;
+    private final ResponseCache responseCache;
+    // Versions and change sequence numbers restart with the store; this tells runs apart
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    // Long-polls and event streams hold a worker each, so only some workers may wait
+    private final Semaphore changeWaiters;
+    // Per-client and overall admission; null when turned off in the config
+    private final RateLimiter rateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final Metrics metrics = new Metrics();
+    // Time spent decoding request bodies and encoding response bodies outside the store
+    private final LatencyHistogram parseTimer = new LatencyHistogram();
+    private final LatencyHistogram serializeTimer = new LatencyHistogram();
+    private final LatencyHistogram compressTimer = new LatencyHistogram();
 
-    // LocalDatabase instance for data storage
-    private LocalDatabase localDatabase;
+    // Collections served under /api/{name}, each with a store of its own
+    private final CollectionRegistry collections;
 
     public AndroidBackendServer(Context context, int port) {
+        this(context, port, new ServerConfig());
+    }
+
+    public AndroidBackendServer(Context context, int port, ServerConfig config) {
         super(port);
         this.context = context;
-        this.localDatabase = new LocalDatabase(context);
+        this.config = config;
+        this.responseCache = new ResponseCache(config.responseCacheBytes, config.responseCacheMaxEntryBytes);
+        this.collections = new CollectionRegistry(context, config);
+        for (CollectionSchema schema : config.collections) {
+            collections.register(schema);
+        }
+
+        // Replace NanoHTTPD's thread-per-connection runner
+        requestExecutor = RequestExecutor.create(config, handler -> {
+            if (handler instanceof ConnectionHandler) {
+                ((ConnectionHandler) handler).reject();
+            } else {
+                handler.close();
+            }
+        });
+        setAsyncRunner(requestExecutor);
+        setServerSocketFactory(this::createServerSocket);
+        changeWaiters = new Semaphore(Math.max(1, config.maxWorkers / 2));
+        rateLimiter = config.rateLimitPerSecond > 0
+                ? new RateLimiter(config.rateLimitPerSecond, config.rateLimitBurst, config.rateLimitClients)
+                : null;
+        concurrencyLimiter = config.maxConcurrentRequests > 0
+                ? new ConcurrencyLimiter(config.maxConcurrentRequests, config.admissionTimeoutMs)
+                : null;
+        router = buildRouter();
+        registerMetrics();
 
         initializeData();
     }
 
+    // Everything /metrics reports besides the per-route request stats
+    private void registerMetrics() {
+        for (ItemCollection collection : collections.all()) {
+            // The items collection keeps the series names it had as the only store
+            String prefix = collection.name().equals(CollectionSchema.ITEMS) ? "" : collection.name() + "_";
+            LocalDatabase store = collection.store();
+            LocalDatabase.Timings timings = store.timings();
+            metrics.addTimer("store", prefix + "get_data", timings.getData);
+            metrics.addTimer("store", prefix + "save_data", timings.saveData);
+            metrics.addTimer("store", prefix + "write", timings.write);
+            metrics.addTimer("store", prefix + "batch", timings.batch);
+            metrics.addTimer("store", prefix + "compaction", timings.compaction);
+        }
+        metrics.addTimer("json", "parse", parseTimer);
+        metrics.addTimer("json", "serialize", serializeTimer);
+        metrics.addTimer("response", "compress", compressTimer);
+
+        for (ItemCollection collection : collections.all()) {
+            String prefix = collection.name().equals(CollectionSchema.ITEMS) ? "" : collection.name() + "_";
+            LocalDatabase store = collection.store();
+            metrics.addGauge("store_" + prefix + "items", "Items in the " + collection.name() + " store.",
+                    store::size);
+            metrics.addGauge("store_" + prefix + "change_seq",
+                    "Sequence number of the latest change to " + collection.name() + ".",
+                    () -> store.changes().latest());
+            DataCache cache = store.cache();
+            if (cache != null) {
+                metrics.addCounter("store_" + prefix + "cache_hits_total",
+                        "Point reads of " + collection.name() + " served from the item cache.", cache::hits);
+                metrics.addCounter("store_" + prefix + "cache_misses_total",
+                        "Point reads of " + collection.name() + " decoded from the snapshot.", cache::misses);
+                metrics.addCounter("store_" + prefix + "cache_evictions_total",
+                        "Items of " + collection.name() + " evicted from the item cache.", cache::evictions);
+                metrics.addGauge("store_" + prefix + "cache_bytes",
+                        "Estimated heap held by the " + collection.name() + " item cache.", cache::bytes);
+            }
+        }
+        metrics.addGauge("executor_active_workers", "Workers serving a connection.",
+                requestExecutor::getActiveWorkers);
+        metrics.addGauge("executor_queue_depth", "Connections waiting for a worker.",
+                requestExecutor::getQueueDepth);
+        metrics.addCounter("executor_rejected_total", "Connections turned away with 503.",
+                requestExecutor::getRejectedCount);
+        metrics.addGauge("connections_open", "Client connections currently open.",
+                requestExecutor::getOpenConnections);
+        if (rateLimiter != null) {
+            metrics.addCounter("rate_limited_total", "Requests turned away with 429.", rateLimiter::limited);
+            metrics.addGauge("rate_limit_clients", "Client addresses with a rate limit bucket.",
+                    rateLimiter::clients);
+        }
+        if (concurrencyLimiter != null) {
+            metrics.addGauge("requests_in_flight", "Requests being handled.", concurrencyLimiter::inFlight);
+            metrics.addCounter("requests_shed_total", "Requests shed with 503 at the concurrency limit.",
+                    concurrencyLimiter::shed);
+        }
+        metrics.addCounter("response_cache_hits_total", "Responses served from the cache.",
+                responseCache::hits);
+        metrics.addCounter("response_cache_misses_total", "Cache lookups that had to encode.",
+                responseCache::misses);
+        metrics.addGauge("response_cache_bytes", "Bytes held by the response cache.",
+                responseCache::bytes);
+    }
+
     private void initializeData() {
-        // Initialize our database with sample data if it's empty
-        List<Data> items = localDatabase.getData();
-        if (items.isEmpty()) {
-            localDatabase.addData("Item 1", "First sample item");
-            localDatabase.addData("Item 2", "Second sample item");
+        // Initialize the items collection with sample data if it's empty and still has
+        // the fields the samples are made of
+        ItemCollection items = collections.get(CollectionSchema.ITEMS);
+        if (items != null && items.schema().hasItemsFields() && items.store().isEmpty()) {
+            items.store().addData("Item 1", "First sample item");
+            items.store().addData("Item 2", "Second sample item");
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Let long-polls and event streams return before their workers are interrupted
+        collections.closeChangeFeeds();
+        super.stop();
+        requestExecutor.shutdown();
+        // Requests still in a handler get to finish their writes before the stores close
+        if (!requestExecutor.awaitTermination(STOP_TIMEOUT_MS)) {
+            Log.w(TAG, "Workers still running at stop");
+        }
+        // Make sure every acknowledged write is on disk before we go away
+        collections.close();
+    }
+
+    // Returns once every write acknowledged so far is on disk, whatever the sync policy
+    public void flush() {
+        collections.flush();
+    }
+
+    // Connections waiting for a worker thread
+    public int getQueueDepth() {
+        return requestExecutor.getQueueDepth();
+    }
+
+    // Worker threads currently serving a connection
+    public int getActiveWorkers() {
+        return requestExecutor.getActiveWorkers();
+    }
+
+    // Per-route and store latency summary, for the status screen
+    public String getMetricsJson() {
+        return metrics.json();
+    }
+
+    // Compression is negotiated per response in encodedResponse() and friends; NanoHTTPD's
+    // own gzip builds a new GZIPOutputStream for every body, however small
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+        return false;
+    }
+
+    // The receive buffer has to be sized before bind for the TCP window to use it
+    private ServerSocket createServerSocket() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        if (config.receiveBufferBytes > 0) {
+            serverSocket.setReceiveBufferSize(config.receiveBufferBytes);
         }
+        return serverSocket;
+    }
+
+    // Runs on the accept thread after NanoHTTPD's own setup, so these options win
+    @Override
+    protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+        try {
+            socket.setTcpNoDelay(config.tcpNoDelay);
+            // NanoHTTPD keeps the connection open between requests; a blocked read of the
+            // next request line times out after this long and closes it
+            socket.setSoTimeout(config.idleTimeoutMs);
+            if (config.sendBufferBytes > 0) {
+                socket.setSendBufferSize(config.sendBufferBytes);
+            }
+        } catch (SocketException e) {
+            Log.w(TAG, "Could not set socket options", e);
+        }
+        return new ConnectionHandler(inputStream, socket);
+    }
+
+    // ClientHandler that keeps its socket so an overloaded executor can answer 503 directly,
+    // and counts the requests served on its connection
+    private class ConnectionHandler extends ClientHandler {
+        private final Socket socket;
+        // Only touched by the worker running this connection
+        private int requests;
+
+        ConnectionHandler(InputStream inputStream, Socket socket) {
+            super(inputStream, socket);
+            this.socket = socket;
+        }
+
+        // NanoHTTPD serves every request of a keep-alive connection inside run(), one at a
+        // time; pipelined requests wait in its input buffer
+        @Override
+        public void run() {
+            CURRENT_CONNECTION.set(this);
+            try {
+                super.run();
+            } finally {
+                CURRENT_CONNECTION.remove();
+            }
+        }
+
+        // Runs on the accept thread, so keep it short: one write, then close
+        void reject() {
+            try {
+                socket.setSoTimeout(1000);
+                OutputStream out = socket.getOutputStream();
+                out.write(SERVICE_UNAVAILABLE_RESPONSE);
+                out.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Could not send 503 to rejected client", e);
+            } finally {
+                close();
+            }
+        }
+    }
+
+    // All API routes; every registered collection gets the same set under /api/{name},
+    // mounted as literal paths so matching never has to look the collection up
+    private Router buildRouter() {
+        Router router = new Router()
+                .get("/metrics", (session, match) -> getMetrics(session));
+        for (ItemCollection collection : collections.all()) {
+            String base = "/api/" + collection.name();
+            router.get(base, (session, match) -> getItems(collection, session))
+                    .get(base + "/search", (session, match) -> searchItems(collection, session))
+                    .get(base + "/changes", (session, match) -> getChanges(collection, session))
+                    .post(base + "/batch", (session, match) -> batchItems(collection, session))
+                    .post(base + "/import", (session, match) -> importItems(collection, session))
+                    .post(base, (session, match) -> createItem(collection, session))
+                    .get(base + "/{id:int}",
+                            (session, match) -> getItem(collection, session, match.intParam("id")))
+                    .put(base + "/{id:int}",
+                            (session, match) -> updateItem(collection, match.intParam("id"), session))
+                    .delete(base + "/{id:int}",
+                            (session, match) -> deleteItem(collection, match.intParam("id"), session));
+        }
+        return router;
     }
 
     @Override
     public Response serve(IHTTPSession session) {
+        long start = System.nanoTime();
 
         String uri = session.getUri();
         Method method = session.getMethod();
 
         Log.d(TAG, "Request received: " + method + " " + uri);
 
+        Response response;
+        String route;
+        BoundedInputStream body = openRequestBody(session);
+        REQUEST_BODY.set(body);
+        try {
+            // Handle OPTIONS requests (preflight CORS requests)
+            if (Method.OPTIONS.equals(method)) {
+                response = newFixedLengthResponse(Response.Status.OK, "application/json", "");
+                route = "*";
+            } else {
+                Router.Match match = router.match(method, uri);
+                // Label by pattern so ids in the path do not each become a series
+                route = match.pattern() != null ? match.pattern() : "unmatched";
+                response = rateLimited(session);
+                if (response == null && body != null && body.remaining() > MAX_REQUEST_BODY_BYTES) {
+                    response = payloadTooLarge(MAX_REQUEST_BODY_BYTES);
+                }
+                if (response == null) {
+                    response = admitted(session, match);
+                }
+            }
+        } finally {
+            REQUEST_BODY.remove();
+        }
+        finishRequest(session, response, body);
+        meter(response, metrics.route(method, route), session, start);
         // Handle CORS (Cross-Origin Resource Sharing)
-        Map<String, String> headers = new HashMap<>();
-        headers.put("Access-Control-Allow-Origin", "*");
-        headers.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        headers.put("Access-Control-Allow-Headers", "Content-Type");
+        response.addHeader("Access-Control-Allow-Origin", CORS_ALLOW_ORIGIN);
+        response.addHeader("Access-Control-Allow-Methods", CORS_ALLOW_METHODS);
+        response.addHeader("Access-Control-Allow-Headers", CORS_ALLOW_HEADERS);
+        response.addHeader("Access-Control-Expose-Headers", CORS_EXPOSE_HEADERS);
+        // Bodies depend on Accept (JSON or CBOR) and Accept-Encoding, so caches must key on both
+        response.addHeader("Vary", "Accept, Accept-Encoding");
+        return response;
+    }
 
-        // Handle OPTIONS requests (preflight CORS requests)
-        if (Method.OPTIONS.equals(method)) {
-            return newFixedLengthResponse(Response.Status.OK, "application/json", "");
+    // 429 if the client has used up its rate, else null
+    private Response rateLimited(IHTTPSession session) {
+        if (rateLimiter == null) {
+            return null;
+        }
+        String client = session.getRemoteIpAddress();
+        long waitNanos = rateLimiter.acquire(client != null ? client : "", System.nanoTime());
+        if (waitNanos == 0) {
+            return null;
         }
+        Response response = newFixedLengthResponse(Response.Status.TOO_MANY_REQUESTS, "application/json",
+                "{\"error\":\"Too many requests\"}");
+        // Whole seconds, rounded up so a client that waits that long finds a token
+        long second = TimeUnit.SECONDS.toNanos(1);
+        response.addHeader("Retry-After", Long.toString((waitNanos + second - 1) / second));
+        return response;
+    }
 
+    // Dispatch within the concurrency limit, or 503 once no slot comes free in time
+    private Response admitted(IHTTPSession session, Router.Match match) {
+        if (concurrencyLimiter == null) {
+            return dispatch(session, match);
+        }
+        if (!concurrencyLimiter.acquire()) {
+            Response response = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                    "application/json", BUSY_BODY);
+            response.addHeader("Retry-After", "1");
+            return response;
+        }
         try {
-            // API Routes
-            if (uri.equals("/api/items") && Method.GET.equals(method)) {
-                return getItems(headers);
-            } else if (uri.startsWith("/api/items/") && Method.GET.equals(method)) {
-                int id = Integer.parseInt(uri.substring("/api/items/".length()));
-                return getItem(id, headers);
-            } else if (uri.equals("/api/items") && Method.POST.equals(method)) {
-                Log.d(TAG, "serve: POST METHOD");
-                return createItem(session, headers);
-            } else if (uri.startsWith("/api/items/") && Method.PUT.equals(method)) {
-                int id = Integer.parseInt(uri.substring("/api/items/".length()));
-                return updateItem(id, session, headers);
-            } else if (uri.startsWith("/api/items/") && Method.DELETE.equals(method)) {
-                int id = Integer.parseInt(uri.substring("/api/items/".length()));
-                return deleteItem(id, headers);
-            }
-
-            // Default response for unhandled routes
-            return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
-                    "{\"error\":\"Not Found\"}");
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling request", e);
-            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
-                    "{\"error\":\"" + e.getMessage() + "\"}");
+            return dispatch(session, match);
+        } finally {
+            concurrencyLimiter.release();
+        }
+    }
+
+    private Response dispatch(IHTTPSession session, Router.Match match) {
+        switch (match.result()) {
+            case FOUND:
+                try {
+                    return match.handler().handle(session, match);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error handling request", e);
+                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
+                            "{\"error\":\"" + e.getMessage() + "\"}");
+                }
+            case METHOD_NOT_ALLOWED:
+                Response response = newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED,
+                        "application/json", "{\"error\":\"Method Not Allowed\"}");
+                response.addHeader("Allow", match.allowedMethods());
+                return response;
+            default:
+                // Default response for unhandled routes
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
+                        "{\"error\":\"Not Found\"}");
+        }
+    }
+
+    // Keep-alive bookkeeping once a response is ready. The next request on the connection
+    // starts right after this one's body, so whatever the handler left unread is skipped,
+    // or the connection is closed when that would mean reading too much.
+    private void finishRequest(IHTTPSession session, Response response, BoundedInputStream body) {
+        boolean close = "close".equalsIgnoreCase(session.getHeaders().get("connection"));
+        if (body != null) {
+            if (body.remaining() > MAX_DRAIN_BYTES) {
+                close = true;
+            } else {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    close = true;
+                }
+            }
+        }
+        ConnectionHandler connection = CURRENT_CONNECTION.get();
+        if (connection != null) {
+            connection.requests++;
+            int limit = config.maxRequestsPerConnection;
+            if (limit > 0 && connection.requests >= limit) {
+                close = true;
+            }
+            // Connections waiting for a worker get it sooner if this one is not kept
+            if (requestExecutor.getQueueDepth() > 0) {
+                close = true;
+            }
+            if (!close) {
+                String keepAlive = "timeout=" + Math.max(1, config.idleTimeoutMs / 1000);
+                if (limit > 0) {
+                    keepAlive += ", max=" + (limit - connection.requests);
+                }
+                response.addHeader("Keep-Alive", keepAlive);
+            }
+        }
+        if (close) {
+            response.closeConnection(true);
         }
     }
 
-    // GET /api/items - Get all items
-    private Response getItems(Map<String, String> headers) {
+    // The request body limited to its Content-Length, or null if there is none
+    private static BoundedInputStream openRequestBody(IHTTPSession session) {
+        String contentLength = session.getHeaders().get("content-length");
+        if (contentLength == null) {
+            return null;
+        }
         try {
-            List<Data> items = localDatabase.getData();
-            JSONArray jsonArray = new JSONArray();
+            long length = Long.parseLong(contentLength.trim());
+            return length > 0 ? new BoundedInputStream(session.getInputStream(), length) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-            for (Data item : items) {
-                jsonArray.put(new JSONObject(item.toJsonString()));
+    // Record the request once NanoHTTPD has sent the body and closes it
+    private static void meter(Response response, Metrics.RouteStats stats, IHTTPSession session,
+                              long start) {
+        int status = response.getStatus().getRequestStatus();
+        long bytesIn = 0;
+        String contentLength = session.getHeaders().get("content-length");
+        if (contentLength != null) {
+            try {
+                bytesIn = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ignored) {
+                // Counted as zero; the handler has already rejected it
             }
+        }
+        InputStream body = response.getData();
+        if (body == null) {
+            stats.record(status, bytesIn, 0, System.nanoTime() - start);
+        } else {
+            response.setData(new MeteredInputStream(body, stats, status, bytesIn, start));
+        }
+    }
 
-            return newFixedLengthResponse(Response.Status.OK, "application/json", jsonArray.toString());
-        } catch (JSONException e) {
-            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
-                    "{\"error\":\"" + e.getMessage() + "\"}");
+    // GET /metrics - Prometheus text format
+    private Response getMetrics(IHTTPSession session) {
+        byte[] body = metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+        Response response = encodedResponse(session, Response.Status.OK,
+                "text/plain; version=0.0.4; charset=utf-8", body, body.length);
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    // GET /api/{collection} - Get items in id order, streamed from the store as a chunked JSON
+    // array. Optional: <field>=<exact value> for any declared field, and prefix=<start> and
+    // from=<lowest>&to=<above highest> on the first field (text, compared as Java strings),
+    // filtered through the field indexes (a scan for fields without one),
+    // limit=<n> and after=<id> for keyset paging, fields=id,name,... for projection.
+    private Response getItems(ItemCollection collection, IHTTPSession session) {
+        LocalDatabase store = collection.store();
+        CollectionSchema schema = collection.schema();
+        Map<String, List<String>> parameters = session.getParameters();
+        Predicate<Data> filter = null;
+        // Candidates from the first filter with an index, else every item
+        IntFunction<Iterator<Data>> candidates = null;
+        for (int i = 0; i < schema.fields.size(); i++) {
+            CollectionSchema.Field field = schema.fields.get(i);
+            String parameter = firstParameter(parameters, field.name);
+            if (parameter == null) {
+                continue;
+            }
+            String value;
+            try {
+                value = field.parse(parameter);
+            } catch (IllegalArgumentException e) {
+                return badRequest(field.name + " is not a valid " + field.type.name().toLowerCase(Locale.ROOT));
+            }
+            int position = i;
+            Predicate<Data> matches = data -> value.equals(data.value(position));
+            filter = filter == null ? matches : filter.and(matches);
+            if (candidates == null && field.indexed) {
+                SecondaryIndex.Hash index = store.index(field.name);
+                candidates = after -> store.iterator((afterId, max) -> index.get(value, afterId, max), after);
+            }
+        }
+        String prefix = firstParameter(parameters, "prefix");
+        String from = firstParameter(parameters, "from");
+        String to = firstParameter(parameters, "to");
+        if (prefix != null || from != null || to != null) {
+            CollectionSchema.Field field = schema.fields.get(0);
+            if (field.type != CollectionSchema.Field.Type.STRING) {
+                return badRequest("prefix, from and to need a text first field, and " + field.name + " is not");
+            }
+            // The tightest bounds of from, to and the prefix's own range
+            String lower = from;
+            String upper = to;
+            if (prefix != null && !prefix.isEmpty()) {
+                String prefixEnd = SecondaryIndex.Sorted.prefixEnd(prefix);
+                lower = lower == null || prefix.compareTo(lower) > 0 ? prefix : lower;
+                upper = upper == null || prefixEnd.compareTo(upper) < 0 ? prefixEnd : upper;
+            }
+            String lowest = lower;
+            String highest = upper;
+            Predicate<Data> matches = data -> {
+                String value = data.value(0);
+                return value != null && (prefix == null || value.startsWith(prefix))
+                        && (lowest == null || value.compareTo(lowest) >= 0)
+                        && (highest == null || value.compareTo(highest) < 0);
+            };
+            filter = filter == null ? matches : filter.and(matches);
+            if (candidates == null && field.indexed) {
+                SecondaryIndex.Sorted index = store.index(field.name + ItemCollection.SORTED_SUFFIX);
+                candidates = after -> store.iterator(
+                        (afterId, max) -> index.range(lowest, highest, afterId, max), after);
+            }
+        }
+        if (filter == null) {
+            return listItems(collection, session, store::iterator);
+        }
+        IntFunction<Iterator<Data>> source = candidates != null ? candidates : store::iterator;
+        Predicate<Data> predicate = filter;
+        return listItems(collection, session, after -> new FilterIterator(source.apply(after), predicate));
+    }
+
+    // GET /api/{collection}/search?q=<words> - Items whose first full-text field, or the one
+    // named by field=<name>, contains every word; only for collections with such a field
+    private Response searchItems(ItemCollection collection, IHTTPSession session) {
+        CollectionSchema schema = collection.schema();
+        String fieldName = firstParameter(session.getParameters(), "field");
+        CollectionSchema.Field field = null;
+        for (CollectionSchema.Field candidate : schema.fields) {
+            if (candidate.fullText && (fieldName == null || candidate.name.equals(fieldName))) {
+                field = candidate;
+                break;
+            }
+        }
+        if (field == null) {
+            return badRequest(fieldName == null ? "Search is not enabled for " + collection.name()
+                    : fieldName + " is not a full-text field of " + collection.name());
+        }
+        String query = firstParameter(session.getParameters(), "q");
+        if (query == null || SecondaryIndex.FullText.tokenize(query).isEmpty()) {
+            return badRequest("q is required");
         }
+        LocalDatabase store = collection.store();
+        SecondaryIndex.FullText index = store.index(field.name + ItemCollection.TEXT_SUFFIX);
+        return listItems(collection, session, after -> new FilterIterator(
+                store.iterator(index.search(query), after),
+                data -> index.matches(data, query)));
     }
 
-    // GET /api/items/{id} - Get item by ID
-    private Response getItem(int id, Map<String, String> headers) {
-        List<Data> items = localDatabase.getData();
+    // GET /api/{collection}/changes?since=<seq> - Changes after seq, oldest first, for sync.
+    // If there are none yet, waits up to wait=<seconds> for one. Without since, starts from
+    // now. With Accept: text/event-stream the changes are streamed as Server-Sent Events.
+    // 410 means the cursor is too old (or from an earlier run, given epoch=): reload the list.
+    private Response getChanges(ItemCollection collection, IHTTPSession session) throws InterruptedException {
+        Map<String, List<String>> parameters = session.getParameters();
+        ChangeFeed feed = collection.store().changes();
+        String sinceParameter = firstParameter(parameters, "since");
+        if (sinceParameter == null) {
+            // Set by a reconnecting EventSource
+            sinceParameter = session.getHeaders().get("last-event-id");
+        }
+        String waitParameter = firstParameter(parameters, "wait");
+        String epochParameter = firstParameter(parameters, "epoch");
 
-        for (Data item : items) {
-            if (item.id() == id) {
-                return newFixedLengthResponse(Response.Status.OK, "application/json", item.toJsonString());
+        long since;
+        int wait;
+        try {
+            since = sinceParameter != null ? Long.parseLong(sinceParameter.trim()) : feed.latest();
+            wait = waitParameter != null ? Integer.parseInt(waitParameter) : DEFAULT_CHANGES_WAIT_SECONDS;
+        } catch (NumberFormatException e) {
+            return badRequest("since and wait must be integers");
+        }
+        if (wait < 0 || wait > MAX_CHANGES_WAIT_SECONDS) {
+            return badRequest("wait must be between 0 and " + MAX_CHANGES_WAIT_SECONDS);
+        }
+        if (epochParameter != null && !epochParameter.equals(epoch)) {
+            return changesGone(feed);
+        }
+
+        String accept = session.getHeaders().get("accept");
+        if (accept != null && accept.contains("text/event-stream")) {
+            return changeStream(feed, since);
+        }
+
+        List<ChangeFeed.Change> changes = feed.since(since, MAX_CHANGES_PER_RESPONSE);
+        // With every waiting slot taken, answer right away rather than tie up the pool
+        if (changes != null && changes.isEmpty() && wait > 0 && changeWaiters.tryAcquire()) {
+            // A waiting poll does no work, so its concurrency slot is free for others meanwhile
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release();
+            }
+            try {
+                changes = feed.await(since, MAX_CHANGES_PER_RESPONSE, wait * 1000L);
+            } finally {
+                changeWaiters.release();
+                if (concurrencyLimiter != null) {
+                    concurrencyLimiter.reacquire();
+                }
             }
         }
+        if (changes == null) {
+            return changesGone(feed);
+        }
 
-        return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
-                "{\"error\":\"Item not found\"}");
+        long next = changes.isEmpty() ? since : changes.get(changes.size() - 1).seq();
+        long start = System.nanoTime();
+        JsonBuffer json = new JsonBuffer(256 + changes.size() * 128);
+        json.writeAscii("{\"epoch\":").writeString(epoch)
+                .writeAscii(",\"latest\":").writeLong(feed.latest())
+                .writeAscii(",\"next\":").writeLong(next)
+                .writeAscii(",\"changes\":[");
+        for (int i = 0; i < changes.size(); i++) {
+            if (i > 0) {
+                json.writeByte(',');
+            }
+            json.writeChange(changes.get(i));
+        }
+        json.writeAscii("]}");
+        serializeTimer.recordSince(start);
+        Response response = encodedResponse(session, Response.Status.OK, "application/json",
+                json.bytes(), json.length());
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    // Server-Sent Events from since onwards; the stream gives its waiting slot back on close
+    private Response changeStream(ChangeFeed feed, long since) {
+        if (!changeWaiters.tryAcquire()) {
+            Response response = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                    "application/json", BUSY_BODY);
+            response.addHeader("Retry-After", "5");
+            return response;
+        }
+        Response response = newChunkedResponse(Response.Status.OK, "text/event-stream",
+                new ChangeEventStream(feed, since, CHANGE_STREAM_HEARTBEAT_MS, changeWaiters::release));
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    private Response changesGone(ChangeFeed feed) {
+        return newFixedLengthResponse(Response.Status.GONE, "application/json",
+                "{\"error\":\"since is outside the change window; reload the items\",\"epoch\":\""
+                        + epoch + "\",\"latest\":" + feed.latest() + "}");
+    }
+
+    // Write items from the source as a JSON array, applying the limit/after/fields parameters.
+    // The source is called with the cursor and must return items in ascending id order.
+    private Response listItems(ItemCollection collection, IHTTPSession session,
+                               IntFunction<Iterator<Data>> source) {
+        LocalDatabase store = collection.store();
+        Map<String, List<String>> parameters = session.getParameters();
+        String limitParameter = firstParameter(parameters, "limit");
+        String afterParameter = firstParameter(parameters, "after");
+        String fieldsParameter = firstParameter(parameters, "fields");
+
+        int fields = JsonBuffer.ALL_FIELDS;
+        if (fieldsParameter != null) {
+            fields = JsonBuffer.parseFields(collection.schema(), fieldsParameter);
+            if (fields <= 0) {
+                return badRequest("Unknown field in fields");
+            }
+        }
+
+        int limit;
+        int after;
+        try {
+            limit = limitParameter != null ? Integer.parseInt(limitParameter) : DEFAULT_PAGE_SIZE;
+            after = afterParameter != null ? Integer.parseInt(afterParameter) : Integer.MIN_VALUE;
+        } catch (NumberFormatException e) {
+            return badRequest("limit and after must be integers");
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return badRequest("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        // Any write bumps the store revision, so it validates every list view at once
+        Codec codec = Codec.forAccept(session.getHeaders().get("accept"));
+        Revision revision = store.revision();
+        String etag = etag(revision, codec);
+        if (notModified(session, etag, revision)) {
+            return notModifiedResponse(etag, revision);
+        }
+        String key = codec.token() + ' ' + session.getUri() + '?' + session.getQueryParameterString();
+        ResponseCache.Entry cached = responseCache.get(key, revision.version());
+        if (cached != null) {
+            return cachedResponse(session, codec, cached, etag, revision);
+        }
+
+        // Seek straight to the cursor; a page costs O(log n + limit)
+        Iterator<Data> items = source.apply(after);
+        String[] headers = {};
+        boolean paged = limitParameter != null || afterParameter != null;
+        if (paged) {
+            List<Data> page = new ArrayList<>(Math.min(limit, 64));
+            while (page.size() < limit && items.hasNext()) {
+                page.add(items.next());
+            }
+            if (items.hasNext()) {
+                int nextCursor = page.get(page.size() - 1).id();
+                headers = new String[]{
+                        "Link", "<" + nextPageUri(session, limit, nextCursor) + ">; rel=\"next\"",
+                        "X-Next-Cursor", Integer.toString(nextCursor)};
+            }
+            items = page.iterator();
+        }
+
+        // Pages are bounded by MAX_PAGE_SIZE, so they are always written out whole
+        long start = System.nanoTime();
+        Codec.Output out = codec.newOutput(4096);
+        if (!out.writeArray(items, fields, paged ? Integer.MAX_VALUE : responseCache.maxEntryBytes())) {
+            // Too big to cache; stream the full list from a fresh scan instead
+            InputStream body = codec.stream(source.apply(after), fields);
+            Compression.Encoding encoding = Compression.negotiate(session.getHeaders().get("accept-encoding"));
+            if (encoding != null) {
+                body = Compression.compressing(encoding, body);
+            }
+            Response response = newChunkedResponse(Response.Status.OK, codec.mimeType(), body);
+            if (encoding != null) {
+                response.addHeader("Content-Encoding", encoding.token);
+            }
+            addValidators(response, encoding != null ? weak(etag) : etag, revision);
+            return response;
+        }
+        serializeTimer.recordSince(start);
+        ResponseCache.Entry entry = new ResponseCache.Entry(revision.version(), out.bytes(),
+                out.length(), headers);
+        responseCache.put(key, entry);
+        return cachedResponse(session, codec, entry, etag, revision);
+    }
+
+    // The request URI with the same filters, and limit/after moved to the next page
+    private static String nextPageUri(IHTTPSession session, int limit, int after) {
+        StringBuilder uri = new StringBuilder(session.getUri()).append("?limit=").append(limit)
+                .append("&after=").append(after);
+        for (Map.Entry<String, List<String>> parameter : session.getParameters().entrySet()) {
+            String key = parameter.getKey();
+            if (key.equals("limit") || key.equals("after")) {
+                continue;
+            }
+            for (String value : parameter.getValue()) {
+                try {
+                    uri.append('&').append(URLEncoder.encode(key, "UTF-8"))
+                            .append('=').append(URLEncoder.encode(value, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return uri.toString();
+    }
+
+    // Drops index hits that no longer match because the item changed after the lookup
+    private static final class FilterIterator implements Iterator<Data> {
+        private final Iterator<Data> source;
+        private final Predicate<Data> predicate;
+        private Data next;
+
+        FilterIterator(Iterator<Data> source, Predicate<Data> predicate) {
+            this.source = source;
+            this.predicate = predicate;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Data next() {
+            Data data = next;
+            if (data == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return data;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && source.hasNext()) {
+                Data data = source.next();
+                if (predicate.test(data)) {
+                    next = data;
+                }
+            }
+        }
+    }
+
+    private static String firstParameter(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    // Messages may come from a parser and quote the input, so they are escaped
+    private Response badRequest(String message) {
+        JsonBuffer json = new JsonBuffer(16 + message.length())
+                .writeAscii("{\"error\":").writeString(message).writeByte('}');
+        return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
+                new ByteArrayInputStream(json.bytes(), 0, json.length()), json.length());
+    }
+
+    // POST /api/{collection}/batch - Apply a JSON array of operations in one transaction:
+    // {"op":"create",<fields>}, {"op":"update","id":..,<fields>}, {"op":"delete","id":..}
+    private Response batchItems(ItemCollection collection, IHTTPSession session) throws IOException {
+        BoundedInputStream stream = requestBody(session);
+        if (stream == null) {
+            return lengthRequired();
+        }
+        if (stream.remaining() > MAX_BATCH_BODY_BYTES) {
+            return payloadTooLarge(MAX_BATCH_BODY_BYTES);
+        }
+        byte[] body = stream.readRemaining();
+        long start = System.nanoTime();
+        BatchRequest batch = new BatchRequest();
+        JsonParser parser = new JsonParser(body, 0, body.length);
+        try {
+            parser.beginArray();
+            while (parser.hasNext()) {
+                if (batch.size() == MAX_BATCH_OPERATIONS) {
+                    return tooManyOperations();
+                }
+                readBatchOperation(collection, parser, batch);
+            }
+            parser.endArray();
+            parser.requireEnd();
+        } catch (Codec.MalformedException e) {
+            return badRequest("Body must be a JSON array of operations");
+        }
+        parseTimer.recordSince(start);
+        return batchResponse(collection, session, batch);
+    }
+
+    private static void readBatchOperation(ItemCollection collection, JsonParser parser, BatchRequest batch)
+            throws Codec.MalformedException {
+        CollectionSchema schema = collection.schema();
+        String op = null;
+        Integer id = null;
+        String[] values = new String[schema.fields.size()];
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int key = parser.nextKey(collection.operationKeys());
+            if (parser.peek() == JsonParser.Token.NULL) {
+                parser.skipValue();
+                continue;
+            }
+            switch (key) {
+                case KEY_OP:
+                    op = parser.nextString();
+                    break;
+                case KEY_ID:
+                    try {
+                        if (parser.peek() != JsonParser.Token.NUMBER) {
+                            parser.skipValue();
+                            throw new NumberFormatException();
+                        }
+                        id = parser.nextInt();
+                    } catch (NumberFormatException e) {
+                        batch.fail("id must be an integer");
+                        skipRest(parser, collection);
+                        return;
+                    }
+                    break;
+                default:
+                    if (key >= KEY_FIRST_FIELD) {
+                        values[key - KEY_FIRST_FIELD] = parser.nextValue(schema.fields.get(key - KEY_FIRST_FIELD));
+                    } else {
+                        parser.skipValue();
+                    }
+            }
+        }
+        parser.endObject();
+
+        if ("create".equals(op)) {
+            values = collection.withDefaults(values);
+            String error = collection.validate(values, true);
+            if (error != null) {
+                batch.fail(error);
+            } else {
+                batch.add(BatchOperation.create(values));
+            }
+        } else if ("update".equals(op) || "delete".equals(op)) {
+            String error = "update".equals(op) ? collection.validate(values, false) : null;
+            if (id == null) {
+                batch.fail("id is required");
+            } else if (error != null) {
+                batch.fail(error);
+            } else if ("update".equals(op)) {
+                batch.add(BatchOperation.update(id, values));
+            } else {
+                batch.add(BatchOperation.delete(id));
+            }
+        } else {
+            batch.fail("op must be create, update or delete");
+        }
+    }
+
+    private static void skipRest(JsonParser parser, ItemCollection collection) throws Codec.MalformedException {
+        while (parser.hasNext()) {
+            parser.nextKey(collection.operationKeys());
+            parser.skipValue();
+        }
+        parser.endObject();
+    }
+
+    // POST /api/{collection}/import - Bulk load newline-delimited JSON, one item per line:
+    // an object of the collection's fields creates an item, adding "id" stores it under that id.
+    // Lines are parsed in place in a buffer that holds at least one whole line.
+    private Response importItems(ItemCollection collection, IHTTPSession session) throws IOException {
+        BoundedInputStream body = requestBody(session);
+        if (body == null) {
+            return lengthRequired();
+        }
+        long start = System.nanoTime();
+        BatchRequest batch = new BatchRequest();
+        byte[] buffer = new byte[16 * 1024];
+        JsonParser parser = new JsonParser(buffer, 0, 0);
+        int lineStart = 0;
+        int limit = 0;
+        boolean eof = false;
+        while (true) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !eof) {
+                // No whole line left: keep the partial one and read more
+                System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+                limit -= lineStart;
+                lineStart = 0;
+                if (limit == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = body.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+                continue;
+            }
+            if (!isBlank(buffer, lineStart, lineEnd)) {
+                if (batch.size() == MAX_BATCH_OPERATIONS) {
+                    return tooManyOperations();
+                }
+                parser.reset(buffer, lineStart, lineEnd - lineStart);
+                readImportLine(collection, parser, batch);
+            }
+            if (lineEnd == limit) {
+                break;
+            }
+            lineStart = lineEnd + 1;
+        }
+        parseTimer.recordSince(start);
+        return batchResponse(collection, session, batch);
+    }
+
+    private static void readImportLine(ItemCollection collection, JsonParser parser, BatchRequest batch) {
+        try {
+            CollectionSchema schema = collection.schema();
+            String[] values = new String[schema.fields.size()];
+            Integer id = null;
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int key = parser.nextKey(schema.keys);
+                if (parser.peek() == JsonParser.Token.NULL) {
+                    parser.skipValue();
+                } else if (key == 0) {
+                    id = parser.nextInt();
+                } else if (key > 0) {
+                    values[key - 1] = parser.nextValue(schema.fields.get(key - 1));
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            parser.requireEnd();
+            values = collection.withDefaults(values);
+            String error = collection.validate(values, true);
+            if (error != null) {
+                batch.fail(error);
+            } else if (id != null) {
+                batch.add(BatchOperation.put(id, values));
+            } else {
+                batch.add(BatchOperation.create(values));
+            }
+        } catch (Codec.MalformedException | NumberFormatException e) {
+            batch.fail("Invalid JSON: " + e.getMessage());
+        }
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Apply the valid operations together and report every entry in request order:
+    // [{"index":0,"status":201,"item":{..}}, {"index":1,"status":400,"error":".."}, ...]
+    private Response batchResponse(ItemCollection collection, IHTTPSession session, BatchRequest batch) {
+        List<BatchOperation.Result> results = collection.store().applyBatch(batch.operations);
+
+        long start = System.nanoTime();
+        JsonBuffer json = new JsonBuffer(64 + batch.size() * 96);
+        json.writeByte('[');
+        int applied = 0;
+        for (int index = 0; index < batch.size(); index++) {
+            if (index > 0) {
+                json.writeByte(',');
+            }
+            json.writeAscii("{\"index\":").writeInt(index).writeAscii(",\"status\":");
+            String error = batch.errors.get(index);
+            if (error != null) {
+                json.writeInt(400).writeAscii(",\"error\":").writeString(error);
+            } else {
+                BatchOperation.Result result = results.get(applied++);
+                switch (result.outcome()) {
+                    case CREATED:
+                        json.writeInt(201);
+                        break;
+                    case NOT_FOUND:
+                        json.writeInt(404).writeAscii(",\"error\":\"Item not found\"");
+                        break;
+                    default:
+                        json.writeInt(200);
+                }
+                if (result.data() != null) {
+                    json.writeAscii(",\"item\":").writeData(result.data());
+                }
+            }
+            json.writeByte('}');
+        }
+        json.writeByte(']');
+        serializeTimer.recordSince(start);
+        return encodedResponse(session, Response.Status.OK, "application/json", json.bytes(), json.length());
+    }
+
+    // Parsed batch: operations to apply, plus a per-entry error (null for valid entries)
+    private static final class BatchRequest {
+        final List<BatchOperation> operations = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+
+        int size() {
+            return errors.size();
+        }
+
+        void add(BatchOperation operation) {
+            operations.add(operation);
+            errors.add(null);
+        }
+
+        void fail(String error) {
+            errors.add(error);
+        }
+    }
+
+    // The body of the request being served, or null if the client sent none
+    private static BoundedInputStream requestBody(IHTTPSession session) {
+        return REQUEST_BODY.get();
+    }
+
+    // The body of a single-item write, read whole once its Content-Length is known to be
+    // within MAX_ITEM_BODY_BYTES; null if the client sent none
+    private static byte[] itemBody(IHTTPSession session) throws IOException {
+        BoundedInputStream body = requestBody(session);
+        return body != null ? body.readRemaining() : null;
+    }
+
+    // 413 when a single-item write declares a body over MAX_ITEM_BODY_BYTES, else null
+    private Response itemBodyTooLarge(IHTTPSession session) {
+        BoundedInputStream body = requestBody(session);
+        return body != null && body.remaining() > MAX_ITEM_BODY_BYTES
+                ? payloadTooLarge(MAX_ITEM_BODY_BYTES) : null;
+    }
+
+    // Single item in the negotiated format, not cached
+    private Response itemResponse(IHTTPSession session, Response.Status status, Data item) {
+        Codec codec = Codec.forAccept(session.getHeaders().get("accept"));
+        long start = System.nanoTime();
+        Codec.Output out = codec.newOutput(128).writeData(item, JsonBuffer.ALL_FIELDS);
+        serializeTimer.recordSince(start);
+        return newFixedLengthResponse(status, codec.mimeType(),
+                new ByteArrayInputStream(out.bytes(), 0, out.length()), out.length());
+    }
+
+    private Response lengthRequired() {
+        return newFixedLengthResponse(Response.Status.LENGTH_REQUIRED, "application/json",
+                "{\"error\":\"Content-Length is required\"}");
+    }
+
+    // The rest of the body is left unread; finishRequest closes the connection rather than
+    // skip a large one
+    private Response payloadTooLarge(long limit) {
+        return newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE, "application/json",
+                "{\"error\":\"Request body is larger than " + limit + " bytes\"}");
+    }
+
+    private Response tooManyOperations() {
+        return newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE, "application/json",
+                "{\"error\":\"At most " + MAX_BATCH_OPERATIONS + " operations per request\"}");
+    }
+
+    // GET /api/{collection}/{id} - Get item by ID
+    private Response getItem(ItemCollection collection, IHTTPSession session, int id) {
+        LocalDatabase store = collection.store();
+        // Revision first: a write racing this read can only make the tag older than the body
+        Codec codec = Codec.forAccept(session.getHeaders().get("accept"));
+        Revision revision = store.revision(id);
+        // Validators only describe an item that exists; a missing id is 404 whatever they say
+        if (!store.contains(id)) {
+            return itemNotFound();
+        }
+        String etag = etag(revision, codec);
+        if (notModified(session, etag, revision)) {
+            return notModifiedResponse(etag, revision);
+        }
+        String key = codec.token() + ' ' + session.getUri();
+        ResponseCache.Entry cached = responseCache.get(key, revision.version());
+        if (cached != null) {
+            return cachedResponse(session, codec, cached, etag, revision);
+        }
+
+        Data item = store.getData(id);
+        if (item == null) {
+            return itemNotFound();
+        }
+        long start = System.nanoTime();
+        Codec.Output out = codec.newOutput(128).writeData(item, JsonBuffer.ALL_FIELDS);
+        serializeTimer.recordSince(start);
+        ResponseCache.Entry entry = new ResponseCache.Entry(revision.version(), out.bytes(), out.length());
+        responseCache.put(key, entry);
+        return cachedResponse(session, codec, entry, etag, revision);
+    }
+
+    // Strong validator: the revision version, scoped to this process so versions counted
+    // again after a restart never match tags handed out before it. Formats other than JSON
+    // are other representations and get their own tag.
+    private String etag(Revision revision, Codec codec) {
+        String suffix = codec == Codec.JSON ? "" : "-" + codec.token();
+        return "\"" + epoch + "-" + revision.version() + suffix + "\"";
+    }
+
+    // Conditional GET: If-None-Match wins; If-Modified-Since is only used without it
+    private static boolean notModified(IHTTPSession session, String etag, Revision revision) {
+        Map<String, String> headers = session.getHeaders();
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                Date since = HTTP_DATE.get().parse(ifModifiedSince);
+                // HTTP dates have one-second resolution
+                return since != null && revision.modifiedMillis() / 1000 <= since.getTime() / 1000;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Response notModifiedResponse(String etag, Revision revision) {
+        Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, "application/json", "");
+        addValidators(response, etag, revision);
+        return response;
+    }
+
+    // A cached body, compressed if negotiated; the compressed copy is kept with the entry
+    private Response cachedResponse(IHTTPSession session, Codec codec, ResponseCache.Entry entry,
+                                    String etag, Revision revision) {
+        Compression.Encoding encoding = entry.length >= Compression.MIN_BYTES
+                ? Compression.negotiate(session.getHeaders().get("accept-encoding")) : null;
+        Response response;
+        if (encoding != null) {
+            long start = System.nanoTime();
+            byte[] body = responseCache.encoded(entry, encoding);
+            compressTimer.recordSince(start);
+            response = newFixedLengthResponse(Response.Status.OK, codec.mimeType(),
+                    new ByteArrayInputStream(body), body.length);
+            response.addHeader("Content-Encoding", encoding.token);
+            etag = weak(etag);
+        } else {
+            response = newFixedLengthResponse(Response.Status.OK, codec.mimeType(),
+                    new ByteArrayInputStream(entry.body, 0, entry.length), entry.length);
+        }
+        for (int i = 0; i < entry.headers.length; i += 2) {
+            response.addHeader(entry.headers[i], entry.headers[i + 1]);
+        }
+        addValidators(response, etag, revision);
+        return response;
+    }
+
+    // Fixed-length response for an encoded body, compressed when the client accepts it and
+    // the body is big enough to gain from it
+    private Response encodedResponse(IHTTPSession session, Response.Status status, String mimeType,
+                                     byte[] body, int length) {
+        Compression.Encoding encoding = length >= Compression.MIN_BYTES
+                ? Compression.negotiate(session.getHeaders().get("accept-encoding")) : null;
+        if (encoding == null) {
+            return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(body, 0, length), length);
+        }
+        long start = System.nanoTime();
+        byte[] compressed = Compression.compress(encoding, body, 0, length);
+        compressTimer.recordSince(start);
+        Response response = newFixedLengthResponse(status, mimeType,
+                new ByteArrayInputStream(compressed), compressed.length);
+        response.addHeader("Content-Encoding", encoding.token);
+        return response;
     }
 
-    // POST /api/items - Create new item
-    private Response createItem(IHTTPSession session, Map<String, String> headers) {
+    // Compressed bytes differ from the identity ones, so their tag is weak. Conditional
+    // requests compare weakly and still match either form.
+    private static String weak(String etag) {
+        return "W/" + etag;
+    }
+
+    private static void addValidators(Response response, String etag, Revision revision) {
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", HTTP_DATE.get().format(new Date(revision.modifiedMillis())));
+        // Clients may keep the body but must revalidate before using it
+        response.addHeader("Cache-Control", "no-cache");
+    }
+
+    // POST /api/{collection} - Create new item
+    private Response createItem(ItemCollection collection, IHTTPSession session) {
         try {
+            Response tooLarge = itemBodyTooLarge(session);
+            if (tooLarge != null) {
+                return tooLarge;
+            }
             // Parse the request body
-            Map<String, String> bodyMap = new HashMap<>();
-            session.parseBody(bodyMap);
-            String body = bodyMap.get("postData");
+            byte[] body = itemBody(session);
 
             if (body == null) {
                 return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
                         "{\"error\":\"Request body is required\"}");
             }
 
-            JSONObject jsonRequest = new JSONObject(body);
-            String name = jsonRequest.optString("name");
-            String description = jsonRequest.optString("description");
+            long start = System.nanoTime();
+            Codec.Item request = Codec.forContentType(session.getHeaders().get("content-type"))
+                    .readItem(collection.schema(), body, body.length);
+            String[] values = collection.withDefaults(request.values());
+            parseTimer.recordSince(start);
 
-            if (name.isEmpty()) {
-                return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
-                        "{\"error\":\"Name is required\"}");
+            String error = collection.validate(values, true);
+            if (error != null) {
+                return badRequest(error);
             }
 
-            // Create new item using LocalDatabase
-            Data newData = localDatabase.addData(name, description);
+            // Create new item in the collection's store
+            Data newData = collection.store().addData(values);
 
             // Return created item
-            return newFixedLengthResponse(Response.Status.CREATED, "application/json", newData.toJsonString());
-        } catch (IOException | JSONException | ResponseException e) {
+            return itemResponse(session, Response.Status.CREATED, newData);
+        } catch (Codec.MalformedException e) {
+            return badRequest("Invalid request body: " + e.getMessage());
+        } catch (IOException e) {
             return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
                     "{\"error\":\"" + e.getMessage() + "\"}");
         }
     }
 
-    // PUT /api/items/{id} - Update item
-    private Response updateItem(int id, IHTTPSession session, Map<String, String> headers) {
+    // PUT /api/{collection}/{id} - Update item
+    // With If-Match, only if the item is still at the version the client last saw: 412
+    // otherwise. Fields left out of the body keep their current values.
+    private Response updateItem(ItemCollection collection, int id, IHTTPSession session) {
         try {
-            // Find the item
-            List<Data> items = localDatabase.getData();
-            Data itemToUpdate = null;
-
-            for (Data item : items) {
-                if (item.id() == id) {
-                    itemToUpdate = item;
-                    break;
-                }
+            long expectedVersion = expectedVersion(collection.store(), session, id);
+            if (expectedVersion == NO_MATCHING_VERSION) {
+                return preconditionFailed();
             }
-
-            if (itemToUpdate == null) {
-                return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
-                        "{\"error\":\"Item not found\"}");
+            // Refused before the body is read; the store checks again under its lock
+            if (!collection.store().contains(id)) {
+                return writeRefused(session, LocalDatabase.WriteResult.NOT_FOUND);
+            }
+            Response tooLarge = itemBodyTooLarge(session);
+            if (tooLarge != null) {
+                return tooLarge;
             }
 
             // Parse request body
-            Map<String, String> bodyMap = new HashMap<>();
-            session.parseBody(bodyMap);
-            String body = bodyMap.get("postData");
+            byte[] body = itemBody(session);
 
             if (body == null) {
                 return newFixedLengthResponse(Response.Status.BAD_REQUEST, "application/json",
                         "{\"error\":\"Request body is required\"}");
             }
 
-            JSONObject jsonRequest = new JSONObject(body);
-
-            // Get values for update - use existing values as defaults
-            String name = jsonRequest.has("name") ? jsonRequest.getString("name") : itemToUpdate.name();
-            String description = jsonRequest.has("description") ?
-                    jsonRequest.getString("description") : itemToUpdate.description();
+            long start = System.nanoTime();
+            Codec.Item request = Codec.forContentType(session.getHeaders().get("content-type"))
+                    .readItem(collection.schema(), body, body.length);
+            parseTimer.recordSince(start);
+            String error = collection.validate(request.values(), false);
+            if (error != null) {
+                return badRequest(error);
+            }
 
-            // Create updated data and update in database
-            Data updatedData = new Data(id, name, description);
-            localDatabase.updateData(updatedData);
+            // Merged with the current values and checked against the version in one step
+            LocalDatabase.WriteResult result = collection.store().updateData(id, request.values(),
+                    expectedVersion);
+            if (result.status() != LocalDatabase.WriteResult.Status.WRITTEN) {
+                return writeRefused(session, result);
+            }
 
-            // Return updated item
-            return newFixedLengthResponse(Response.Status.OK, "application/json", updatedData.toJsonString());
-        } catch (IOException | JSONException | ResponseException e) {
+            // Return updated item, tagged so the client can make its next edit conditional
+            Response response = itemResponse(session, Response.Status.OK, result.data());
+            String etag = etag(result.revision(), Codec.forAccept(session.getHeaders().get("accept")));
+            addValidators(response, response.getHeader("Content-Encoding") != null ? weak(etag) : etag,
+                    result.revision());
+            return response;
+        } catch (Codec.MalformedException e) {
+            return badRequest("Invalid request body: " + e.getMessage());
+        } catch (IOException e) {
             return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
                     "{\"error\":\"" + e.getMessage() + "\"}");
         }
     }
 
-    // DELETE /api/items/{id} - Delete item
-    private Response deleteItem(int id, Map<String, String> headers) {
-        boolean deleted = localDatabase.deleteData(id);
+    // DELETE /api/{collection}/{id} - Delete item, conditional on If-Match like updates
+    private Response deleteItem(ItemCollection collection, int id, IHTTPSession session) {
+        long expectedVersion = expectedVersion(collection.store(), session, id);
+        if (expectedVersion == NO_MATCHING_VERSION) {
+            return preconditionFailed();
+        }
+        LocalDatabase.WriteResult result = collection.store().deleteData(id, expectedVersion);
 
-        if (deleted) {
-            JSONObject response = new JSONObject();
-            try {
-                response.put("message", "Item deleted successfully");
-                return newFixedLengthResponse(Response.Status.OK, "application/json", response.toString());
-            } catch (JSONException e) {
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
-                        "{\"error\":\"" + e.getMessage() + "\"}");
-            }
+        if (result.status() == LocalDatabase.WriteResult.Status.WRITTEN) {
+            return newFixedLengthResponse(Response.Status.OK, "application/json",
+                    "{\"message\":\"Item deleted successfully\"}");
         } else {
-            return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
-                    "{\"error\":\"Item not found\"}");
+            return writeRefused(session, result);
+        }
+    }
+
+    // Version an If-Match header lets a write go through against: ANY_VERSION without the
+    // header or for "*", the item's current version if one of the tags names it, and
+    // NO_MATCHING_VERSION otherwise. The store checks the version again under its lock, so
+    // a write that lands in between still fails. Weak tags are accepted, since compressed
+    // responses carry the same version with a W/ prefix.
+    private long expectedVersion(LocalDatabase store, IHTTPSession session, int id) {
+        String ifMatch = session.getHeaders().get("if-match");
+        if (ifMatch == null) {
+            return LocalDatabase.ANY_VERSION;
+        }
+        long current = store.revision(id).version();
+        for (String candidate : ifMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*")) {
+                return LocalDatabase.ANY_VERSION;
+            }
+            if (taggedVersion(candidate) == current) {
+                return current;
+            }
+        }
+        return NO_MATCHING_VERSION;
+    }
+
+    // Version in a tag from etag() of this process, in any format; NO_MATCHING_VERSION for
+    // anything else, including tags handed out before a restart
+    private long taggedVersion(String tag) {
+        int start = epoch.length() + 2;
+        if (tag.length() <= start + 1 || !tag.startsWith(epoch, 1) || tag.charAt(0) != '"'
+                || tag.charAt(start - 1) != '-' || tag.charAt(tag.length() - 1) != '"') {
+            return NO_MATCHING_VERSION;
+        }
+        int end = start;
+        while (end < tag.length() - 1 && tag.charAt(end) != '-') {
+            end++;
+        }
+        try {
+            return Long.parseLong(tag.substring(start, end));
+        } catch (NumberFormatException e) {
+            return NO_MATCHING_VERSION;
         }
     }
+
+    // A conditional request names a version, so a missing item fails the precondition too
+    private Response writeRefused(IHTTPSession session, LocalDatabase.WriteResult result) {
+        if (result.status() == LocalDatabase.WriteResult.Status.NOT_FOUND
+                && session.getHeaders().get("if-match") == null) {
+            return itemNotFound();
+        }
+        return preconditionFailed();
+    }
+
+    private Response itemNotFound() {
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
+                "{\"error\":\"Item not found\"}");
+    }
+
+    private Response preconditionFailed() {
+        return newFixedLengthResponse(Response.Status.PRECONDITION_FAILED, "application/json",
+                "{\"error\":\"Item has changed since it was read\"}");
+    }
 }
@@ -36,6 +36,45 @@ public class BackendServerService extends Service {
     public static final String BROADCAST_SERVER_STATUS = PACKAGE_NAME + "SERVER_STATUS";
     public static final String EXTRA_SERVER_RUNNING = "server_running";
     public static final String EXTRA_SERVER_URL = "server_url";
+    public static final String EXTRA_ACTIVE_WORKERS = "active_workers";
+    public static final String EXTRA_QUEUE_DEPTH = "queue_depth";
+    public static final String EXTRA_METRICS_JSON = "metrics_json";   // Metrics.json() summary
+
+    // Optional ACTION_START_SERVER extras for tuning the request executor
+    public static final String EXTRA_EXECUTOR_MODE = "executor_mode";   // ServerConfig.ExecutorMode name
+    public static final String EXTRA_MAX_WORKERS = "max_workers";
+    public static final String EXTRA_QUEUE_CAPACITY = "queue_capacity";
+
+    // Optional ACTION_START_SERVER extras for connection handling
+    public static final String EXTRA_MAX_CONNECTIONS = "max_connections";
+    public static final String EXTRA_IDLE_TIMEOUT_MS = "idle_timeout_ms";
+    public static final String EXTRA_MAX_REQUESTS_PER_CONNECTION = "max_requests_per_connection";   // 0 = no limit
+    public static final String EXTRA_TCP_NODELAY = "tcp_nodelay";
+    public static final String EXTRA_SEND_BUFFER_BYTES = "send_buffer_bytes";   // 0 = system default
+    public static final String EXTRA_RECEIVE_BUFFER_BYTES = "receive_buffer_bytes";   // 0 = system default
+
+    // Optional ACTION_START_SERVER extras for rate limiting and admission control. Both are
+    // off unless these extras turn them on: a client on the device usually wants every
+    // request it can get, so limits are for servers opened up to other devices.
+    public static final String EXTRA_RATE_LIMIT_PER_SECOND = "rate_limit_per_second";   // 0 = no limit
+    public static final String EXTRA_RATE_LIMIT_BURST = "rate_limit_burst";
+    public static final String EXTRA_RATE_LIMIT_CLIENTS = "rate_limit_clients";
+    public static final String EXTRA_MAX_CONCURRENT_REQUESTS = "max_concurrent_requests";   // 0 = no limit
+    public static final String EXTRA_ADMISSION_TIMEOUT_MS = "admission_timeout_ms";
+
+    // Optional ACTION_START_SERVER extras (longs) for the heap given to caches
+    public static final String EXTRA_ITEM_CACHE_BYTES = "item_cache_bytes";   // 0 = no item cache
+    public static final String EXTRA_RESPONSE_CACHE_BYTES = "response_cache_bytes";
+    public static final String EXTRA_RESPONSE_CACHE_MAX_ENTRY_BYTES = "response_cache_max_entry_bytes";   // int
+
+    // Optional ACTION_START_SERVER extras for store persistence
+    public static final String EXTRA_SYNC_POLICY = "sync_policy";   // WriteAheadLog.SyncPolicy name
+    public static final String EXTRA_SYNC_INTERVAL_MS = "sync_interval_ms";   // long
+    public static final String EXTRA_FLUSH_THRESHOLD_BYTES = "flush_threshold_bytes";   // long
+
+    // Optional ACTION_START_SERVER extra: the collections to serve, as the JSON array that
+    // CollectionSchema.fromJson reads, in place of the items collection alone
+    public static final String EXTRA_COLLECTIONS = "collections";
 
     private AndroidBackendServer server;
     private boolean isServerRunning = false;
@@ -53,7 +92,7 @@ public class BackendServerService extends Service {
             if (action != null) {
                 switch (action) {
                     case ACTION_START_SERVER:
-                        startServer();
+                        startServer(readServerConfig(intent));
                         break;
                     case ACTION_STOP_SERVER:
                         stopServer();
@@ -77,11 +116,73 @@ public class BackendServerService extends Service {
 
     @Override
     public void onDestroy() {
+        // stop() flushes the stores too; flushing first means acknowledged writes are on
+        // disk even if the workers do not wind down in time
+        if (server != null && isServerRunning) {
+            server.flush();
+        }
         stopServer();
         super.onDestroy();
     }
 
-    private void startServer() {
+    // Build the server configuration from the start intent, keeping defaults for missing extras
+    private ServerConfig readServerConfig(Intent intent) {
+        ServerConfig config = new ServerConfig();
+
+        String mode = intent.getStringExtra(EXTRA_EXECUTOR_MODE);
+        if (mode != null) {
+            try {
+                config.executorMode = ServerConfig.ExecutorMode.valueOf(mode);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown executor mode " + mode + ", using " + config.executorMode);
+            }
+        }
+        config.maxWorkers = Math.max(1, intent.getIntExtra(EXTRA_MAX_WORKERS, config.maxWorkers));
+        config.queueCapacity = Math.max(1, intent.getIntExtra(EXTRA_QUEUE_CAPACITY, config.queueCapacity));
+        config.maxConnections = Math.max(1, intent.getIntExtra(EXTRA_MAX_CONNECTIONS, config.maxConnections));
+        config.idleTimeoutMs = Math.max(1, intent.getIntExtra(EXTRA_IDLE_TIMEOUT_MS, config.idleTimeoutMs));
+        config.maxRequestsPerConnection = Math.max(0,
+                intent.getIntExtra(EXTRA_MAX_REQUESTS_PER_CONNECTION, config.maxRequestsPerConnection));
+        config.tcpNoDelay = intent.getBooleanExtra(EXTRA_TCP_NODELAY, config.tcpNoDelay);
+        config.sendBufferBytes = Math.max(0, intent.getIntExtra(EXTRA_SEND_BUFFER_BYTES, config.sendBufferBytes));
+        config.receiveBufferBytes = Math.max(0,
+                intent.getIntExtra(EXTRA_RECEIVE_BUFFER_BYTES, config.receiveBufferBytes));
+        config.rateLimitPerSecond = Math.max(0,
+                intent.getIntExtra(EXTRA_RATE_LIMIT_PER_SECOND, config.rateLimitPerSecond));
+        config.rateLimitBurst = Math.max(1, intent.getIntExtra(EXTRA_RATE_LIMIT_BURST, config.rateLimitBurst));
+        config.rateLimitClients = Math.max(1, intent.getIntExtra(EXTRA_RATE_LIMIT_CLIENTS, config.rateLimitClients));
+        config.maxConcurrentRequests = Math.max(0,
+                intent.getIntExtra(EXTRA_MAX_CONCURRENT_REQUESTS, config.maxConcurrentRequests));
+        config.admissionTimeoutMs = Math.max(0,
+                intent.getIntExtra(EXTRA_ADMISSION_TIMEOUT_MS, config.admissionTimeoutMs));
+        String syncPolicy = intent.getStringExtra(EXTRA_SYNC_POLICY);
+        if (syncPolicy != null) {
+            try {
+                config.syncPolicy = WriteAheadLog.SyncPolicy.valueOf(syncPolicy);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown sync policy " + syncPolicy + ", using " + config.syncPolicy);
+            }
+        }
+        config.syncIntervalMs = Math.max(1, intent.getLongExtra(EXTRA_SYNC_INTERVAL_MS, config.syncIntervalMs));
+        config.flushThresholdBytes = Math.max(0,
+                intent.getLongExtra(EXTRA_FLUSH_THRESHOLD_BYTES, config.flushThresholdBytes));
+        config.itemCacheBytes = Math.max(0, intent.getLongExtra(EXTRA_ITEM_CACHE_BYTES, config.itemCacheBytes));
+        config.responseCacheBytes = Math.max(0,
+                intent.getLongExtra(EXTRA_RESPONSE_CACHE_BYTES, config.responseCacheBytes));
+        config.responseCacheMaxEntryBytes = Math.max(0,
+                intent.getIntExtra(EXTRA_RESPONSE_CACHE_MAX_ENTRY_BYTES, config.responseCacheMaxEntryBytes));
+        String collections = intent.getStringExtra(EXTRA_COLLECTIONS);
+        if (collections != null) {
+            try {
+                config.collections = CollectionSchema.fromJson(collections);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid collections (" + e.getMessage() + "), serving only " + CollectionSchema.ITEMS);
+            }
+        }
+        return config;
+    }
+
+    private void startServer(ServerConfig config) {
         if (isServerRunning) {
             Log.d(TAG, "Server is already running");
             return;
@@ -91,7 +192,7 @@ public class BackendServerService extends Service {
         startForeground(NOTIFICATION_ID, createNotification("Starting server..."));
 
         // Then start the actual server
-        server = new AndroidBackendServer(getApplicationContext(), SERVER_PORT);
+        server = new AndroidBackendServer(getApplicationContext(), SERVER_PORT, config);
         try {
             server.start();
             isServerRunning = true;
@@ -106,6 +207,10 @@ public class BackendServerService extends Service {
             broadcastStatus();
         } catch (IOException e) {
             Log.e(TAG, "Failed to start server", e);
+            // The constructor already opened the stores and their log writers; close them so
+            // the next start is not a second writer on the same files
+            server.stop();
+            server = null;
             updateNotification("Failed to start server: " + e.getMessage());
             stopSelf();
         }
@@ -127,6 +232,9 @@ public class BackendServerService extends Service {
         statusIntent.putExtra(EXTRA_SERVER_RUNNING, isServerRunning);
         if (isServerRunning) {
             statusIntent.putExtra(EXTRA_SERVER_URL, "http://" + getLocalIpAddress() + ":" + SERVER_PORT);
+            statusIntent.putExtra(EXTRA_ACTIVE_WORKERS, server.getActiveWorkers());
+            statusIntent.putExtra(EXTRA_QUEUE_DEPTH, server.getQueueDepth());
+            statusIntent.putExtra(EXTRA_METRICS_JSON, server.getMetricsJson());
         }
         sendBroadcast(statusIntent);
     }
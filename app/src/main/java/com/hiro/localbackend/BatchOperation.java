@@ -0,0 +1,48 @@
+package com.hiro.localbackend;
+
+/**
+ * One write in a {@link LocalDatabase#applyBatch} transaction. values are the item's field
+ * values in schema order (null for DELETE).
+ *
+ * For UPDATE, a null value keeps the current one.
+ */
+public record BatchOperation(Kind kind, int id, String[] values) {
+
+    public enum Kind {
+        // Insert with a freshly allocated id
+        CREATE,
+        // Insert or replace the item with the given id
+        PUT,
+        // Change an existing item
+        UPDATE,
+        DELETE
+    }
+
+    // What happened to one operation
+    public enum Outcome {
+        CREATED,
+        UPDATED,
+        DELETED,
+        NOT_FOUND
+    }
+
+    // Outcome plus the item as written (null for deletes and misses)
+    public record Result(Outcome outcome, Data data) {
+    }
+
+    public static BatchOperation create(String... values) {
+        return new BatchOperation(Kind.CREATE, 0, values);
+    }
+
+    public static BatchOperation put(int id, String... values) {
+        return new BatchOperation(Kind.PUT, id, values);
+    }
+
+    public static BatchOperation update(int id, String... values) {
+        return new BatchOperation(Kind.UPDATE, id, values);
+    }
+
+    public static BatchOperation delete(int id) {
+        return new BatchOperation(Kind.DELETE, id, null);
+    }
+}
@@ -0,0 +1,95 @@
+package com.hiro.localbackend;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most a fixed number of bytes from the underlying stream, then reports end of
+ * stream. Used for request bodies so a reader never runs into the next request on a
+ * keep-alive connection. Closing it skips whatever the reader left unread, so the next
+ * request starts in the right place, but does not close the connection.
+ */
+final class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    // Bytes of the body not read yet
+    long remaining() {
+        return remaining;
+    }
+
+    // The rest of the body in one array of exactly its size, read straight into place.
+    // Callers check remaining() against their own limit first.
+    byte[] readRemaining() throws IOException {
+        if (remaining > Integer.MAX_VALUE - 8) {
+            throw new IOException("Body of " + remaining + " bytes is too large to hold");
+        }
+        byte[] bytes = new byte[(int) remaining];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = in.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new EOFException("Body ended after " + offset + " of " + bytes.length + " bytes");
+            }
+            offset += n;
+            remaining -= n;
+        }
+        return bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] discard = new byte[4096];
+        while (read(discard, 0, discard.length) > 0) {
+            // The connection belongs to NanoHTTPD; just consume the rest of the body
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hiro.localbackend;
+
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Serializes items into an indefinite-length CBOR array lazily, as the HTTP layer reads
+ * from it; the CBOR counterpart of {@link JsonArrayStream}.
+ */
+final class CborArrayStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Iterator<Data> items;
+    private final int fields;
+    private final CborBuffer buffer = new CborBuffer(BUFFER_SIZE);
+    private int position;
+    private boolean started;
+    private boolean finished;
+
+    // fields is a mask of JsonBuffer.FIELD_* bits
+    CborArrayStream(Iterator<Data> items, int fields) {
+        this.items = items;
+        this.fields = fields;
+    }
+
+    @Override
+    public int read() {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == buffer.length() && !fill()) {
+            return -1;
+        }
+        int n = Math.min(length, buffer.length() - position);
+        System.arraycopy(buffer.bytes(), position, target, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length() - position;
+    }
+
+    // Refill the buffer with as many whole items as fit; false once everything is written
+    private boolean fill() {
+        if (finished) {
+            return false;
+        }
+        buffer.reset();
+        position = 0;
+        if (!started) {
+            started = true;
+            buffer.writeByte(CborBuffer.INDEFINITE_ARRAY);
+        }
+        while (buffer.length() < BUFFER_SIZE && items.hasNext()) {
+            buffer.writeData(items.next(), fields);
+        }
+        if (!items.hasNext()) {
+            buffer.writeByte(CborBuffer.BREAK);
+            finished = true;
+        }
+        return buffer.length() > 0;
+    }
+}
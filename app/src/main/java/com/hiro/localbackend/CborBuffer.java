@@ -0,0 +1,224 @@
+package com.hiro.localbackend;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Growable byte buffer that writes CBOR (RFC 8949) directly, the binary counterpart of
+ * {@link JsonBuffer}. An item is a map with the same text keys as its JSON form, so the
+ * two carry the same structure; lists are indefinite-length arrays, which lets them be
+ * written before the item count is known.
+ */
+final class CborBuffer implements Codec.Output {
+
+    // Major types, already shifted into the top three bits of the initial byte
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1 << 5;
+    static final int MAJOR_BYTES = 2 << 5;
+    static final int MAJOR_TEXT = 3 << 5;
+    static final int MAJOR_ARRAY = 4 << 5;
+    static final int MAJOR_MAP = 5 << 5;
+    static final int MAJOR_TAG = 6 << 5;
+    static final int MAJOR_SIMPLE = 7 << 5;
+
+    static final int INDEFINITE_ARRAY = MAJOR_ARRAY | 31;
+    static final int BREAK = MAJOR_SIMPLE | 31;
+    static final int FALSE = MAJOR_SIMPLE | 20;
+    static final int TRUE = MAJOR_SIMPLE | 21;
+    static final int NULL = MAJOR_SIMPLE | 22;
+    static final int FLOAT64 = MAJOR_SIMPLE | 27;
+
+    private byte[] bytes;
+    private int length;
+
+    CborBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    @Override
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    CborBuffer writeByte(int b) {
+        ensure(1);
+        bytes[length++] = (byte) b;
+        return this;
+    }
+
+    CborBuffer writeRaw(byte[] raw) {
+        ensure(raw.length);
+        System.arraycopy(raw, 0, bytes, length, raw.length);
+        length += raw.length;
+        return this;
+    }
+
+    CborBuffer writeLong(long value) {
+        // Negative n is stored as -1 - n, which flips every bit
+        return value >= 0 ? writeHeader(MAJOR_UNSIGNED, value) : writeHeader(MAJOR_NEGATIVE, ~value);
+    }
+
+    // Text string. The header is sized for the longest possible UTF-8 form and the bytes
+    // are encoded in one pass; if the real length needs a shorter header they move down.
+    CborBuffer writeString(String text) {
+        int n = text.length();
+        int reserved = headerSize(n * 3L);
+        // Room for any header too, so writeHeader below never moves the array
+        ensure(9 + n * 3);
+        byte[] out = bytes;
+        int start = length + reserved;
+        int pos = start;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate; same replacement String.getBytes uses
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        int utf8 = pos - start;
+        int header = headerSize(utf8);
+        if (header < reserved) {
+            System.arraycopy(out, start, out, length + header, utf8);
+        }
+        writeHeader(MAJOR_TEXT, utf8);
+        length += utf8;
+        return this;
+    }
+
+    CborBuffer writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensure(9);
+        bytes[length++] = (byte) FLOAT64;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (bits >> shift);
+        }
+        return this;
+    }
+
+    // The item as a CBOR map with the same keys as its JSON form
+    CborBuffer writeData(Data data) {
+        return writeData(data, JsonBuffer.ALL_FIELDS);
+    }
+
+    // Only the fields whose JsonBuffer.fieldBit bits are set, in schema order
+    @Override
+    public CborBuffer writeData(Data data, int fields) {
+        CollectionSchema schema = data.schema();
+        int count = schema.fields.size();
+        writeHeader(MAJOR_MAP, Integer.bitCount(fields & JsonBuffer.allFields(count)));
+        if ((fields & JsonBuffer.FIELD_ID) != 0) {
+            writeRaw(schema.cborKeys[0]).writeLong(data.id());
+        }
+        for (int i = 0; i < count; i++) {
+            if ((fields & JsonBuffer.fieldBit(i)) != 0) {
+                writeRaw(schema.cborKeys[i + 1]).writeValue(schema.fields.get(i).type, data.value(i));
+            }
+        }
+        return this;
+    }
+
+    // A stored field value as its CBOR type
+    private CborBuffer writeValue(CollectionSchema.Field.Type type, String value) {
+        if (value == null) {
+            return writeByte(NULL);
+        }
+        switch (type) {
+            case INTEGER:
+                return writeLong(Long.parseLong(value));
+            case NUMBER:
+                return writeDouble(Double.parseDouble(value));
+            case BOOLEAN:
+                return writeByte(value.equals("true") ? TRUE : FALSE);
+            default:
+                return writeString(value);
+        }
+    }
+
+    @Override
+    public boolean writeArray(Iterator<Data> items, int fields, int maxBytes) {
+        writeByte(INDEFINITE_ARRAY);
+        while (items.hasNext()) {
+            if (length > maxBytes) {
+                return false;
+            }
+            writeData(items.next(), fields);
+        }
+        writeByte(BREAK);
+        return length <= maxBytes;
+    }
+
+    // Initial byte plus the shortest argument encoding that holds value
+    CborBuffer writeHeader(int major, long value) {
+        ensure(9);
+        byte[] out = bytes;
+        int pos = length;
+        if (value < 24) {
+            out[pos++] = (byte) (major | value);
+        } else if (value < 0x100) {
+            out[pos++] = (byte) (major | 24);
+            out[pos++] = (byte) value;
+        } else if (value < 0x10000) {
+            out[pos++] = (byte) (major | 25);
+            out[pos++] = (byte) (value >> 8);
+            out[pos++] = (byte) value;
+        } else if (value < 0x100000000L) {
+            out[pos++] = (byte) (major | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out[pos++] = (byte) (value >> shift);
+            }
+        } else {
+            out[pos++] = (byte) (major | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[pos++] = (byte) (value >> shift);
+            }
+        }
+        length = pos;
+        return this;
+    }
+
+    // Bytes writeHeader uses for an argument of value
+    static int headerSize(long value) {
+        return value < 24 ? 1 : value < 0x100 ? 2 : value < 0x10000 ? 3 : value < 0x100000000L ? 5 : 9;
+    }
+
+    // Map keys, encoded once: text header followed by the UTF-8 name
+    static byte[][] keys(String... names) {
+        byte[][] keys = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            CborBuffer key = new CborBuffer(names[i].length() + 2).writeString(names[i]);
+            keys[i] = Arrays.copyOf(key.bytes, key.length);
+        }
+        return keys;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.hiro.localbackend;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder for the CBOR that {@link CborBuffer} writes, reading straight from a byte array.
+ * Map keys are matched against the known field names byte by byte, so only the values
+ * kept become Strings. Anything unexpected is reported as malformed rather than guessed at.
+ */
+final class CborReader {
+
+    // Deepest nesting skipValue follows before giving up on the body
+    private static final int MAX_DEPTH = 32;
+
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    CborReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    // A whole body holding one item map of the schema; id and unknown keys are skipped
+    Codec.Item readItem(CollectionSchema schema) throws Codec.MalformedException {
+        String[] values = new String[schema.fields.size()];
+        long entries = readMapStart();
+        for (long i = 0; entries < 0 ? !readBreak() : i < entries; i++) {
+            int key = readKey(schema.keys);
+            if (peekNull()) {
+                position++;
+            } else if (key > 0) {
+                values[key - 1] = readValue(schema.fields.get(key - 1));
+            } else {
+                skipValue(0);
+            }
+        }
+        if (position != end) {
+            throw new Codec.MalformedException("Unexpected data after the item");
+        }
+        return new Codec.Item(values);
+    }
+
+    // One item map as CborBuffer writes it; an id it leaves out reads as 0, other fields
+    // as their defaults
+    Data readData(CollectionSchema schema) throws Codec.MalformedException {
+        int id = 0;
+        String[] values = new String[schema.fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = schema.fields.get(i).defaultValue;
+        }
+        long entries = readMapStart();
+        for (long i = 0; entries < 0 ? !readBreak() : i < entries; i++) {
+            int key = readKey(schema.keys);
+            if (key == 0) {
+                long value = readLong();
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw new Codec.MalformedException("id is out of range");
+                }
+                id = (int) value;
+            } else if (key > 0 && !peekNull()) {
+                values[key - 1] = readValue(schema.fields.get(key - 1));
+            } else {
+                skipValue(0);
+            }
+        }
+        return new Data(schema, id, values);
+    }
+
+    // An item of the items collection
+    Data readData() throws Codec.MalformedException {
+        return readData(CollectionSchema.ITEMS_SHAPE);
+    }
+
+    // A field value in its stored form; the CBOR type has to match the field's
+    String readValue(CollectionSchema.Field field) throws Codec.MalformedException {
+        switch (field.type) {
+            case INTEGER:
+                return Long.toString(readLong());
+            case NUMBER:
+                return Double.toString(readDouble());
+            case BOOLEAN:
+                return readBoolean() ? "true" : "false";
+            default:
+                return readString();
+        }
+    }
+
+    // Element count of the array that starts here, or -1 if it runs until a break
+    long readArrayStart() throws Codec.MalformedException {
+        return readContainerStart(CborBuffer.MAJOR_ARRAY, "array");
+    }
+
+    // Consumes the break that ends an indefinite-length array or map, if it comes next
+    boolean readBreak() throws Codec.MalformedException {
+        require(1);
+        if ((bytes[position] & 0xFF) == CborBuffer.BREAK) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    boolean hasMore() {
+        return position < end;
+    }
+
+    long readLong() throws Codec.MalformedException {
+        int initial = readInitial();
+        int major = initial & 0xE0;
+        long argument = argument(initial);
+        if (argument < 0 || (major != CborBuffer.MAJOR_UNSIGNED && major != CborBuffer.MAJOR_NEGATIVE)) {
+            throw new Codec.MalformedException("Expected an integer");
+        }
+        return major == CborBuffer.MAJOR_UNSIGNED ? argument : ~argument;
+    }
+
+    // A finite float of any width, or an integer
+    double readDouble() throws Codec.MalformedException {
+        require(1);
+        int initial = bytes[position] & 0xFF;
+        if ((initial & 0xE0) != CborBuffer.MAJOR_SIMPLE) {
+            return readLong();
+        }
+        position++;
+        double value;
+        switch (initial & 31) {
+            case 25:
+                value = halfToDouble((int) bits(2));
+                break;
+            case 26:
+                value = Float.intBitsToFloat((int) bits(4));
+                break;
+            case 27:
+                value = Double.longBitsToDouble(bits(8));
+                break;
+            default:
+                throw new Codec.MalformedException("Expected a number");
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new Codec.MalformedException("Expected a finite number");
+        }
+        return value;
+    }
+
+    boolean readBoolean() throws Codec.MalformedException {
+        int initial = readInitial();
+        if (initial == CborBuffer.TRUE || initial == CborBuffer.FALSE) {
+            return initial == CborBuffer.TRUE;
+        }
+        throw new Codec.MalformedException("Expected a boolean");
+    }
+
+    String readString() throws Codec.MalformedException {
+        int initial = readInitial();
+        if ((initial & 0xE0) != CborBuffer.MAJOR_TEXT) {
+            throw new Codec.MalformedException("Expected a text string");
+        }
+        long length = argument(initial);
+        if (length >= 0) {
+            int start = take(length);
+            return new String(bytes, start, (int) length, StandardCharsets.UTF_8);
+        }
+        // Indefinite length: definite-length text chunks until a break
+        StringBuilder text = new StringBuilder();
+        while (!readBreak()) {
+            int start = readChunk(CborBuffer.MAJOR_TEXT);
+            text.append(new String(bytes, start, position - start, StandardCharsets.UTF_8));
+        }
+        return text.toString();
+    }
+
+    // One chunk of an indefinite-length string, which RFC 8949 requires to be a definite-length
+    // string of the same type (so chunks never nest); returns where its bytes start
+    private int readChunk(int major) throws Codec.MalformedException {
+        int initial = readInitial();
+        if ((initial & 0xE0) != major || (initial & 31) == 31) {
+            throw new Codec.MalformedException("Invalid chunk in an indefinite-length string");
+        }
+        return take(argument(initial));
+    }
+
+    private long readMapStart() throws Codec.MalformedException {
+        return readContainerStart(CborBuffer.MAJOR_MAP, "map");
+    }
+
+    private long readContainerStart(int major, String what) throws Codec.MalformedException {
+        int initial = readInitial();
+        if ((initial & 0xE0) != major) {
+            throw new Codec.MalformedException("Expected a " + what);
+        }
+        return argument(initial);
+    }
+
+    // Index of the key in keys (UTF-8, as JsonParser.keys makes them), or -1 for any other key
+    private int readKey(byte[][] keys) throws Codec.MalformedException {
+        require(1);
+        int initial = bytes[position] & 0xFF;
+        if ((initial & 0xE0) != CborBuffer.MAJOR_TEXT || (initial & 31) == 31) {
+            // Not a definite-length text key, so not one of ours
+            skipValue(0);
+            return -1;
+        }
+        position++;
+        long length = argument(initial);
+        int start = take(length);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].length == length && matches(keys[i], start)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Whether the key's bytes are at start
+    private boolean matches(byte[] key, int start) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Big-endian unsigned value of the next size bytes
+    private long bits(int size) throws Codec.MalformedException {
+        int start = take(size);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (bytes[start + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // IEEE 754 half precision, as RFC 8949 appendix D decodes it
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        double value;
+        if (exponent == 0) {
+            value = Math.scalb((double) mantissa, -24);
+        } else if (exponent != 31) {
+            value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    private boolean peekNull() throws Codec.MalformedException {
+        require(1);
+        return (bytes[position] & 0xFF) == CborBuffer.NULL;
+    }
+
+    private void skipValue(int depth) throws Codec.MalformedException {
+        if (depth > MAX_DEPTH) {
+            throw new Codec.MalformedException("Nested too deeply");
+        }
+        int initial = readInitial();
+        int major = initial & 0xE0;
+        if (major == CborBuffer.MAJOR_SIMPLE) {
+            // Simple values and floats; a float's bits are not a length, so skip them as-is
+            int info = initial & 31;
+            if (info == 31) {
+                throw new Codec.MalformedException("Unexpected break");
+            }
+            if (info > 27) {
+                throw new Codec.MalformedException("Reserved additional information " + info);
+            }
+            if (info >= 24) {
+                take(1 << (info - 24));
+            }
+            return;
+        }
+        long argument = argument(initial);
+        switch (major) {
+            case CborBuffer.MAJOR_UNSIGNED:
+            case CborBuffer.MAJOR_NEGATIVE:
+                if (argument < 0) {
+                    throw new Codec.MalformedException("Integers have no indefinite length");
+                }
+                break;
+            case CborBuffer.MAJOR_BYTES:
+            case CborBuffer.MAJOR_TEXT:
+                if (argument >= 0) {
+                    take(argument);
+                } else {
+                    while (!readBreak()) {
+                        readChunk(major);
+                    }
+                }
+                break;
+            case CborBuffer.MAJOR_ARRAY:
+            case CborBuffer.MAJOR_MAP:
+                long items = major == CborBuffer.MAJOR_MAP && argument >= 0 ? argument * 2 : argument;
+                if (items >= 0) {
+                    for (long i = 0; i < items; i++) {
+                        skipValue(depth + 1);
+                    }
+                } else {
+                    while (!readBreak()) {
+                        skipValue(depth + 1);
+                    }
+                }
+                break;
+            default:
+                // Tag: the tagged value follows
+                if (argument < 0) {
+                    throw new Codec.MalformedException("Tags have no indefinite length");
+                }
+                skipValue(depth + 1);
+        }
+    }
+
+    private int readInitial() throws Codec.MalformedException {
+        require(1);
+        return bytes[position++] & 0xFF;
+    }
+
+    // Argument of the initial byte, reading any bytes that follow it; -1 for indefinite
+    private long argument(int initial) throws Codec.MalformedException {
+        int info = initial & 31;
+        if (info < 24) {
+            return info;
+        }
+        if (info == 31) {
+            return -1;
+        }
+        if (info > 27) {
+            throw new Codec.MalformedException("Reserved additional information " + info);
+        }
+        long value = bits(1 << (info - 24));
+        if (value < 0) {
+            throw new Codec.MalformedException("Argument does not fit in 63 bits");
+        }
+        return value;
+    }
+
+    // Skips count bytes and returns where they start
+    private int take(long count) throws Codec.MalformedException {
+        require(count);
+        int start = position;
+        position += (int) count;
+        return start;
+    }
+
+    private void require(long count) throws Codec.MalformedException {
+        if (count > end - position) {
+            throw new Codec.MalformedException("Truncated CBOR");
+        }
+    }
+}
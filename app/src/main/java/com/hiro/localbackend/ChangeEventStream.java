@@ -0,0 +1,112 @@
+package com.hiro.localbackend;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Server-Sent Events body that follows a {@link ChangeFeed}: each read blocks until there
+ * are changes after the stream's position, then hands them out as create/update/delete
+ * events whose id is the sequence number, so a reconnecting EventSource resumes through
+ * Last-Event-ID. A comment line goes out after a quiet period to keep proxies from
+ * timing the stream out and to notice clients that have gone away.
+ *
+ * The stream ends when the feed closes, or with a {@code reset} event once the position
+ * is no longer in the ring; the client then has to resync from a listing.
+ */
+final class ChangeEventStream extends InputStream {
+
+    private static final int MAX_CHANGES_PER_READ = 100;
+    // How long a disconnected EventSource waits before reconnecting
+    private static final int RETRY_MILLIS = 3000;
+
+    private final ChangeFeed feed;
+    private final long heartbeatMillis;
+    private final Runnable onClose;
+    private final JsonBuffer buffer = new JsonBuffer(8 * 1024);
+    private long position;
+    private int offset;
+    private boolean started;
+    private boolean finished;
+    private boolean closed;
+
+    // onClose runs once, when NanoHTTPD closes the response
+    ChangeEventStream(ChangeFeed feed, long since, long heartbeatMillis, Runnable onClose) {
+        this.feed = feed;
+        this.position = since;
+        this.heartbeatMillis = heartbeatMillis;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public int read() throws InterruptedIOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int targetOffset, int length) throws InterruptedIOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (offset == buffer.length() && !fill()) {
+            return -1;
+        }
+        int n = Math.min(length, buffer.length() - offset);
+        System.arraycopy(buffer.bytes(), offset, target, targetOffset, n);
+        offset += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length() - offset;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            onClose.run();
+        }
+    }
+
+    // Block for the next events; false once the stream is over
+    private boolean fill() throws InterruptedIOException {
+        if (finished) {
+            return false;
+        }
+        buffer.reset();
+        offset = 0;
+        if (!started) {
+            started = true;
+            buffer.writeAscii("retry: ").writeInt(RETRY_MILLIS).writeAscii("\n\n");
+        }
+
+        List<ChangeFeed.Change> changes;
+        try {
+            changes = feed.await(position, MAX_CHANGES_PER_READ, heartbeatMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Change stream interrupted");
+        }
+        if (changes == null) {
+            buffer.writeAscii("event: reset\ndata: {\"latest\":").writeLong(feed.latest())
+                    .writeAscii("}\n\n");
+            finished = true;
+        } else if (!changes.isEmpty()) {
+            for (ChangeFeed.Change change : changes) {
+                buffer.writeAscii("id: ").writeLong(change.seq())
+                        .writeAscii("\nevent: ").writeAscii(change.type().label)
+                        .writeAscii("\ndata: ").writeChange(change)
+                        .writeAscii("\n\n");
+            }
+            position = changes.get(changes.size() - 1).seq();
+        } else if (feed.isClosed()) {
+            finished = true;
+        } else {
+            buffer.writeAscii(": keepalive\n\n");
+        }
+        return buffer.length() > 0;
+    }
+}
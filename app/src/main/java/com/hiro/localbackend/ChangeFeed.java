@@ -0,0 +1,110 @@
+package com.hiro.localbackend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded, in-order log of the store's recent mutations, for clients that sync
+ * incrementally instead of re-reading the whole collection.
+ *
+ * Every change gets the next sequence number; it is the same number the item's
+ * {@link Revision} carries. Only the newest {@code capacity} changes are kept: a reader
+ * whose position has fallen out of the ring has to resync from a full listing. Like
+ * revisions, sequence numbers restart on each start of the store.
+ */
+public final class ChangeFeed {
+
+    public enum Type {
+        CREATE("create"), UPDATE("update"), DELETE("delete");
+
+        // Name used on the wire
+        public final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+    }
+
+    // data is the item after the change, or null for a delete
+    public record Change(long seq, Type type, int id, Data data) {
+    }
+
+    private final Change[] ring;
+    private long latest;
+    // Changes up to here happened before recording started (log replay) and are not kept
+    private long recordedFrom = Long.MAX_VALUE;
+    private int waiters;
+    private boolean closed;
+
+    ChangeFeed(int capacity) {
+        ring = new Change[capacity];
+    }
+
+    // Store hook, called with the item's stripe lock held. Taking the sequence number and
+    // filling the slot under one lock keeps the ring in sequence order across stripes.
+    synchronized long publish(Type type, int id, Data data) {
+        long seq = ++latest;
+        if (seq > recordedFrom) {
+            ring[(int) (seq % ring.length)] = new Change(seq, type, id, data);
+        }
+        if (waiters > 0) {
+            notifyAll();
+        }
+        return seq;
+    }
+
+    // Start keeping changes; the ones before this point are part of the initial state
+    synchronized void startRecording() {
+        recordedFrom = latest;
+    }
+
+    public synchronized long latest() {
+        return latest;
+    }
+
+    // Up to max changes after seq, oldest first; null if seq is no longer (or not yet) in the ring
+    public synchronized List<Change> since(long seq, int max) {
+        long oldest = Math.max(recordedFrom, latest - ring.length);
+        if (seq < oldest || seq > latest) {
+            return null;
+        }
+        if (seq == latest) {
+            return Collections.emptyList();
+        }
+        int count = (int) Math.min(max, latest - seq);
+        List<Change> changes = new ArrayList<>(count);
+        for (long next = seq + 1; next <= seq + count; next++) {
+            changes.add(ring[(int) (next % ring.length)]);
+        }
+        return changes;
+    }
+
+    // Long-poll form of since(): waits up to timeoutMillis for a change after seq. Returns an
+    // empty list on timeout or once the feed is closed.
+    public synchronized List<Change> await(long seq, int max, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        waiters++;
+        try {
+            long remaining = timeoutMillis;
+            while (seq == latest && !closed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } finally {
+            waiters--;
+        }
+        return since(seq, max);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Wake every waiting reader; used when the store shuts down
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,171 @@
+package com.hiro.localbackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Wire format for item bodies. JSON is the default; CBOR (RFC 8949) is used when a client
+ * asks for it with {@code Accept: application/cbor}, or sends it with that Content-Type.
+ *
+ * Both encode straight into a reusable byte buffer. Only item bodies (single items and
+ * lists) go through a codec; errors, batches and the change feed are always JSON.
+ */
+interface Codec {
+
+    Codec JSON = new Json();
+    Codec CBOR = new Cbor();
+
+    // Content-Type of bodies in this format
+    String mimeType();
+
+    // Short name, used to keep cache keys and ETags of different formats apart
+    String token();
+
+    Output newOutput(int initialCapacity);
+
+    // The items as a lazily encoded array, for chunked responses
+    InputStream stream(Iterator<Data> items, int fields);
+
+    // The schema's fields from a request body; absent fields come back null
+    Item readItem(CollectionSchema schema, byte[] body, int length) throws MalformedException;
+
+    /**
+     * Encoder writing into a growable buffer; fields is a mask of JsonBuffer.fieldBit bits.
+     */
+    interface Output {
+        Output writeData(Data data, int fields);
+
+        // Array of the items; gives up and returns false once the buffer passes maxBytes
+        boolean writeArray(Iterator<Data> items, int fields, int maxBytes);
+
+        byte[] bytes();
+
+        int length();
+    }
+
+    // Fields a client may set on an item, in schema order; null for any it left out
+    record Item(String[] values) {
+        String value(int field) {
+            return values[field];
+        }
+    }
+
+    // The body is not a valid item in the codec's format
+    final class MalformedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedException(String message) {
+            super(message);
+        }
+    }
+
+    // Format of the response body: CBOR only if Accept prefers it, otherwise JSON
+    static Codec forAccept(String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+        float cbor = -1;
+        float json = -1;
+        float wildcard = -1;
+        for (String part : accept.split(",")) {
+            String[] fields = part.split(";");
+            String type = fields[0].trim().toLowerCase(Locale.ROOT);
+            float quality = 1;
+            for (int i = 1; i < fields.length; i++) {
+                String parameter = fields[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (type.equals(Cbor.MIME_TYPE)) {
+                cbor = quality;
+            } else if (type.equals(Json.MIME_TYPE)) {
+                json = quality;
+            } else if (type.equals("*/*") || type.equals("application/*")) {
+                wildcard = Math.max(wildcard, quality);
+            }
+        }
+        // A named type beats a wildcard of the same weight; JSON wins a tie between the two
+        boolean preferCbor = json < 0 ? cbor > 0 && cbor >= wildcard : cbor > json;
+        return preferCbor ? CBOR : JSON;
+    }
+
+    // Format of a request body; anything but CBOR is read as JSON, as it always was
+    static Codec forContentType(String contentType) {
+        if (contentType != null
+                && contentType.trim().toLowerCase(Locale.ROOT).startsWith(Cbor.MIME_TYPE)) {
+            return CBOR;
+        }
+        return JSON;
+    }
+
+    final class Json implements Codec {
+        static final String MIME_TYPE = "application/json";
+
+        private Json() {
+        }
+
+        @Override
+        public String mimeType() {
+            return MIME_TYPE;
+        }
+
+        @Override
+        public String token() {
+            return "json";
+        }
+
+        @Override
+        public Output newOutput(int initialCapacity) {
+            return new JsonBuffer(initialCapacity);
+        }
+
+        @Override
+        public InputStream stream(Iterator<Data> items, int fields) {
+            return new JsonArrayStream(items, fields);
+        }
+
+        @Override
+        public Item readItem(CollectionSchema schema, byte[] body, int length) throws MalformedException {
+            return new JsonParser(body, 0, length).readItem(schema);
+        }
+    }
+
+    final class Cbor implements Codec {
+        static final String MIME_TYPE = "application/cbor";
+
+        private Cbor() {
+        }
+
+        @Override
+        public String mimeType() {
+            return MIME_TYPE;
+        }
+
+        @Override
+        public String token() {
+            return "cbor";
+        }
+
+        @Override
+        public Output newOutput(int initialCapacity) {
+            return new CborBuffer(initialCapacity);
+        }
+
+        @Override
+        public InputStream stream(Iterator<Data> items, int fields) {
+            return new CborArrayStream(items, fields);
+        }
+
+        @Override
+        public Item readItem(CollectionSchema schema, byte[] body, int length) throws MalformedException {
+            return new CborReader(body, 0, length).readItem(schema);
+        }
+    }
+}
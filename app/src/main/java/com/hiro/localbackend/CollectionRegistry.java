@@ -0,0 +1,80 @@
+package com.hiro.localbackend;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The collections a server hosts, each opened from its schema when it is registered. All
+ * stores live in the app's files directory, told apart by a file key derived from the
+ * collection name. Registration happens while the server is being built, before any
+ * request is served, so lookups need no locking afterwards.
+ */
+final class CollectionRegistry {
+
+    private final File directory;
+    private final SharedPreferences legacyPreferences;
+    private final ServerConfig config;
+    private final Map<String, ItemCollection> byName = new HashMap<>();
+    private final List<ItemCollection> all = new ArrayList<>();
+
+    CollectionRegistry(Context context, ServerConfig config) {
+        this.config = config;
+        this.directory = context.getFilesDir();
+        this.legacyPreferences = context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
+    }
+
+    ItemCollection register(CollectionSchema schema) {
+        schema.check();
+        if (byName.containsKey(schema.name)) {
+            throw new IllegalArgumentException("Collection registered twice: " + schema.name);
+        }
+        // items_data is the key the single-collection store always used; only that store
+        // can have an old SharedPreferences payload to migrate
+        boolean items = schema.name.equals(CollectionSchema.ITEMS);
+        // Every configured collection gets an even share of the item cache budget
+        long cacheBytes = config.itemCacheBytes / Math.max(1, config.collections.size());
+        LocalDatabase store = new LocalDatabase(directory, schema.name + "_data", schema,
+                items ? legacyPreferences : null, config.syncPolicy, config.syncIntervalMs,
+                config.flushThresholdBytes, LocalDatabase.DEFAULT_COMPACTION_THRESHOLD_BYTES, cacheBytes);
+        ItemCollection collection = new ItemCollection(schema, store);
+        byName.put(schema.name, collection);
+        all.add(collection);
+        return collection;
+    }
+
+    // The collection with that name, or null
+    ItemCollection get(String name) {
+        return byName.get(name);
+    }
+
+    // In registration order
+    List<ItemCollection> all() {
+        return all;
+    }
+
+    // Barrier: every write acknowledged so far, in every collection, is on disk
+    void flush() {
+        for (ItemCollection collection : all) {
+            collection.store().flush();
+        }
+    }
+
+    // Wake long-polls and event streams on every collection so their workers can return
+    void closeChangeFeeds() {
+        for (ItemCollection collection : all) {
+            collection.store().changes().close();
+        }
+    }
+
+    void close() {
+        for (ItemCollection collection : all) {
+            collection.store().close();
+        }
+    }
+}
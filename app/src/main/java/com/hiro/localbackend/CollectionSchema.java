@@ -0,0 +1,304 @@
+package com.hiro.localbackend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Declaration of a collection served under {@code /api/{name}}, given when it is registered:
+ * the fields its items have, with their types, rules and indexes. Every item also has an
+ * integer id, which is not declared. Items are stored, validated and encoded field by
+ * field in declaration order, so fields may be added at the end of a schema later but
+ * must not be reordered. Rules are plain public fields with defaults, like
+ * {@link ServerConfig}; the field list itself is fixed when the schema is made.
+ */
+public class CollectionSchema {
+
+    // Collection the app has always served, at /api/items
+    public static final String ITEMS = "items";
+    // Most fields a collection may declare; each takes a bit of the fields= mask
+    public static final int MAX_FIELDS = 30;
+
+    // Lower-case letters, digits and '_', starting with a letter; collection names also
+    // name the store files, field names are also query parameters
+    private static final Pattern NAME = Pattern.compile("[a-z][a-z0-9_]{0,31}");
+    // Query parameters of a listing, and the "op" key of batch operations, which fields
+    // therefore cannot be called
+    private static final Set<String> RESERVED_FIELDS =
+            new HashSet<>(Arrays.asList("id", "op", "limit", "after", "fields", "prefix", "from", "to"));
+
+    // Layout of items made outside any collection, e.g. by new Data(id, name, description);
+    // only its field names and types are ever used
+    static final CollectionSchema ITEMS_SHAPE = items();
+
+    /**
+     * One declared field. Values are kept as text in a canonical form: integers and numbers
+     * in their Java (and JSON) spelling, booleans as true or false.
+     */
+    public static final class Field {
+
+        public enum Type {
+            STRING,
+            // 64-bit signed integer
+            INTEGER,
+            // Finite double
+            NUMBER,
+            BOOLEAN
+        }
+
+        public final String name;
+        public final Type type;
+
+        // Must be given when an item is created; a STRING must also be non-empty
+        public boolean required = false;
+        // Longest STRING accepted, in chars; 0 for no limit
+        public int maxLength = 0;
+        // Value of an item created without this field, in canonical form; null leaves it unset
+        public String defaultValue = null;
+        // Hash index for {field}=, plus a sorted one for prefix=, from= and to= on the first
+        // field; without them those filters scan
+        public boolean indexed = false;
+        // Full-text index on a STRING field; search is only offered with one
+        public boolean fullText = false;
+
+        public Field(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        // Canonical form of a value given as text, e.g. in a query parameter
+        public String parse(String text) {
+            switch (type) {
+                case INTEGER:
+                    return Long.toString(Long.parseLong(text.trim()));
+                case NUMBER:
+                    double number = Double.parseDouble(text.trim());
+                    if (Double.isNaN(number) || Double.isInfinite(number)) {
+                        throw new IllegalArgumentException("Not a finite number: " + text);
+                    }
+                    return Double.toString(number);
+                case BOOLEAN:
+                    if (text.equals("true") || text.equals("false")) {
+                        return text;
+                    }
+                    throw new IllegalArgumentException("Not a boolean: " + text);
+                default:
+                    return text;
+            }
+        }
+    }
+
+    public final String name;
+    public final List<Field> fields;
+
+    // Object keys in the order readers report them, "id" and then every field: as UTF-8
+    // for matching, and with their CBOR text header for writing
+    final byte[][] keys;
+    final byte[][] cborKeys;
+
+    public CollectionSchema(String name, Field... fields) {
+        this.name = name;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(fields)));
+        String[] keys = new String[fields.length + 1];
+        keys[0] = "id";
+        for (int i = 0; i < fields.length; i++) {
+            keys[i + 1] = String.valueOf(fields[i].name);
+        }
+        this.keys = JsonParser.keys(keys);
+        this.cborKeys = CborBuffer.keys(keys);
+    }
+
+    // The items collection as it has always behaved: a required, indexed name and a
+    // searchable description that defaults to ""
+    public static CollectionSchema items() {
+        return items(ITEMS);
+    }
+
+    // A collection with the items fields under another name
+    public static CollectionSchema items(String name) {
+        Field itemName = new Field("name", Field.Type.STRING);
+        itemName.required = true;
+        itemName.indexed = true;
+        Field description = new Field("description", Field.Type.STRING);
+        description.defaultValue = "";
+        description.fullText = true;
+        return new CollectionSchema(name, itemName, description);
+    }
+
+    // Whether the fields are those of items(): a name and a description, both text
+    boolean hasItemsFields() {
+        return fields.size() == 2
+                && fields.get(0).name.equals("name") && fields.get(0).type == Field.Type.STRING
+                && fields.get(1).name.equals("description") && fields.get(1).type == Field.Type.STRING;
+    }
+
+    // Position of the named field, or -1
+    public int indexOf(String field) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).name.equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Throws IllegalArgumentException if the schema cannot be served
+    void check() {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid collection name: " + name);
+        }
+        if (fields.isEmpty() || fields.size() > MAX_FIELDS) {
+            throw new IllegalArgumentException(name + " must declare 1 to " + MAX_FIELDS + " fields");
+        }
+        Set<String> seen = new HashSet<>();
+        for (Field field : fields) {
+            if (field.name == null || !NAME.matcher(field.name).matches()
+                    || RESERVED_FIELDS.contains(field.name)) {
+                throw new IllegalArgumentException("Invalid field name in " + name + ": " + field.name);
+            }
+            if (!seen.add(field.name)) {
+                throw new IllegalArgumentException("Field declared twice in " + name + ": " + field.name);
+            }
+            if (field.type == null) {
+                throw new IllegalArgumentException("Field without a type in " + name + ": " + field.name);
+            }
+            if (field.fullText && field.type != Field.Type.STRING) {
+                throw new IllegalArgumentException("Full-text index on a non-text field: " + field.name);
+            }
+            if (field.defaultValue != null && !field.defaultValue.equals(field.parse(field.defaultValue))) {
+                throw new IllegalArgumentException("Default of " + field.name + " is not in canonical form");
+            }
+        }
+    }
+
+    // Values sized to the declared fields: fields added after a record was written read
+    // as null, values of fields no longer declared are dropped
+    String[] fit(String[] values) {
+        return values.length == fields.size() ? values : Arrays.copyOf(values, fields.size());
+    }
+
+    /**
+     * Schemas from their JSON declaration, as given to the service in an extra:
+     * <pre>
+     * [{"name":"notes","fields":[
+     *     {"name":"title","type":"string","required":true,"maxLength":200,"indexed":true},
+     *     {"name":"body","type":"string","fullText":true},
+     *     {"name":"pinned","type":"boolean","default":false}]},
+     *  {"name":"items"}]
+     * </pre>
+     * A collection without "fields" gets the items fields. Throws IllegalArgumentException
+     * if the declaration is malformed or a schema could not be served.
+     */
+    static List<CollectionSchema> fromJson(String json) {
+        byte[][] collectionKeys = JsonParser.keys("name", "fields");
+        byte[][] fieldKeys = JsonParser.keys("name", "type", "required", "maxLength", "default",
+                "indexed", "fullText");
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        JsonParser parser = new JsonParser(bytes, 0, bytes.length);
+        List<CollectionSchema> schemas = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        try {
+            parser.beginArray();
+            while (parser.hasNext()) {
+                String name = null;
+                List<Field> fields = null;
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    int key = parser.nextKey(collectionKeys);
+                    if (key == 0) {
+                        name = parser.nextString();
+                    } else if (key == 1) {
+                        fields = new ArrayList<>();
+                        parser.beginArray();
+                        while (parser.hasNext()) {
+                            fields.add(readField(parser, fieldKeys));
+                        }
+                        parser.endArray();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                CollectionSchema schema = fields == null ? items(name)
+                        : new CollectionSchema(name, fields.toArray(new Field[0]));
+                schema.check();
+                if (!names.add(schema.name)) {
+                    throw new IllegalArgumentException("Collection declared twice: " + name);
+                }
+                schemas.add(schema);
+            }
+            parser.endArray();
+            parser.requireEnd();
+        } catch (Codec.MalformedException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed collections: " + e.getMessage(), e);
+        }
+        if (schemas.isEmpty()) {
+            throw new IllegalArgumentException("No collections declared");
+        }
+        return schemas;
+    }
+
+    private static Field readField(JsonParser parser, byte[][] keys) throws Codec.MalformedException {
+        String name = null;
+        Field.Type type = Field.Type.STRING;
+        boolean required = false;
+        int maxLength = 0;
+        boolean indexed = false;
+        boolean fullText = false;
+        // As text until the type is known, which may come after it
+        String defaultValue = null;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            switch (parser.nextKey(keys)) {
+                case 0:
+                    name = parser.nextString();
+                    break;
+                case 1:
+                    String typeName = parser.nextString();
+                    try {
+                        type = Field.Type.valueOf(typeName.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown field type: " + typeName);
+                    }
+                    break;
+                case 2:
+                    required = parser.nextBoolean();
+                    break;
+                case 3:
+                    maxLength = Math.max(0, parser.nextInt());
+                    break;
+                case 4:
+                    if (parser.peek() == JsonParser.Token.NULL) {
+                        parser.skipValue();
+                    } else {
+                        defaultValue = parser.nextScalar();
+                    }
+                    break;
+                case 5:
+                    indexed = parser.nextBoolean();
+                    break;
+                case 6:
+                    fullText = parser.nextBoolean();
+                    break;
+                default:
+                    parser.skipValue();
+            }
+        }
+        Field field = new Field(name, type);
+        field.required = required;
+        field.maxLength = maxLength;
+        field.indexed = indexed;
+        field.fullText = fullText;
+        parser.endObject();
+        if (defaultValue != null) {
+            field.defaultValue = field.parse(defaultValue);
+        }
+        return field;
+    }
+}
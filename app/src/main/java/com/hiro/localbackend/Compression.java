@@ -0,0 +1,257 @@
+package com.hiro.localbackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip and deflate encoding of response bodies, with Content-Encoding negotiation.
+ *
+ * Deflaters hold a sizeable native buffer and are slow to set up, so they come from a
+ * small pool and are reset rather than recreated per response. Buffered bodies are
+ * compressed in one pass through a per-thread scratch array; streamed bodies go through
+ * {@link #compressing}, which keeps one buffer's worth in memory like the stream it wraps.
+ */
+final class Compression {
+
+    enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        // Content-Encoding token
+        final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    // Below this, framing overhead and CPU outweigh the bytes saved
+    static final int MIN_BYTES = 1024;
+
+    private static final int LEVEL = 6;
+    private static final int POOL_SIZE = 8;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Scratch arrays bigger than this are not kept for the next response
+    private static final int MAX_SCRATCH_BYTES = 1024 * 1024;
+
+    // ID1 ID2 CM=deflate FLG=0 MTIME=0 XFL=0 OS=unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_BYTES = 8;
+
+    // gzip wants raw deflate data (we add its header and trailer); deflate means zlib format
+    private static final ArrayBlockingQueue<Deflater> GZIP_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Deflater> DEFLATE_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private Compression() {
+    }
+
+    // Best encoding the Accept-Encoding header allows, or null for identity. gzip wins ties.
+    static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float wildcard = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.split(";");
+            String coding = fields[0].trim().toLowerCase(Locale.ROOT);
+            float quality = 1;
+            for (int i = 1; i < fields.length; i++) {
+                String parameter = fields[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equals("deflate")) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        // Codings not named explicitly take the wildcard's weight
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? Encoding.GZIP : Encoding.DEFLATE;
+    }
+
+    // The whole body, encoded; the returned array is exactly the encoded length
+    static byte[] compress(Encoding encoding, byte[] data, int offset, int length) {
+        boolean gzip = encoding == Encoding.GZIP;
+        Deflater deflater = acquire(encoding);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] out = SCRATCH.get();
+            int position = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                position = GZIP_HEADER.length;
+            }
+            while (!deflater.finished()) {
+                if (position == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            if (gzip) {
+                if (position + GZIP_TRAILER_BYTES > out.length) {
+                    out = Arrays.copyOf(out, position + GZIP_TRAILER_BYTES);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data, offset, length);
+                writeIntLE(out, position, (int) crc.getValue());
+                writeIntLE(out, position + 4, length);
+                position += GZIP_TRAILER_BYTES;
+            }
+            if (out.length <= MAX_SCRATCH_BYTES) {
+                SCRATCH.set(out);
+            }
+            return Arrays.copyOf(out, position);
+        } finally {
+            release(encoding, deflater);
+        }
+    }
+
+    // Encodes the source as it is read, for chunked responses. Closing it closes the source.
+    static InputStream compressing(Encoding encoding, InputStream source) {
+        return new CompressingInputStream(encoding, source);
+    }
+
+    private static Deflater acquire(Encoding encoding) {
+        Deflater deflater = (encoding == Encoding.GZIP ? GZIP_POOL : DEFLATE_POOL).poll();
+        return deflater != null ? deflater : new Deflater(LEVEL, encoding == Encoding.GZIP);
+    }
+
+    private static void release(Encoding encoding, Deflater deflater) {
+        deflater.reset();
+        if (!(encoding == Encoding.GZIP ? GZIP_POOL : DEFLATE_POOL).offer(deflater)) {
+            // Pool is full; free the native memory now rather than at finalization
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(byte[] out, int position, int value) {
+        out[position] = (byte) value;
+        out[position + 1] = (byte) (value >> 8);
+        out[position + 2] = (byte) (value >> 16);
+        out[position + 3] = (byte) (value >> 24);
+    }
+
+    private static final class CompressingInputStream extends InputStream {
+        private final Encoding encoding;
+        private final InputStream source;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private Deflater deflater;
+        private int position;
+        private int limit;
+        private long inputBytes;
+        private boolean started;
+        private boolean sourceDone;
+        private boolean finished;
+
+        CompressingInputStream(Encoding encoding, InputStream source) {
+            this.encoding = encoding;
+            this.source = source;
+            this.gzip = encoding == Encoding.GZIP;
+            this.deflater = acquire(encoding);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(length, limit - position);
+            System.arraycopy(output, position, target, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                release(encoding, deflater);
+                deflater = null;
+            }
+            source.close();
+        }
+
+        // Produce the next block of encoded output; false once the trailer has gone out
+        private boolean fill() throws IOException {
+            if (finished) {
+                return false;
+            }
+            position = 0;
+            limit = 0;
+            if (!started) {
+                started = true;
+                if (gzip) {
+                    System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+                    limit = GZIP_HEADER.length;
+                    return true;
+                }
+            }
+            while (!deflater.finished()) {
+                if (deflater.needsInput() && !sourceDone) {
+                    int n = source.read(input, 0, input.length);
+                    if (n < 0) {
+                        sourceDone = true;
+                        deflater.finish();
+                    } else if (n > 0) {
+                        crc.update(input, 0, n);
+                        inputBytes += n;
+                        deflater.setInput(input, 0, n);
+                    }
+                }
+                limit = deflater.deflate(output, 0, output.length);
+                if (limit > 0) {
+                    return true;
+                }
+            }
+            finished = true;
+            if (gzip) {
+                writeIntLE(output, 0, (int) crc.getValue());
+                writeIntLE(output, 4, (int) inputBytes);
+                limit = GZIP_TRAILER_BYTES;
+                return true;
+            }
+            return false;
+        }
+    }
+}
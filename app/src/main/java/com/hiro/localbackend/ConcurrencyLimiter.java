@@ -0,0 +1,55 @@
+package com.hiro.localbackend;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the requests being handled at once, across all clients. Past the limit, more
+ * work only adds to everyone's latency, so a request waits briefly for a slot and is shed
+ * if none comes free.
+ */
+final class ConcurrencyLimiter {
+
+    private final int limit;
+    private final long waitMs;
+    private final Semaphore permits;
+    private final LongAdder shed = new LongAdder();
+
+    ConcurrencyLimiter(int limit, long waitMs) {
+        this.limit = limit;
+        this.waitMs = waitMs;
+        this.permits = new Semaphore(limit);
+    }
+
+    // True once the caller holds a slot; false if it should be shed
+    boolean acquire() {
+        try {
+            if (permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shed.increment();
+        return false;
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    // For a holder that gave its slot back while idle, e.g. waiting in a long-poll; the
+    // request is already under way, so it waits rather than being shed
+    void reacquire() {
+        permits.acquireUninterruptibly();
+    }
+
+    int inFlight() {
+        return limit - permits.availablePermits();
+    }
+
+    long shed() {
+        return shed.sum();
+    }
+}
@@ -1,30 +1,97 @@
 package com.hiro.localbackend;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-public record Data(int id, String name, String description) {
+/**
+ * One stored item: its id and the values of its collection's fields, in the order the
+ * {@link CollectionSchema} declares them. A value is null when an optional field is unset.
+ * Immutable; the values array is never handed out.
+ */
+public final class Data {
 
-    // Constructor that takes a JSONObject
-    public Data(JSONObject jsonObject) throws JSONException {
-        this(
-                jsonObject.getInt("id"),
-                jsonObject.getString("name"),
-                jsonObject.getString("description")
-        );
+    private final CollectionSchema schema;
+    private final int id;
+    private final String[] values;
+
+    // An item of the items collection
+    public Data(int id, String name, String description) {
+        this(CollectionSchema.ITEMS_SHAPE, id, new String[]{name, description});
+    }
+
+    // values must have one entry per declared field and is not copied
+    Data(CollectionSchema schema, int id, String[] values) {
+        if (values.length != schema.fields.size()) {
+            throw new IllegalArgumentException("Expected " + schema.fields.size() + " values, got "
+                    + values.length);
+        }
+        this.schema = schema;
+        this.id = id;
+        this.values = values;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public CollectionSchema schema() {
+        return schema;
+    }
+
+    public int fieldCount() {
+        return values.length;
+    }
+
+    // Value of the schema's field at that position
+    public String value(int field) {
+        return values[field];
+    }
+
+    // The item with some values replaced; a null change keeps the current value
+    Data merge(String[] changes) {
+        String[] merged = values.clone();
+        for (int i = 0; i < merged.length && i < changes.length; i++) {
+            if (changes[i] != null) {
+                merged[i] = changes[i];
+            }
+        }
+        return new Data(schema, id, merged);
+    }
+
+    // Fields of the items collection
+    public String name() {
+        return values[0];
+    }
+
+    public String description() {
+        return values[1];
     }
 
     // Method to convert Data to JSON string
     public String toJsonString() {
-        JSONObject jsonObject = new JSONObject();
-        try {
-            jsonObject.put("id", id);
-            jsonObject.put("name", name);
-            jsonObject.put("description", description);
-            return jsonObject.toString();
-        } catch (JSONException e) {
-            e.fillInStackTrace();
-            return "{}";
+        JsonBuffer json = new JsonBuffer(64).writeData(this);
+        return new String(json.bytes(), 0, json.length(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Data)) {
+            return false;
         }
+        Data other = (Data) o;
+        return id == other.id && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * id + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return "Data[id=" + id + ", values=" + Arrays.toString(values) + "]";
     }
 }
@@ -0,0 +1,205 @@
+package com.hiro.localbackend;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot tier in front of the memory-mapped snapshot: items decoded by recent point reads,
+ * kept within a byte budget so large stores need not fit on the heap.
+ *
+ * Entries are weighed by the size of their strings and evicted least recently used first.
+ * The budget is split across stripes, each with its own lock, map and LRU list. Every entry
+ * remembers the snapshot it was decoded from and only answers lookups against that
+ * snapshot, so an entry that a compaction has made stale is never served. Scans do not go
+ * through the cache, so listing a large store does not push out the hot items.
+ */
+final class DataCache {
+
+    private static final int STRIPE_BITS = 4;
+    // Rough heap cost of an entry besides its characters: node, Data, two Strings, map slot
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Node {
+        final int id;
+        Data data;
+        SnapshotFile source;
+        int weight;
+        // Neighbours in the stripe's LRU list; the sentinel's next is the eldest
+        Node previous;
+        Node next;
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Stripe {
+        final long maxBytes;
+        final IntObjectMap<Node> nodes = new IntObjectMap<>();
+        final Node sentinel = new Node(0);
+        long bytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        void unlink(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+        }
+
+        // Make the node the most recently used
+        void append(Node node) {
+            node.previous = sentinel.previous;
+            node.next = sentinel;
+            sentinel.previous.next = node;
+            sentinel.previous = node;
+        }
+
+        void remove(Node node) {
+            unlink(node);
+            nodes.remove(node.id);
+            bytes -= node.weight;
+        }
+    }
+
+    DataCache(long maxBytes) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(maxBytes >> STRIPE_BITS);
+        }
+    }
+
+    // The item as decoded from source, or null if it is not cached for that snapshot
+    Data get(int id, SnapshotFile source) {
+        Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            Node node = stripe.nodes.get(id);
+            if (node == null || node.source != source) {
+                return null;
+            }
+            stripe.unlink(node);
+            stripe.append(node);
+            hits.increment();
+            return node.data;
+        }
+    }
+
+    // Called with each item decoded after get() came back empty, so puts count the misses;
+    // lookups of ids the snapshot does not have are not misses
+    void put(int id, Data data, SnapshotFile source) {
+        misses.increment();
+        int weight = weigh(data);
+        Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            Node node = stripe.nodes.get(id);
+            if (weight > stripe.maxBytes) {
+                // Never cached; drop whatever an older snapshot left under this id
+                if (node != null) {
+                    stripe.remove(node);
+                }
+                return;
+            }
+            if (node == null) {
+                node = new Node(id);
+                stripe.nodes.put(id, node);
+            } else {
+                stripe.unlink(node);
+                stripe.bytes -= node.weight;
+            }
+            node.data = data;
+            node.source = source;
+            node.weight = weight;
+            stripe.append(node);
+            stripe.bytes += weight;
+            while (stripe.bytes > stripe.maxBytes) {
+                stripe.remove(stripe.sentinel.next);
+                evictions.increment();
+            }
+        }
+    }
+
+    // After a compaction: entries for the rewritten ids are dropped, the rest were copied
+    // into the new snapshot unchanged and now answer for it. Entries from any other
+    // snapshot are dropped too.
+    void rebase(SnapshotFile from, SnapshotFile to, int[] changedIds) {
+        for (int id : changedIds) {
+            Stripe stripe = stripeFor(id);
+            synchronized (stripe) {
+                Node node = stripe.nodes.get(id);
+                if (node != null) {
+                    stripe.remove(node);
+                }
+            }
+        }
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Node node = stripe.sentinel.next;
+                while (node != stripe.sentinel) {
+                    Node next = node.next;
+                    if (node.source == from) {
+                        node.source = to;
+                    } else if (node.source != to) {
+                        stripe.remove(node);
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long bytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.nodes.size();
+            }
+        }
+        return size;
+    }
+
+    // Characters are counted at two bytes; most strings are stored at one, so this errs high
+    static int weigh(Data data) {
+        int chars = 0;
+        for (int i = 0; i < data.fieldCount(); i++) {
+            String value = data.value(i);
+            chars += value != null ? value.length() : 0;
+        }
+        return ENTRY_OVERHEAD_BYTES + 2 * chars;
+    }
+
+    private Stripe stripeFor(int id) {
+        return stripes[stripeIndex(id)];
+    }
+
+    static int stripeIndex(int id) {
+        return (id * 0x9E3779B9) >>> (32 - STRIPE_BITS);
+    }
+}
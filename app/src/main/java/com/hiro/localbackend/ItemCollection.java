@@ -0,0 +1,107 @@
+package com.hiro.localbackend;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One registered collection: its schema and a store of its own, with separate snapshot and
+ * log files, id sequence, revisions, change feed and indexes. Nothing is shared between
+ * collections, so a write to one never takes another's locks or touches its files.
+ */
+final class ItemCollection {
+
+    // Index names: the field name for its hash index, plus these suffixes for the others.
+    // Field names cannot hold a '.', so a suffixed name never collides with a field's.
+    static final String SORTED_SUFFIX = ".sorted";
+    static final String TEXT_SUFFIX = ".text";
+
+    private final CollectionSchema schema;
+    private final LocalDatabase store;
+    // Keys of batch operations: "op", "id", then the schema's fields
+    private final byte[][] operationKeys;
+
+    ItemCollection(CollectionSchema schema, LocalDatabase store) {
+        this.schema = schema;
+        this.store = store;
+        List<CollectionSchema.Field> fields = schema.fields;
+        String[] keys = new String[fields.size() + 2];
+        keys[0] = "op";
+        keys[1] = "id";
+        // Indexes are in-memory, so they are declared (and built) on every start
+        for (int i = 0; i < fields.size(); i++) {
+            CollectionSchema.Field field = fields.get(i);
+            int position = i;
+            keys[i + 2] = field.name;
+            if (field.indexed) {
+                store.createIndex(field.name, new SecondaryIndex.Hash(data -> data.value(position)));
+                // Only the first field is queried by prefix and range
+                if (i == 0) {
+                    store.createIndex(field.name + SORTED_SUFFIX,
+                            new SecondaryIndex.Sorted(data -> data.value(position)));
+                }
+            }
+            if (field.fullText) {
+                store.createIndex(field.name + TEXT_SUFFIX,
+                        new SecondaryIndex.FullText(data -> data.value(position)));
+            }
+        }
+        operationKeys = JsonParser.keys(keys);
+    }
+
+    String name() {
+        return schema.name;
+    }
+
+    CollectionSchema schema() {
+        return schema;
+    }
+
+    LocalDatabase store() {
+        return store;
+    }
+
+    byte[][] operationKeys() {
+        return operationKeys;
+    }
+
+    // Values for a new item: the defaults of the fields the request left out
+    String[] withDefaults(String[] values) {
+        String[] filled = values.clone();
+        for (int i = 0; i < filled.length; i++) {
+            if (filled[i] == null) {
+                filled[i] = schema.fields.get(i).defaultValue;
+            }
+        }
+        return filled;
+    }
+
+    // Why the values break the schema, or null if they do not. When creating, required
+    // fields have to be set; otherwise a null value is one the write leaves as it is, so
+    // only given values are checked.
+    String validate(String[] values, boolean creating) {
+        for (int i = 0; i < values.length; i++) {
+            CollectionSchema.Field field = schema.fields.get(i);
+            String value = values[i];
+            if (value == null) {
+                if (creating && field.required) {
+                    return label(field) + " is required";
+                }
+                continue;
+            }
+            if (field.type == CollectionSchema.Field.Type.STRING) {
+                if (field.required && value.isEmpty()) {
+                    return label(field) + " is required";
+                }
+                if (field.maxLength > 0 && value.length() > field.maxLength) {
+                    return label(field) + " is longer than " + field.maxLength + " characters";
+                }
+            }
+        }
+        return null;
+    }
+
+    // "Name" for the name field
+    private static String label(CollectionSchema.Field field) {
+        return field.name.substring(0, 1).toUpperCase(Locale.ROOT) + field.name.substring(1);
+    }
+}
@@ -0,0 +1,84 @@
+package com.hiro.localbackend;
+
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Serializes items into a JSON array lazily, as the HTTP layer reads from it.
+ *
+ * Only the items needed to fill the caller's read are pulled from the iterator, so the
+ * memory used is one buffer's worth regardless of how many items there are. Used as the
+ * body of a chunked response.
+ */
+final class JsonArrayStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Iterator<Data> items;
+    private final int fields;
+    private final JsonBuffer buffer = new JsonBuffer(BUFFER_SIZE);
+    private int position;
+    private boolean started;
+    private boolean finished;
+
+    JsonArrayStream(Iterator<Data> items) {
+        this(items, JsonBuffer.ALL_FIELDS);
+    }
+
+    // fields is a mask of JsonBuffer.FIELD_* bits
+    JsonArrayStream(Iterator<Data> items, int fields) {
+        this.items = items;
+        this.fields = fields;
+    }
+
+    @Override
+    public int read() {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == buffer.length() && !fill()) {
+            return -1;
+        }
+        int n = Math.min(length, buffer.length() - position);
+        System.arraycopy(buffer.bytes(), position, target, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length() - position;
+    }
+
+    // Refill the buffer with as many whole items as fit; false once everything is written
+    private boolean fill() {
+        if (finished) {
+            return false;
+        }
+        buffer.reset();
+        position = 0;
+        if (!started) {
+            buffer.writeByte('[');
+        }
+        while (buffer.length() < BUFFER_SIZE && items.hasNext()) {
+            if (started) {
+                buffer.writeByte(',');
+            }
+            started = true;
+            buffer.writeData(items.next(), fields);
+        }
+        if (!items.hasNext()) {
+            // Also covers the empty list, where '[' was written just above
+            started = true;
+            buffer.writeByte(']');
+            finished = true;
+        }
+        return buffer.length() > 0;
+    }
+}
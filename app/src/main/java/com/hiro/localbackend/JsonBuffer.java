@@ -0,0 +1,264 @@
+package com.hiro.localbackend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Growable byte buffer that writes JSON as UTF-8 directly, without building Strings or
+ * org.json objects on the way. Meant to be reused: {@link #reset()} keeps the array.
+ */
+final class JsonBuffer implements Codec.Output {
+
+    // Field selection for writeData: the id, then fieldBit(i) for the schema's field i
+    static final int FIELD_ID = 1;
+    static final int ALL_FIELDS = Integer.MAX_VALUE;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes;
+    private int length;
+
+    JsonBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    @Override
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    JsonBuffer writeByte(char c) {
+        ensure(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    // ASCII-only text such as punctuation and field names
+    JsonBuffer writeAscii(String text) {
+        int n = text.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    JsonBuffer writeInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return writeAscii("-2147483648");
+        }
+        ensure(11);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = length + digits;
+        for (int i = end - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+        return this;
+    }
+
+    JsonBuffer writeLong(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return writeInt((int) value);
+        }
+        return writeAscii(Long.toString(value));
+    }
+
+    // Quoted, escaped JSON string encoded as UTF-8
+    JsonBuffer writeString(String text) {
+        int n = text.length();
+        // Sized for plain text; escapes and multi-byte chars grow the array as they come,
+        // so a short buffer is not replaced up front for a worst case that rarely happens
+        ensure(n + 8);
+        byte[] out = bytes;
+        int pos = length;
+        out[pos++] = '"';
+        for (int i = 0; i < n; i++) {
+            if (out.length - pos < 8) {
+                // Room for the longest escape plus the closing quote
+                length = pos;
+                ensure(n - i + 8);
+                out = bytes;
+            }
+            char c = text.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    out[pos++] = '\\';
+                }
+                out[pos++] = (byte) c;
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                pos = escape(out, pos, c);
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate; same replacement String.getBytes uses
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out[pos++] = '"';
+        length = pos;
+        return this;
+    }
+
+    // {"id":1,"name":"...","description":"..."}, with the item's own fields
+    JsonBuffer writeData(Data data) {
+        return writeData(data, ALL_FIELDS);
+    }
+
+    // Only the fields whose bits are set, in schema order
+    @Override
+    public JsonBuffer writeData(Data data, int fields) {
+        char separator = '{';
+        if ((fields & FIELD_ID) != 0) {
+            writeByte(separator).writeAscii("\"id\":").writeInt(data.id());
+            separator = ',';
+        }
+        List<CollectionSchema.Field> declared = data.schema().fields;
+        for (int i = 0; i < declared.size(); i++) {
+            if ((fields & fieldBit(i)) != 0) {
+                CollectionSchema.Field field = declared.get(i);
+                writeByte(separator).writeByte('"').writeAscii(field.name).writeAscii("\":");
+                writeValue(field.type, data.value(i));
+                separator = ',';
+            }
+        }
+        return separator == '{' ? writeAscii("{}") : writeByte('}');
+    }
+
+    // Stored values of the other types are already in their JSON spelling
+    private void writeValue(CollectionSchema.Field.Type type, String value) {
+        if (value == null) {
+            writeAscii("null");
+        } else if (type == CollectionSchema.Field.Type.STRING) {
+            writeString(value);
+        } else {
+            writeAscii(value);
+        }
+    }
+
+    // {"seq":7,"type":"update","id":1,"item":{...}}; item is null for deletes
+    JsonBuffer writeChange(ChangeFeed.Change change) {
+        writeAscii("{\"seq\":").writeLong(change.seq())
+                .writeAscii(",\"type\":\"").writeAscii(change.type().label)
+                .writeAscii("\",\"id\":").writeInt(change.id())
+                .writeAscii(",\"item\":");
+        if (change.data() != null) {
+            writeData(change.data());
+        } else {
+            writeAscii("null");
+        }
+        return writeByte('}');
+    }
+
+    // JSON array of the items; gives up and returns false once the buffer passes maxBytes
+    @Override
+    public boolean writeArray(Iterator<Data> items, int fields, int maxBytes) {
+        writeByte('[');
+        boolean first = true;
+        while (items.hasNext()) {
+            if (length > maxBytes) {
+                return false;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeData(items.next(), fields);
+        }
+        writeByte(']');
+        return length <= maxBytes;
+    }
+
+    // Bit selecting the schema's field in writeData
+    static int fieldBit(int field) {
+        return FIELD_ID << (field + 1);
+    }
+
+    // The id and every field of a schema with count fields
+    static int allFields(int count) {
+        return (FIELD_ID << (count + 1)) - 1;
+    }
+
+    // Bit mask for a comma-separated list of "id" and field names, or -1 if one is unknown
+    static int parseFields(CollectionSchema schema, String list) {
+        int fields = 0;
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (name.equals("id")) {
+                fields |= FIELD_ID;
+            } else if (!name.isEmpty()) {
+                int field = schema.indexOf(name);
+                if (field < 0) {
+                    return -1;
+                }
+                fields |= fieldBit(field);
+            }
+        }
+        return fields;
+    }
+
+    private static int escape(byte[] out, int pos, char c) {
+        out[pos++] = '\\';
+        switch (c) {
+            case '\n':
+                out[pos++] = 'n';
+                break;
+            case '\r':
+                out[pos++] = 'r';
+                break;
+            case '\t':
+                out[pos++] = 't';
+                break;
+            case '\b':
+                out[pos++] = 'b';
+                break;
+            case '\f':
+                out[pos++] = 'f';
+                break;
+            default:
+                out[pos++] = 'u';
+                out[pos++] = HEX[(c >> 12) & 0xF];
+                out[pos++] = HEX[(c >> 8) & 0xF];
+                out[pos++] = HEX[(c >> 4) & 0xF];
+                out[pos++] = HEX[c & 0xF];
+        }
+        return pos;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package com.hiro.localbackend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Pull parser for UTF-8 JSON in a byte array, the reading side of {@link JsonBuffer}.
+ *
+ * Works on the bytes as they arrived: object keys are compared against pre-encoded names
+ * without becoming Strings, numbers are parsed in place, and a string value is decoded
+ * once into its final String (escape-free ASCII without any intermediate copy). One
+ * instance can be {@link #reset} and reused, e.g. for every line of an NDJSON body.
+ */
+final class JsonParser {
+
+    enum Token {
+        BEGIN_OBJECT, BEGIN_ARRAY, STRING, NUMBER, BOOLEAN, NULL
+    }
+
+    private static final byte[][] NO_KEYS = {};
+
+    // Containers are tracked in bit sets, which caps the nesting
+    private static final int MAX_DEPTH = 64;
+
+    private byte[] bytes;
+    private int offset;
+    private int position;
+    private int end;
+    private int depth;
+    // Bit d set: the container at depth d is an array / has had no element yet
+    private long arrays;
+    private long empty;
+    // A key and its colon were just read, so a value comes next without a comma
+    private boolean afterKey;
+    // Scratch for strings with escapes or non-ASCII text
+    private char[] chars;
+
+    JsonParser(byte[] bytes, int offset, int length) {
+        reset(bytes, offset, length);
+    }
+
+    void reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.position = offset;
+        this.end = offset + length;
+        this.depth = 0;
+        this.arrays = 0;
+        this.empty = 0;
+        this.afterKey = false;
+    }
+
+    // Keys for nextKey, encoded once
+    static byte[][] keys(String... names) {
+        byte[][] keys = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return keys;
+    }
+
+    // A whole body holding one item object of the schema; id and unknown keys are skipped,
+    // absent or null fields come back null
+    Codec.Item readItem(CollectionSchema schema) throws Codec.MalformedException {
+        String[] values = new String[schema.fields.size()];
+        beginObject();
+        while (hasNext()) {
+            int key = nextKey(schema.keys);
+            if (key > 0 && peek() != Token.NULL) {
+                values[key - 1] = nextValue(schema.fields.get(key - 1));
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+        requireEnd();
+        return new Codec.Item(values);
+    }
+
+    // One item object as JsonBuffer writes it; id is required, missing fields read as
+    // their defaults
+    Data readData(CollectionSchema schema) throws Codec.MalformedException {
+        boolean hasId = false;
+        int id = 0;
+        String[] values = new String[schema.fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = schema.fields.get(i).defaultValue;
+        }
+        beginObject();
+        while (hasNext()) {
+            int key = nextKey(schema.keys);
+            if (peek() == Token.NULL) {
+                skipValue();
+            } else if (key == 0) {
+                id = nextInt();
+                hasId = true;
+            } else if (key > 0) {
+                values[key - 1] = nextValue(schema.fields.get(key - 1));
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+        if (!hasId) {
+            throw new Codec.MalformedException("Item without an id");
+        }
+        return new Data(schema, id, values);
+    }
+
+    // An item of the items collection
+    Data readData() throws Codec.MalformedException {
+        return readData(CollectionSchema.ITEMS_SHAPE);
+    }
+
+    // A field value in its stored form; the JSON type has to match the field's
+    String nextValue(CollectionSchema.Field field) throws Codec.MalformedException {
+        try {
+            switch (field.type) {
+                case INTEGER:
+                    return Long.toString(nextLong());
+                case NUMBER:
+                    return Double.toString(nextDouble());
+                case BOOLEAN:
+                    return nextBoolean() ? "true" : "false";
+                default:
+                    return nextString();
+            }
+        } catch (NumberFormatException e) {
+            throw error(field.name + " is not a valid " + field.type.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    // A string, number or boolean as text, for values whose type is only known later
+    String nextScalar() throws Codec.MalformedException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            return nextString();
+        }
+        if (token == Token.BOOLEAN) {
+            return nextBoolean() ? "true" : "false";
+        }
+        if (token != Token.NUMBER) {
+            throw error("Expected a string, number or boolean");
+        }
+        separator();
+        int start = position;
+        scanNumber();
+        return new String(bytes, start, position - start, StandardCharsets.US_ASCII);
+    }
+    void beginObject() throws Codec.MalformedException {
+        begin('{', false);
+    }
+
+    void endObject() throws Codec.MalformedException {
+        finish('}', false);
+    }
+
+    void beginArray() throws Codec.MalformedException {
+        begin('[', true);
+    }
+
+    void endArray() throws Codec.MalformedException {
+        finish(']', true);
+    }
+
+    // Whether the current object or array has another entry
+    boolean hasNext() throws Codec.MalformedException {
+        int c = peekByte();
+        return c != '}' && c != ']';
+    }
+
+    // Index of the key that comes next in keys, or -1 for any other key; the colon is consumed
+    int nextKey(byte[][] keys) throws Codec.MalformedException {
+        if (depth == 0 || isArray()) {
+            throw error("Expected a value, not a key");
+        }
+        separator();
+        if (peekByte() != '"') {
+            throw error("Expected a key");
+        }
+        int start = position + 1;
+        int close = scanString(start);
+        int index = -1;
+        if (close >= 0) {
+            int length = close - start;
+            for (int i = 0; i < keys.length && index < 0; i++) {
+                if (keys[i].length == length && rangeEquals(keys[i], start)) {
+                    index = i;
+                }
+            }
+            position = close + 1;
+        } else {
+            // Escaped key; rare enough to decode and compare as text
+            String key = nextStringLiteral();
+            for (int i = 0; i < keys.length && index < 0; i++) {
+                if (key.equals(new String(keys[i], StandardCharsets.UTF_8))) {
+                    index = i;
+                }
+            }
+        }
+        if (peekByte() != ':') {
+            throw error("Expected ':'");
+        }
+        position++;
+        afterKey = true;
+        return index;
+    }
+
+    Token peek() throws Codec.MalformedException {
+        int c = peekValue();
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw error("Unexpected character");
+        }
+    }
+
+    String nextString() throws Codec.MalformedException {
+        if (peekValue() != '"') {
+            throw error("Expected a string");
+        }
+        separator();
+        return nextStringLiteral();
+    }
+
+    // An integer that fits in an int. Malformed numbers are a syntax error; a well-formed
+    // number that is fractional or too big is consumed and reported as NumberFormatException.
+    int nextInt() throws Codec.MalformedException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Out of int range: " + value);
+        }
+        return (int) value;
+    }
+
+    long nextLong() throws Codec.MalformedException {
+        if (peek() != Token.NUMBER) {
+            throw error("Expected a number");
+        }
+        separator();
+        int start = position;
+        if (!scanNumber()) {
+            throw new NumberFormatException("Not an integer: "
+                    + new String(bytes, start, position - start, StandardCharsets.US_ASCII));
+        }
+        boolean negative = bytes[start] == '-';
+        long value = 0;
+        for (int p = negative ? start + 1 : start; p < position; p++) {
+            int digit = bytes[p] - '0';
+            // Accumulate negatively so Long.MIN_VALUE fits
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Out of long range");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw new NumberFormatException("Out of long range");
+        }
+        return negative ? value : -value;
+    }
+
+    // Any finite number, integer or not; one too big for a double is a NumberFormatException
+    double nextDouble() throws Codec.MalformedException {
+        if (peek() != Token.NUMBER) {
+            throw error("Expected a number");
+        }
+        separator();
+        int start = position;
+        scanNumber();
+        double value = Double.parseDouble(new String(bytes, start, position - start, StandardCharsets.US_ASCII));
+        if (Double.isInfinite(value)) {
+            throw new NumberFormatException("Out of double range");
+        }
+        return value;
+    }
+
+    boolean nextBoolean() throws Codec.MalformedException {
+        if (peek() != Token.BOOLEAN) {
+            throw error("Expected a boolean");
+        }
+        separator();
+        if (bytes[position] == 't') {
+            literal("true");
+            return true;
+        }
+        literal("false");
+        return false;
+    }
+
+    // Skips the next value, whatever it is, including everything nested in it
+    void skipValue() throws Codec.MalformedException {
+        Token token = peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextKey(NO_KEYS);
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                nextString();
+                break;
+            case NUMBER:
+                separator();
+                scanNumber();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            default:
+                separator();
+                literal("null");
+        }
+    }
+
+    // Only whitespace may follow the value
+    void requireEnd() throws Codec.MalformedException {
+        skipWhitespace();
+        if (position != end) {
+            throw error("Unexpected data after the value");
+        }
+    }
+
+    private void begin(char open, boolean array) throws Codec.MalformedException {
+        if (peekValue() != open) {
+            throw error("Expected '" + open + "'");
+        }
+        separator();
+        if (depth == MAX_DEPTH) {
+            throw error("Nested too deeply");
+        }
+        position++;
+        long bit = 1L << depth++;
+        arrays = array ? arrays | bit : arrays & ~bit;
+        empty |= bit;
+    }
+
+    private void finish(char close, boolean array) throws Codec.MalformedException {
+        if (depth == 0 || isArray() != array || peekByte() != close) {
+            throw error("Expected '" + close + "'");
+        }
+        position++;
+        depth--;
+    }
+
+    private boolean isArray() {
+        return (arrays & (1L << (depth - 1))) != 0;
+    }
+
+    // First byte of the next value, looking past the comma before it in an array
+    private int peekValue() throws Codec.MalformedException {
+        int c = peekByte();
+        if (c == ',' && depth > 0 && isArray() && (empty & (1L << (depth - 1))) == 0) {
+            int saved = position;
+            position++;
+            c = peekByte();
+            position = saved;
+        }
+        return c;
+    }
+
+    // Consumes the comma that separates entries, or checks that none is needed
+    private void separator() throws Codec.MalformedException {
+        skipWhitespace();
+        if (depth == 0) {
+            return;
+        }
+        if (afterKey) {
+            // A value after its key; the comma came before the key
+            afterKey = false;
+            return;
+        }
+        long bit = 1L << (depth - 1);
+        if ((empty & bit) != 0) {
+            empty &= ~bit;
+        } else {
+            if (position >= end || bytes[position] != ',') {
+                throw error("Expected ','");
+            }
+            position++;
+            skipWhitespace();
+        }
+    }
+
+    // Index of the closing quote of an escape-free string starting at start, or -1 if the
+    // string has escapes
+    private int scanString(int start) throws Codec.MalformedException {
+        for (int p = start; p < end; p++) {
+            byte b = bytes[p];
+            if (b == '"') {
+                return p;
+            }
+            if (b == '\\') {
+                return -1;
+            }
+            if (b >= 0 && b < 0x20) {
+                throw error("Control character in string");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    // The string at the current position, which is its opening quote
+    private String nextStringLiteral() throws Codec.MalformedException {
+        int start = position + 1;
+        boolean ascii = true;
+        for (int p = start; p < end; p++) {
+            byte b = bytes[p];
+            if (b == '"') {
+                position = p + 1;
+                return new String(bytes, start, p - start,
+                        ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                break;
+            }
+            if (b < 0) {
+                ascii = false;
+            } else if (b < 0x20) {
+                throw error("Control character in string");
+            }
+        }
+        return decodeString(start);
+    }
+
+    // Slow path: escapes and UTF-8 decoded by hand into the scratch chars
+    private String decodeString(int start) throws Codec.MalformedException {
+        if (chars == null || chars.length < end - start) {
+            chars = new char[Math.max(64, end - start)];
+        }
+        char[] out = chars;
+        int n = 0;
+        int p = start;
+        while (true) {
+            if (p >= end) {
+                throw error("Unterminated string");
+            }
+            int b = bytes[p++] & 0xFF;
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\') {
+                if (p >= end) {
+                    throw error("Unterminated string");
+                }
+                int escaped = bytes[p++];
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        out[n++] = (char) escaped;
+                        break;
+                    case 'b':
+                        out[n++] = '\b';
+                        break;
+                    case 'f':
+                        out[n++] = '\f';
+                        break;
+                    case 'n':
+                        out[n++] = '\n';
+                        break;
+                    case 'r':
+                        out[n++] = '\r';
+                        break;
+                    case 't':
+                        out[n++] = '\t';
+                        break;
+                    case 'u':
+                        if (p + 4 > end) {
+                            throw error("Truncated \\u escape");
+                        }
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(bytes[p++], 16);
+                            if (digit < 0) {
+                                throw error("Bad \\u escape");
+                            }
+                            value = value << 4 | digit;
+                        }
+                        out[n++] = (char) value;
+                        break;
+                    default:
+                        throw error("Bad escape");
+                }
+            } else if (b < 0x20) {
+                throw error("Control character in string");
+            } else if (b < 0x80) {
+                out[n++] = (char) b;
+            } else {
+                // Multi-byte UTF-8 sequence; invalid ones become U+FFFD like new String does
+                int extra = b >= 0xF0 ? 3 : b >= 0xE0 ? 2 : b >= 0xC0 ? 1 : -1;
+                if (extra < 0 || b > 0xF4 || p + extra > end) {
+                    out[n++] = '\uFFFD';
+                    continue;
+                }
+                int codePoint = b & (0x3F >> extra);
+                boolean valid = true;
+                for (int i = 0; i < extra; i++) {
+                    int next = bytes[p + i] & 0xFF;
+                    if ((next & 0xC0) != 0x80) {
+                        valid = false;
+                        break;
+                    }
+                    codePoint = codePoint << 6 | (next & 0x3F);
+                }
+                if (!valid) {
+                    out[n++] = '\uFFFD';
+                    continue;
+                }
+                p += extra;
+                if (codePoint >= 0x10000) {
+                    out[n++] = Character.highSurrogate(codePoint);
+                    out[n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    out[n++] = (char) codePoint;
+                }
+            }
+        }
+        position = p;
+        return new String(out, 0, n);
+    }
+
+    // Moves past a number, checking it against the JSON grammar; true if it has no
+    // fraction or exponent
+    private boolean scanNumber() throws Codec.MalformedException {
+        if (position < end && bytes[position] == '-') {
+            position++;
+        }
+        if (position < end && bytes[position] == '0') {
+            position++;
+        } else if (digits() == 0) {
+            throw error("Malformed number");
+        }
+        boolean integral = true;
+        if (position < end && bytes[position] == '.') {
+            position++;
+            integral = false;
+            if (digits() == 0) {
+                throw error("Malformed number");
+            }
+        }
+        if (position < end && (bytes[position] == 'e' || bytes[position] == 'E')) {
+            position++;
+            integral = false;
+            if (position < end && (bytes[position] == '+' || bytes[position] == '-')) {
+                position++;
+            }
+            if (digits() == 0) {
+                throw error("Malformed number");
+            }
+        }
+        if (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            // A digit after a leading zero
+            throw error("Malformed number");
+        }
+        return integral;
+    }
+
+    private int digits() {
+        int start = position;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            position++;
+        }
+        return position - start;
+    }
+
+    private void literal(String word) throws Codec.MalformedException {
+        int n = word.length();
+        if (end - position < n) {
+            throw error("Expected " + word);
+        }
+        for (int i = 0; i < n; i++) {
+            if (bytes[position + i] != word.charAt(i)) {
+                throw error("Expected " + word);
+            }
+        }
+        position += n;
+    }
+
+    private boolean rangeEquals(byte[] key, int start) {
+        for (int i = 0; i < key.length; i++) {
+            if (bytes[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int peekByte() throws Codec.MalformedException {
+        skipWhitespace();
+        if (position >= end) {
+            throw error("Unexpected end of input");
+        }
+        return bytes[position];
+    }
+
+    private void skipWhitespace() {
+        while (position < end && isWhitespace(bytes[position])) {
+            position++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private Codec.MalformedException error(String message) {
+        return new Codec.MalformedException(message + " at byte " + (position - offset));
+    }
+}
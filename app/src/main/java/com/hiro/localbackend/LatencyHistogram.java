@@ -0,0 +1,94 @@
+package com.hiro.localbackend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the HdrHistogram style: values are bucketed by their
+ * highest bit, and each power-of-two range is split into 16 linear sub-buckets, so any
+ * recorded value is known to within about 6%. Counts are kept in microseconds up to
+ * about 12 days.
+ *
+ * {@link #record} does not allocate or lock, so it can sit on every request. Readers see
+ * counters that are each up to date but may be mid-update relative to each other, which
+ * is fine for monitoring.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Largest value kept exactly; bigger values land in the last bucket
+    private static final long MAX_MICROS = (1L << 40) - 1;
+    private static final int BUCKETS = indexOf(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    // Convenience for timing a block: record(System.nanoTime() - start)
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sumMicros() {
+        return sumMicros.get();
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    // Value at the given quantile (0..1) in microseconds; the top of its bucket, so never low
+    public long percentileMicros(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    // Values below 2 * SUB_BUCKETS map to themselves; above, each power of two gets
+    // SUB_BUCKETS slots indexed by the bits just below the top one
+    static int indexOf(long micros) {
+        int exponent = Math.max(0, 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS);
+        return exponent * SUB_BUCKETS + (int) (micros >>> exponent);
+    }
+
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) exponent * SUB_BUCKETS;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
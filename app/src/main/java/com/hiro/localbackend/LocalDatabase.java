@@ -4,126 +4,1128 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 
 public class LocalDatabase {
 
     private static final String TAG = "LocalDatabase";
+    // Legacy SharedPreferences keys, only read to migrate old installs
     private static final String DATA_KEY = "items_data";
+    private static final String LOG_GENERATION_KEY = "items_log_generation";
+
+    static final WriteAheadLog.SyncPolicy DEFAULT_SYNC_POLICY = WriteAheadLog.SyncPolicy.ALWAYS;
+    static final long DEFAULT_SYNC_INTERVAL_MS = 100;
+    // Under INTERVAL and NEVER, log records queued past this are written without waiting
+    // out the interval
+    static final long DEFAULT_FLUSH_THRESHOLD_BYTES = 256 * 1024;
+    static final long DEFAULT_COMPACTION_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+    // Changes kept for incremental sync; older positions have to resync from a listing
+    static final int CHANGE_FEED_CAPACITY = 4096;
+
+    // Writes to ids in different stripes never contend with each other
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    // Overlay marker for an id that is in the snapshot but has been deleted since
+    private static final Data TOMBSTONE = new Data(0, "", "");
+
+    // One slice of the overlay. Writers hold the lock exclusively; readers validate an
+    // optimistic stamp and only take the read lock if they raced a writer.
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        final IntObjectMap<Data> overlay = new IntObjectMap<>();
+        // Last write to each live id in the overlay. Compaction drops an id's entry with its
+        // overlay entry, so this is bounded by the overlay rather than by the store.
+        final IntObjectMap<Revision> revisions = new IntObjectMap<>();
+    }
+
+    /**
+     * Latency of the store's public operations, including the wait for the log sync on
+     * writes. Recorded here and exported by the server's {@link Metrics}.
+     */
+    public static final class Timings {
+        public final LatencyHistogram getData = new LatencyHistogram();
+        public final LatencyHistogram saveData = new LatencyHistogram();
+        public final LatencyHistogram write = new LatencyHistogram();
+        public final LatencyHistogram batch = new LatencyHistogram();
+        public final LatencyHistogram compaction = new LatencyHistogram();
+    }
+
+    /**
+     * Outcome of a compare-and-swap write: the item as written and the revision it got, or
+     * why nothing was written. Deletes leave data null.
+     */
+    public record WriteResult(Status status, Data data, Revision revision) {
+        public enum Status {
+            WRITTEN,
+            NOT_FOUND,
+            // The item exists but is no longer at the expected version
+            CONFLICT
+        }
+
+        static final WriteResult NOT_FOUND = new WriteResult(Status.NOT_FOUND, null, null);
+        static final WriteResult CONFLICT = new WriteResult(Status.CONFLICT, null, null);
+    }
+
+    // Expected version that makes a compare-and-swap write unconditional
+    public static final long ANY_VERSION = -1;
+
+    private final Timings timings = new Timings();
+
+    private final File directory;
+    // Fields of the items in this store
+    private final CollectionSchema schema;
+    private final SharedPreferences sharedPreferences;
+
+    // Memory-mapped base state; records are decoded on demand
+    private volatile SnapshotFile snapshot;
+    // Changes made since the snapshot, split by id
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger size = new AtomicInteger();
+    // Ids that are live in the overlay but not in the snapshot, kept sorted so ordered scans
+    // can seek into them the same way they seek into the snapshot table
+    private final ConcurrentSkipListSet<Integer> addedIds = new ConcurrentSkipListSet<>();
+    // Secondary indexes declared with createIndex; updated under the writer's stripe lock
+    private final Map<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+    // Next id to hand out; persisted through the snapshot header and the log records
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    // Hands out revision versions and keeps the recent changes for incremental sync
+    private final ChangeFeed changes = new ChangeFeed(CHANGE_FEED_CAPACITY);
+    private final Revision startRevision = new Revision(0, System.currentTimeMillis());
+    private final AtomicReference<Revision> latestRevision = new AtomicReference<>(startRevision);
+    // Revision of ids without an entry in their stripe's revisions: startRevision until a
+    // compaction absorbs writes, then the newest write before its cut, which is no older
+    // than any of theirs. Only changes under every stripe lock.
+    private volatile Revision compactedRevision = startRevision;
 
-    private Context context;
-    private String app_name;
-    private SharedPreferences sharedPreferences;
-    private SharedPreferences.Editor editor;
+    // Prefix of this store's snapshot and log files, so several stores can share a directory
+    private final String fileKey;
+    private final File snapshotFile;
+    // Items decoded from the snapshot by point reads; null when the budget is 0
+    private final DataCache cache;
+    private final WriteAheadLog log;
+    private final long compactionThresholdBytes;
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LocalDatabase-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean();
 
     public LocalDatabase(Context context) {
-        this.context = context;
-        app_name = context.getPackageName();
-        sharedPreferences = context.getSharedPreferences(app_name, Context.MODE_PRIVATE);
-        editor = sharedPreferences.edit();
+        this(context, DEFAULT_SYNC_POLICY, DEFAULT_SYNC_INTERVAL_MS, DEFAULT_COMPACTION_THRESHOLD_BYTES);
     }
 
-    // Save list of Data to SharedPreferences
-    public void saveData(List<Data> dataList) {
-        JSONArray jsonArray = new JSONArray();
+    public LocalDatabase(Context context, WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMs,
+                         long compactionThresholdBytes) {
+        this(context.getFilesDir(),
+                context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE),
+                syncPolicy, syncIntervalMs, compactionThresholdBytes);
+    }
+
+    // legacyPreferences may be null when there is nothing to migrate
+    LocalDatabase(File directory, SharedPreferences legacyPreferences,
+                  WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMs,
+                  long compactionThresholdBytes) {
+        this(directory, DATA_KEY, legacyPreferences, syncPolicy, syncIntervalMs,
+                DEFAULT_FLUSH_THRESHOLD_BYTES, compactionThresholdBytes, DEFAULT_CACHE_BYTES);
+    }
+
+    LocalDatabase(File directory, String fileKey, SharedPreferences legacyPreferences,
+                  WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMs, long flushThresholdBytes,
+                  long compactionThresholdBytes, long cacheBytes) {
+        this(directory, fileKey, CollectionSchema.ITEMS_SHAPE, legacyPreferences, syncPolicy,
+                syncIntervalMs, flushThresholdBytes, compactionThresholdBytes, cacheBytes);
+    }
+
+    // A store of items with the schema's fields, whose files are named after fileKey; the
+    // items store keeps the original key, so existing installs open their data unchanged.
+    // cacheBytes bounds the decoded items kept on the heap for point reads; everything else
+    // is read from the mapped snapshot.
+    LocalDatabase(File directory, String fileKey, CollectionSchema schema, SharedPreferences legacyPreferences,
+                  WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMs, long flushThresholdBytes,
+                  long compactionThresholdBytes, long cacheBytes) {
+        this.directory = directory;
+        this.schema = schema;
+        this.cache = cacheBytes > 0 ? new DataCache(cacheBytes) : null;
+        this.fileKey = fileKey;
+        this.sharedPreferences = legacyPreferences;
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        this.snapshotFile = new File(directory, fileKey + ".snapshot");
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        migrateJsonSnapshot();
+        snapshot = openSnapshot();
+        size.set(snapshot.count());
+        nextId.set(snapshot.nextId());
+        long logBytes = replayLog();
+
+        long generation = Math.max(snapshot.logGeneration(), lastLogGeneration() + 1);
+        try {
+            log = new WriteAheadLog(directory, fileKey, generation, syncPolicy, syncIntervalMs,
+                    flushThresholdBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open the item log", e);
+        }
+
+        changes.startRecording();
+
+        if (logBytes > compactionThresholdBytes && compacting.compareAndSet(false, true)) {
+            startCompaction();
+        }
+    }
 
-        for (Data data : dataList) {
+    // One-time conversion of the old SharedPreferences JSON payload into a binary snapshot
+    private void migrateJsonSnapshot() {
+        if (sharedPreferences == null || !sharedPreferences.contains(DATA_KEY)) {
+            return;
+        }
+
+        if (!snapshotFile.exists()) {
+            List<Data> dataList = new ArrayList<>();
+            byte[] json = sharedPreferences.getString(DATA_KEY, "[]").getBytes(StandardCharsets.UTF_8);
             try {
-                JSONObject jsonObject = new JSONObject(data.toJsonString());
-                jsonArray.put(jsonObject);
-            } catch (JSONException e) {
-                Log.e(TAG, "Error converting data to JSON", e);
+                JsonParser parser = new JsonParser(json, 0, json.length);
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    dataList.add(parser.readData(schema));
+                }
+                parser.endArray();
+            } catch (Codec.MalformedException | NumberFormatException e) {
+                Log.e(TAG, "Error parsing JSON data", e);
+                return;
+            }
+            dataList.sort(Comparator.comparingInt(Data::id));
+
+            int migratedNextId = 1;
+            for (Data data : dataList) {
+                migratedNextId = Math.max(migratedNextId, data.id() + 1);
             }
+
+            try (SnapshotFile.Writer writer = new SnapshotFile.Writer(snapshotFile, dataList.size())) {
+                for (Data data : dataList) {
+                    writer.add(data);
+                }
+                writer.commit(migratedNextId, sharedPreferences.getLong(LOG_GENERATION_KEY, 0));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to migrate items to a binary snapshot", e);
+                return;
+            }
+            Log.i(TAG, "Migrated " + dataList.size() + " items to " + snapshotFile.getName());
         }
 
-        editor.putString(DATA_KEY, jsonArray.toString());
-        editor.apply();
+        // The snapshot now owns the data; drop the JSON copy
+        sharedPreferences.edit()
+                .remove(DATA_KEY)
+                .remove(LOG_GENERATION_KEY)
+                .commit();
     }
 
-    // Get list of Data from SharedPreferences
-    public List<Data> getData() {
-        List<Data> dataList = new ArrayList<>();
-        String jsonArrayString = sharedPreferences.getString(DATA_KEY, "[]");
-
+    private SnapshotFile openSnapshot() {
+        if (!snapshotFile.exists()) {
+            return SnapshotFile.empty();
+        }
         try {
-            JSONArray jsonArray = new JSONArray(jsonArrayString);
+            return SnapshotFile.open(snapshotFile, schema);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open " + snapshotFile.getName(), e);
+        }
+    }
+
+    // Apply every log segment written since the snapshot, oldest first. Runs before any
+    // other thread can see this instance, so it skips the stripe locks.
+    private long replayLog() {
+        long snapshotGeneration = snapshot.logGeneration();
+        long bytes = 0;
+
+        WriteAheadLog.Visitor visitor = new WriteAheadLog.Visitor() {
+            @Override
+            public void put(int id, String[] values) {
+                putLocked(stripeFor(id), new Data(schema, id, schema.fit(values)));
+            }
+
+            @Override
+            public void delete(int id) {
+                deleteLocked(stripeFor(id), id);
+            }
 
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject jsonObject = jsonArray.getJSONObject(i);
-                Data data = new Data(jsonObject);
-                dataList.add(data);
+            @Override
+            public void clear() {
+                clearLocked();
+            }
+        };
+
+        for (long generation : WriteAheadLog.listGenerations(directory, fileKey)) {
+            File segment = WriteAheadLog.segmentFile(directory, fileKey, generation);
+            if (generation < snapshotGeneration) {
+                // Already folded into the snapshot by a compaction that finished
+                if (!segment.delete()) {
+                    Log.w(TAG, "Could not delete stale log segment " + segment.getName());
+                }
+                continue;
+            }
+            try {
+                bytes += WriteAheadLog.replay(segment, visitor);
+            } catch (IOException e) {
+                Log.e(TAG, "Error replaying log segment " + segment.getName(), e);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error parsing JSON data", e);
         }
+        return bytes;
+    }
+
+    private long lastLogGeneration() {
+        List<Long> generations = WriteAheadLog.listGenerations(directory, fileKey);
+        return generations.isEmpty() ? -1 : generations.get(generations.size() - 1);
+    }
 
+    // Replace the whole collection with the given list and persist it
+    public void saveData(List<Data> dataList) {
+        long start = System.nanoTime();
+        long seq;
+        long[] stamps = lockAll();
+        try {
+            // One transaction, so a crash cannot leave the collection half replaced
+            log.appendBegin();
+            clearLocked();
+            log.appendClear();
+            for (Data data : dataList) {
+                String[] values = valuesOf(data);
+                putLocked(stripeFor(data.id()), new Data(schema, data.id(), values));
+                log.appendPut(data.id(), values);
+            }
+            seq = log.appendCommit();
+        } finally {
+            unlockAll(stamps);
+        }
+        log.awaitDurable(seq);
+        timings.saveData.recordSince(start);
+        maybeCompact();
+    }
+
+    // Get all items, ordered by id
+    public List<Data> getData() {
+        long start = System.nanoTime();
+        List<Data> dataList = new ArrayList<>(size.get());
+        iterator().forEachRemaining(dataList::add);
+        timings.getData.recordSince(start);
         return dataList;
     }
 
+    // Iterate all items in id order without copying the collection. Weakly consistent:
+    // reflects the items present when it was created, plus whatever changed since for
+    // ids it has not reached yet.
+    public Iterator<Data> iterator() {
+        return iterator(Integer.MIN_VALUE);
+    }
+
+    // Same as iterator(), starting after the given id; seeking costs O(log n)
+    public Iterator<Data> iterator(int afterId) {
+        return new MergeIterator(afterId);
+    }
+
+    // Get a single item by id, or null if it does not exist
+    public Data getData(int id) {
+        // Read the snapshot reference after the overlay: compaction publishes a new
+        // snapshot before it drops the overlay entries that it absorbed
+        Data data = overlayGet(id);
+        if (data != null) {
+            return data == TOMBSTONE ? null : data;
+        }
+        return snapshotGet(snapshot, id);
+    }
+
+    // An id's item in the given snapshot, through the cache; null if the snapshot lacks it
+    private Data snapshotGet(SnapshotFile base, int id) {
+        if (cache == null) {
+            int slot = base.find(id);
+            return slot < 0 ? null : base.read(slot);
+        }
+        Data data = cache.get(id, base);
+        if (data == null) {
+            int slot = base.find(id);
+            if (slot < 0) {
+                return null;
+            }
+            data = base.read(slot);
+            cache.put(id, data, base);
+        }
+        return data;
+    }
+
+    // Hit, miss and eviction counts of the item cache; null when it is turned off
+    DataCache cache() {
+        return cache;
+    }
+
+    // Whether the id is stored, found without decoding the item; same ordering as getData
+    public boolean contains(int id) {
+        Data data = overlayGet(id);
+        if (data != null) {
+            return data != TOMBSTONE;
+        }
+        return snapshot.find(id) >= 0;
+    }
+
+    // Revision of the newest write to the whole collection. Read it before the data it
+    // describes, so a racing write can only make the tag older than the content.
+    public Revision revision() {
+        return latestRevision.get();
+    }
+
+    // Revision of the last write to one id while it is in the overlay; once compacted, or if
+    // it does not exist, the revision of the last compaction (startRevision before the
+    // first). Same ordering rule as revision()
+    public Revision revision(int id) {
+        Stripe stripe = stripeFor(id);
+        Revision revision = null;
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                revision = revisionLocked(stripe, id);
+            } catch (RuntimeException ignored) {
+                // Saw the table mid-resize; retry under the read lock
+                stamp = 0;
+            }
+        }
+        if (stamp == 0 || !stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                revision = revisionLocked(stripe, id);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return revision;
+    }
+
+    // Recent mutations in version order, for change feeds and long-polling clients
+    public ChangeFeed changes() {
+        return changes;
+    }
+
+    public Timings timings() {
+        return timings;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
     // Update a data item
     public boolean updateData(Data updatedData) {
-        List<Data> dataList = getData();
-        boolean found = false;
+        return updateData(updatedData.id(), valuesOf(updatedData), ANY_VERSION).status()
+                == WriteResult.Status.WRITTEN;
+    }
+
+    // updateData for the fields of the items collection
+    public WriteResult updateData(int id, String name, String description, long expectedVersion) {
+        return updateData(id, new String[]{name, description}, expectedVersion);
+    }
 
-        List<Data> newDataList = new ArrayList<>();
-        for (Data data : dataList) {
-            if (data.id() == updatedData.id()) {
-                newDataList.add(updatedData);
-                found = true;
-            } else {
-                newDataList.add(data);
+    // Compare-and-swap update: written only while the item is still at expectedVersion (any
+    // version for ANY_VERSION). values are in schema order and a null value keeps the
+    // current one; the merge happens under the item's stripe lock, so concurrent partial
+    // updates never lose each other's fields.
+    public WriteResult updateData(int id, String[] values, long expectedVersion) {
+        long start = System.nanoTime();
+        Stripe stripe = stripeFor(id);
+        Data updated;
+        Revision revision;
+        long seq;
+        long stamp = stripe.lock.writeLock();
+        try {
+            Data current = getLocked(stripe, id);
+            if (current == null) {
+                return WriteResult.NOT_FOUND;
+            }
+            if (expectedVersion != ANY_VERSION && versionLocked(stripe, id) != expectedVersion) {
+                return WriteResult.CONFLICT;
             }
-        }
 
-        if (found) {
-            saveData(newDataList);
+            updated = current.merge(values);
+            revision = putLocked(stripe, updated);
+            seq = log.appendPut(id, valuesOf(updated));
+        } finally {
+            stripe.lock.unlockWrite(stamp);
         }
+        log.awaitDurable(seq);
+        timings.write.recordSince(start);
+        maybeCompact();
+        return new WriteResult(WriteResult.Status.WRITTEN, updated, revision);
+    }
 
-        return found;
+    // The item's values in schema order, fitted to this store's fields
+    private String[] valuesOf(Data data) {
+        String[] values = new String[data.fieldCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.value(i);
+        }
+        return schema.fit(values);
     }
 
     // Delete a data item
     public boolean deleteData(int id) {
-        List<Data> dataList = getData();
-        boolean found = false;
+        return deleteData(id, ANY_VERSION).status() == WriteResult.Status.WRITTEN;
+    }
 
-        List<Data> newDataList = new ArrayList<>();
-        for (Data data : dataList) {
-            if (data.id() != id) {
-                newDataList.add(data);
-            } else {
-                found = true;
+    // Compare-and-swap delete, with the same version rule as the update
+    public WriteResult deleteData(int id, long expectedVersion) {
+        long start = System.nanoTime();
+        Stripe stripe = stripeFor(id);
+        Revision revision;
+        long seq;
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (!existsLocked(stripe, id)) {
+                return WriteResult.NOT_FOUND;
             }
+            if (expectedVersion != ANY_VERSION && versionLocked(stripe, id) != expectedVersion) {
+                return WriteResult.CONFLICT;
+            }
+
+            revision = deleteLocked(stripe, id);
+            seq = log.appendDelete(id);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
         }
+        log.awaitDurable(seq);
+        timings.write.recordSince(start);
+        maybeCompact();
+        return new WriteResult(WriteResult.Status.WRITTEN, null, revision);
+    }
 
-        if (found) {
-            saveData(newDataList);
+    // Add a new data item with a value for every field, in schema order
+    public Data addData(String... values) {
+        long start = System.nanoTime();
+        // Ids come from a CAS counter, so concurrent adds never collide or serialize
+        Data newData = new Data(schema, nextId.getAndIncrement(), values.clone());
+        Stripe stripe = stripeFor(newData.id());
+        long seq;
+        long stamp = stripe.lock.writeLock();
+        try {
+            putLocked(stripe, newData);
+            seq = log.appendPut(newData.id(), values);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
         }
+        log.awaitDurable(seq);
+        timings.write.recordSince(start);
+        maybeCompact();
 
-        return found;
+        return newData;
     }
 
-    // Add a new data item
-    public Data addData(String name, String description) {
-        List<Data> dataList = getData();
+    /**
+     * Apply the operations in order as one transaction: other readers and writers see all of
+     * them or none, they reach the log between begin/commit markers, and the caller waits for
+     * a single sync. Returns one result per operation.
+     */
+    public List<BatchOperation.Result> applyBatch(List<BatchOperation> operations) {
+        long start = System.nanoTime();
+        List<BatchOperation.Result> results = new ArrayList<>(operations.size());
+        long seq;
+        long[] stamps = lockAll();
+        try {
+            log.appendBegin();
+            for (BatchOperation operation : operations) {
+                results.add(applyLocked(operation));
+            }
+            seq = log.appendCommit();
+        } finally {
+            unlockAll(stamps);
+        }
+        log.awaitDurable(seq);
+        timings.batch.recordSince(start);
+        maybeCompact();
+        return results;
+    }
 
-        // Find the next ID
-        int newId = 1;
-        for (Data data : dataList) {
-            if (data.id() >= newId) {
-                newId = data.id() + 1;
+    // Caller holds every stripe lock and has an open log transaction
+    private BatchOperation.Result applyLocked(BatchOperation operation) {
+        int id = operation.id();
+        switch (operation.kind()) {
+            case CREATE: {
+                Data data = new Data(schema, nextId.getAndIncrement(), operation.values().clone());
+                putLocked(stripeFor(data.id()), data);
+                log.appendPut(data.id(), operation.values());
+                return new BatchOperation.Result(BatchOperation.Outcome.CREATED, data);
+            }
+            case PUT: {
+                Data data = new Data(schema, id, operation.values().clone());
+                boolean existed = existsLocked(stripeFor(id), id);
+                putLocked(stripeFor(id), data);
+                log.appendPut(id, operation.values());
+                return new BatchOperation.Result(existed
+                        ? BatchOperation.Outcome.UPDATED : BatchOperation.Outcome.CREATED, data);
             }
+            case UPDATE: {
+                Data current = getLocked(stripeFor(id), id);
+                if (current == null) {
+                    return new BatchOperation.Result(BatchOperation.Outcome.NOT_FOUND, null);
+                }
+                Data data = current.merge(operation.values());
+                putLocked(stripeFor(id), data);
+                log.appendPut(id, valuesOf(data));
+                return new BatchOperation.Result(BatchOperation.Outcome.UPDATED, data);
+            }
+            case DELETE:
+                if (deleteLocked(stripeFor(id), id) == null) {
+                    return new BatchOperation.Result(BatchOperation.Outcome.NOT_FOUND, null);
+                }
+                log.appendDelete(id);
+                return new BatchOperation.Result(BatchOperation.Outcome.DELETED, null);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation.kind());
         }
+    }
 
-        Data newData = new Data(newId, name, description);
-        dataList.add(newData);
-        saveData(dataList);
+    // Merges snapshot slots with overlay-only ids, both already in id order, and resolves
+    // each id against the overlay as it is reached
+    private final class MergeIterator implements Iterator<Data> {
+        private final Iterator<Integer> added;
+        private SnapshotFile base;
+        private int slot;
+        private int addedId = Integer.MAX_VALUE;
+        private int lastId;
+        private Data next;
 
-        return newData;
+        MergeIterator(int afterId) {
+            lastId = afterId;
+            base = snapshot;
+            slot = base.slotAfter(afterId);
+            added = addedIds.tailSet(afterId, false).iterator();
+            nextAdded();
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Data next() {
+            Data data = next;
+            if (data == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return data;
+        }
+
+        private void nextAdded() {
+            addedId = Integer.MAX_VALUE;
+            while (added.hasNext()) {
+                int id = added.next();
+                if (id > lastId) {
+                    addedId = id;
+                    return;
+                }
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                // A compaction moved overlay ids into a newer snapshot; continue from there
+                SnapshotFile current = snapshot;
+                if (current != base) {
+                    base = current;
+                    slot = base.slotAfter(lastId);
+                }
+                int baseId = slot < base.count() ? base.idAt(slot) : Integer.MAX_VALUE;
+                if (baseId == Integer.MAX_VALUE && addedId == Integer.MAX_VALUE) {
+                    return;
+                }
+                Data data;
+                if (baseId <= addedId) {
+                    lastId = baseId;
+                    data = overlayGet(baseId);
+                    if (data == null) {
+                        // The overlay entry may have just been folded into a newer snapshot
+                        data = snapshot == base ? base.read(slot) : getData(baseId);
+                    }
+                    slot++;
+                    if (baseId == addedId) {
+                        nextAdded();
+                    }
+                } else {
+                    lastId = addedId;
+                    data = getData(addedId);
+                    nextAdded();
+                }
+                if (data != null && data != TOMBSTONE) {
+                    next = data;
+                }
+            }
+        }
+    }
+
+    // Declare a secondary index and build it from the current contents. Indexes live in
+    // memory only, so callers declare them again after every restart.
+    void createIndex(String name, SecondaryIndex index) {
+        long[] stamps = lockAll();
+        try {
+            if (indexes.containsKey(name)) {
+                throw new IllegalArgumentException("Index already exists: " + name);
+            }
+            for (Data data : getDataLocked()) {
+                index.update(null, data);
+            }
+            indexes.put(name, index);
+        } finally {
+            unlockAll(stamps);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends SecondaryIndex> T index(String name) {
+        return (T) indexes.get(name);
+    }
+
+    // Current items for ids from an index lookup (ascending), starting after afterId.
+    // Ids deleted since the lookup are skipped; callers re-check changed values.
+    public Iterator<Data> iterator(int[] ids, int afterId) {
+        int start = Arrays.binarySearch(ids, afterId);
+        return new IdIterator(ids, start >= 0 ? start + 1 : -start - 1);
+    }
+
+    // Current items for an index query, starting after afterId. Ids are fetched a batch at a
+    // time, so a page reads about as many as it returns; batches grow for long scans.
+    public Iterator<Data> iterator(SecondaryIndex.Query query, int afterId) {
+        return new QueryIterator(query, afterId);
+    }
+
+    private final class QueryIterator implements Iterator<Data> {
+        private static final int FIRST_BATCH = 64;
+        private static final int MAX_BATCH = 16384;
+
+        private final SecondaryIndex.Query query;
+        private int[] ids;
+        private int position;
+        private int lastId;
+        private boolean exhausted;
+        private Data next;
+
+        QueryIterator(SecondaryIndex.Query query, int afterId) {
+            this.query = query;
+            this.ids = new int[0];
+            this.lastId = afterId;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Data next() {
+            Data data = next;
+            if (data == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return data;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (position == ids.length) {
+                    if (exhausted) {
+                        return;
+                    }
+                    int batch = ids.length == 0 ? FIRST_BATCH : Math.min(ids.length * 2, MAX_BATCH);
+                    ids = query.ids(lastId, batch);
+                    position = 0;
+                    exhausted = ids.length < batch;
+                    if (ids.length == 0) {
+                        return;
+                    }
+                    lastId = ids[ids.length - 1];
+                }
+                next = getData(ids[position++]);
+            }
+        }
+    }
+
+    private final class IdIterator implements Iterator<Data> {
+        private final int[] ids;
+        private int position;
+        private Data next;
+
+        IdIterator(int[] ids, int position) {
+            this.ids = ids;
+            this.position = position;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Data next() {
+            Data data = next;
+            if (data == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return data;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && position < ids.length) {
+                next = getData(ids[position++]);
+            }
+        }
+    }
+
+    // Barrier for callers that need durability whatever the sync policy: returns once every
+    // write acknowledged before the call is on disk
+    public void flush() {
+        log.sync();
+    }
+
+    // Flush the log and stop background work
+    public void close() {
+        changes.close();
+        // Let a running compaction finish; it still needs the log, and a new instance
+        // opened on the same directory must not race it for the snapshot file
+        compactionExecutor.shutdown();
+        try {
+            if (!compactionExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Compaction still running at close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    // Spread sequential ids across stripes using the high bits of a multiplicative hash
+    private Stripe stripeFor(int id) {
+        return stripes[(id * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+    }
+
+    private Data overlayGet(int id) {
+        Stripe stripe = stripeFor(id);
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Data data = stripe.overlay.get(id);
+                if (stripe.lock.validate(stamp)) {
+                    return data;
+                }
+            } catch (RuntimeException ignored) {
+                // Saw the table mid-resize; retry under the read lock
+            }
+        }
+
+        stamp = stripe.lock.readLock();
+        try {
+            return stripe.overlay.get(id);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    private long[] lockAll() {
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].lock.writeLock();
+        }
+        return stamps;
+    }
+
+    private void unlockAll(long[] stamps) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].lock.unlockWrite(stamps[i]);
+        }
+    }
+
+    private boolean existsLocked(Stripe stripe, int id) {
+        Data data = stripe.overlay.get(id);
+        if (data != null) {
+            return data != TOMBSTONE;
+        }
+        return snapshot.find(id) >= 0;
+    }
+
+    // Current value of an id, or null; caller holds the id's stripe lock
+    private Data getLocked(Stripe stripe, int id) {
+        Data data = stripe.overlay.get(id);
+        if (data != null) {
+            return data == TOMBSTONE ? null : data;
+        }
+        return snapshotGet(snapshot, id);
+    }
+
+    // Insert or replace; returns the revision of the write
+    private Revision putLocked(Stripe stripe, Data data) {
+        boolean existed;
+        if (indexes.isEmpty()) {
+            existed = existsLocked(stripe, data.id());
+        } else {
+            Data previous = getLocked(stripe, data.id());
+            existed = previous != null;
+            for (SecondaryIndex index : indexes.values()) {
+                index.update(previous, data);
+            }
+        }
+        if (!existed) {
+            size.incrementAndGet();
+        }
+        stripe.overlay.put(data.id(), data);
+        Revision revision = bumpRevision(stripe, data.id(),
+                existed ? ChangeFeed.Type.UPDATE : ChangeFeed.Type.CREATE, data);
+        if (snapshot.find(data.id()) < 0) {
+            addedIds.add(data.id());
+        }
+        nextId.accumulateAndGet(data.id() + 1, Math::max);
+        return revision;
+    }
+
+    // Revision of the delete, or null if the id did not exist
+    private Revision deleteLocked(Stripe stripe, int id) {
+        if (indexes.isEmpty()) {
+            if (!existsLocked(stripe, id)) {
+                return null;
+            }
+        } else {
+            Data previous = getLocked(stripe, id);
+            if (previous == null) {
+                return null;
+            }
+            for (SecondaryIndex index : indexes.values()) {
+                index.update(previous, null);
+            }
+        }
+        // A compaction in flight may be writing this id into the next snapshot
+        if (compacting.get() || snapshot.find(id) >= 0) {
+            stripe.overlay.put(id, TOMBSTONE);
+        } else {
+            stripe.overlay.remove(id);
+        }
+        addedIds.remove(id);
+        Revision revision = bumpRevision(stripe, id, ChangeFeed.Type.DELETE, null);
+        size.decrementAndGet();
+        return revision;
+    }
+
+    // Caller holds the id's stripe lock
+    private Revision bumpRevision(Stripe stripe, int id, ChangeFeed.Type type, Data data) {
+        Revision revision = new Revision(changes.publish(type, id, data), System.currentTimeMillis());
+        if (data != null) {
+            stripe.revisions.put(id, revision);
+        } else {
+            // A missing id reads as compactedRevision, and re-creating it gets a newer version
+            // than any it had, so no tag handed out before the delete can match it again
+            stripe.revisions.remove(id);
+        }
+        latestRevision.accumulateAndGet(revision,
+                (current, next) -> next.version() > current.version() ? next : current);
+        return revision;
+    }
+
+    // What revision(id) reports; caller holds the id's stripe lock
+    private Revision revisionLocked(Stripe stripe, int id) {
+        Revision revision = stripe.revisions.get(id);
+        return revision != null ? revision : compactedRevision;
+    }
+
+    // Caller holds the id's stripe lock
+    private long versionLocked(Stripe stripe, int id) {
+        return revisionLocked(stripe, id).version();
+    }
+
+    // Caller holds every stripe lock
+    private void clearLocked() {
+        for (Data data : getDataLocked()) {
+            deleteLocked(stripeFor(data.id()), data.id());
+        }
+    }
+
+    // getData() for callers that already hold every stripe lock
+    private List<Data> getDataLocked() {
+        SnapshotFile base = snapshot;
+        List<Data> dataList = new ArrayList<>(size.get());
+        for (int slot = 0; slot < base.count(); slot++) {
+            if (stripeFor(base.idAt(slot)).overlay.get(base.idAt(slot)) == null) {
+                dataList.add(base.read(slot));
+            }
+        }
+        for (Stripe stripe : stripes) {
+            stripe.overlay.forEach((id, data) -> {
+                if (data != TOMBSTONE) {
+                    dataList.add(data);
+                }
+            });
+        }
+        return dataList;
+    }
+
+    private void maybeCompact() {
+        if (log.segmentBytes() > compactionThresholdBytes && compacting.compareAndSet(false, true)) {
+            startCompaction();
+        }
+    }
+
+    // Cut the log and fold everything before the cut into a new snapshot in the background
+    private void startCompaction() {
+        long generation;
+        int[] ids;
+        Data[] sorted;
+        int snapshotNextId;
+        SnapshotFile base;
+        Revision cut;
+
+        // Briefly stop all writers so the cut and the frozen overlay agree
+        long[] stamps = lockAll();
+        try {
+            generation = log.rotate();
+
+            int count = 0;
+            for (Stripe stripe : stripes) {
+                count += stripe.overlay.size();
+            }
+            long[] order = new long[count];
+            Data[] values = new Data[count];
+            int[] position = {0};
+            for (Stripe stripe : stripes) {
+                stripe.overlay.forEach((id, data) -> {
+                    order[position[0]] = ((long) id << 32) | position[0];
+                    values[position[0]] = data;
+                    position[0]++;
+                });
+            }
+            Arrays.sort(order);
+            ids = new int[count];
+            sorted = new Data[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = (int) (order[i] >> 32);
+                sorted[i] = values[(int) order[i]];
+            }
+
+            base = snapshot;
+            snapshotNextId = nextId.get();
+            cut = latestRevision.get();
+        } catch (RuntimeException e) {
+            compacting.set(false);
+            throw e;
+        } finally {
+            unlockAll(stamps);
+        }
+
+        compactionExecutor.execute(() -> writeSnapshot(base, ids, sorted, snapshotNextId, generation, cut));
+    }
+
+    // Merge the old snapshot with the frozen overlay into a new snapshot file
+    private void writeSnapshot(SnapshotFile base, int[] ids, Data[] values, int snapshotNextId,
+                               long generation, Revision cut) {
+        long start = System.nanoTime();
+        try {
+            int count = 0;
+            int slot = 0;
+            int i = 0;
+            while (slot < base.count() || i < ids.length) {
+                int baseId = slot < base.count() ? base.idAt(slot) : Integer.MAX_VALUE;
+                int overlayId = i < ids.length ? ids[i] : Integer.MAX_VALUE;
+                if (overlayId <= baseId) {
+                    if (values[i] != TOMBSTONE) {
+                        count++;
+                    }
+                    if (overlayId == baseId) {
+                        slot++;
+                    }
+                    i++;
+                } else {
+                    count++;
+                    slot++;
+                }
+            }
+
+            try (SnapshotFile.Writer writer = new SnapshotFile.Writer(snapshotFile, count)) {
+                slot = 0;
+                i = 0;
+                while (slot < base.count() || i < ids.length) {
+                    int baseId = slot < base.count() ? base.idAt(slot) : Integer.MAX_VALUE;
+                    int overlayId = i < ids.length ? ids[i] : Integer.MAX_VALUE;
+                    if (overlayId <= baseId) {
+                        if (values[i] != TOMBSTONE) {
+                            writer.add(values[i]);
+                        }
+                        if (overlayId == baseId) {
+                            slot++;
+                        }
+                        i++;
+                    } else {
+                        writer.addRaw(base, slot);
+                        slot++;
+                    }
+                }
+                writer.commit(snapshotNextId, generation);
+            }
+
+            SnapshotFile fresh = SnapshotFile.open(snapshotFile, schema);
+            long[] stamps = lockAll();
+            try {
+                // Publish first so lock-free readers that miss the overlay find the record
+                snapshot = fresh;
+                // Entries untouched since the cut are now served from the new snapshot, and
+                // their revisions, all from before the cut, read as the cut's from now on
+                compactedRevision = cut;
+                for (i = 0; i < ids.length; i++) {
+                    if (fresh.find(ids[i]) >= 0) {
+                        addedIds.remove(ids[i]);
+                    }
+                    Stripe stripe = stripeFor(ids[i]);
+                    if (stripe.overlay.get(ids[i]) == values[i]) {
+                        stripe.overlay.remove(ids[i]);
+                        stripe.revisions.remove(ids[i]);
+                    }
+                }
+            } finally {
+                unlockAll(stamps);
+            }
+            if (cache != null) {
+                cache.rebase(base, fresh, ids);
+            }
+            log.deleteSegmentsBefore(generation);
+            timings.compaction.recordSince(start);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write compacted snapshot", e);
+        } finally {
+            compacting.set(false);
+        }
     }
 }
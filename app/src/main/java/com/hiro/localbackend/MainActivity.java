@@ -8,6 +8,8 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -18,17 +20,25 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.Manifest;
 
 import com.hiro.localbackend.databinding.ActivityMainBinding;
 
 public class MainActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 1001;
+    // How often the metrics summary is refreshed while the server runs
+    private static final long STATUS_REFRESH_MS = 2000;
 
     private ActivityMainBinding ui;
 
     private boolean isServerRunning = false;
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refreshStatus = this::checkServerStatus;
+
     // BroadcastReceiver to receive status updates from the service
     private final BroadcastReceiver serverStatusReceiver = new BroadcastReceiver() {
         @Override
@@ -38,6 +48,12 @@ public class MainActivity extends AppCompatActivity {
                 String serverUrl = intent.getStringExtra(BackendServerService.EXTRA_SERVER_URL);
 
                 updateUI(isServerRunning, serverUrl);
+                showMetrics(intent.getStringExtra(BackendServerService.EXTRA_METRICS_JSON));
+
+                handler.removeCallbacks(refreshStatus);
+                if (isServerRunning) {
+                    handler.postDelayed(refreshStatus, STATUS_REFRESH_MS);
+                }
             }
         }
     };
@@ -63,6 +79,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(refreshStatus);
         // Unregister the broadcast receiver
         unregisterReceiver(serverStatusReceiver);
     }
@@ -163,4 +180,20 @@ public class MainActivity extends AppCompatActivity {
         ui.btnStartServer.setEnabled(!isRunning);
         ui.btnStopServer.setEnabled(isRunning);
     }
+
+    // Per-route counts and latencies from the running server, indented for reading
+    private void showMetrics(String metricsJson) {
+        if (metricsJson == null) {
+            ui.svMetrics.setVisibility(View.GONE);
+            return;
+        }
+        String text;
+        try {
+            text = new JSONObject(metricsJson).toString(2);
+        } catch (JSONException e) {
+            text = metricsJson;
+        }
+        ui.tvMetrics.setText(text);
+        ui.svMetrics.setVisibility(View.VISIBLE);
+    }
 }
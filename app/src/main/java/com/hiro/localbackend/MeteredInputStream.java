@@ -0,0 +1,68 @@
+package com.hiro.localbackend;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps a response body to count the bytes NanoHTTPD sends from it. When the response is
+ * closed, after the body has gone out, the request is recorded on its route with the
+ * time since dispatch started, so slow clients and large bodies show up in the latency.
+ */
+final class MeteredInputStream extends FilterInputStream {
+
+    private final Metrics.RouteStats stats;
+    private final int status;
+    private final long bytesIn;
+    private final long startNanos;
+    private long bytesOut;
+    private boolean recorded;
+
+    MeteredInputStream(InputStream in, Metrics.RouteStats stats, int status, long bytesIn,
+                       long startNanos) {
+        super(in);
+        this.stats = stats;
+        this.status = status;
+        this.bytesIn = bytesIn;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            bytesOut++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = in.read(buffer, offset, length);
+        if (n > 0) {
+            bytesOut += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        bytesOut += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!recorded) {
+            recorded = true;
+            stats.record(status, bytesIn, bytesOut, System.nanoTime() - startNanos);
+        }
+        in.close();
+    }
+}
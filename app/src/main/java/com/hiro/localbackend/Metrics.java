@@ -0,0 +1,280 @@
+package com.hiro.localbackend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+
+/**
+ * Counters and latency histograms for the server and the store, rendered as Prometheus
+ * text for {@code GET /metrics} or as a compact JSON summary for the app's status screen.
+ *
+ * Requests are keyed by route pattern rather than URI, so the number of series stays fixed.
+ * Recording a request looks up existing stats without allocating; only the first request
+ * on a route creates them.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final Method[] METHODS = Method.values();
+
+    // Stats for one method on one route
+    public static final class RouteStats {
+        final String method;
+        final String route;
+        final LatencyHistogram latency = new LatencyHistogram();
+        // Indexed by status code
+        final AtomicLongArray statuses = new AtomicLongArray(600);
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+
+        RouteStats(String method, String route) {
+            this.method = method;
+            this.route = route;
+        }
+
+        public void record(int status, long bytesIn, long bytesOut, long nanos) {
+            statuses.incrementAndGet(status >= 0 && status < 600 ? status : 0);
+            this.bytesIn.add(bytesIn);
+            this.bytesOut.add(bytesOut);
+            latency.record(nanos);
+        }
+    }
+
+    // A timed operation outside the request path, e.g. a store call
+    private static final class Timer {
+        final String family;
+        final String operation;
+        final LatencyHistogram histogram;
+
+        Timer(String family, String operation, LatencyHistogram histogram) {
+            this.family = family;
+            this.operation = operation;
+            this.histogram = histogram;
+        }
+    }
+
+    // A single value read when exported; type is "gauge" or "counter"
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final long startMillis = System.currentTimeMillis();
+    // Route pattern -> stats per method ordinal
+    private final Map<String, RouteStats[]> routes = new ConcurrentHashMap<>();
+    private final List<Timer> timers = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // Stats for a route; route is the pattern that matched, or a fixed label for the rest
+    public RouteStats route(Method method, String route) {
+        RouteStats[] byMethod = routes.get(route);
+        if (byMethod == null) {
+            byMethod = routes.computeIfAbsent(route, key -> new RouteStats[METHODS.length]);
+        }
+        int slot = method != null ? method.ordinal() : 0;
+        RouteStats stats = byMethod[slot];
+        if (stats == null) {
+            synchronized (byMethod) {
+                stats = byMethod[slot];
+                if (stats == null) {
+                    stats = new RouteStats(method != null ? method.name() : "UNKNOWN", route);
+                    byMethod[slot] = stats;
+                }
+            }
+        }
+        return stats;
+    }
+
+    // Export a histogram as the summary <family>_duration_seconds{op="<operation>"}
+    public void addTimer(String family, String operation, LatencyHistogram histogram) {
+        timers.add(new Timer(family, operation, histogram));
+    }
+
+    public void addGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // A value that only ever goes up while the process runs; name should end in _total
+    public void addCounter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    public String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        List<RouteStats> all = allRoutes();
+
+        out.append("# HELP http_requests_total Requests served, by route, method and status.\n")
+                .append("# TYPE http_requests_total counter\n");
+        for (RouteStats stats : all) {
+            for (int status = 0; status < 600; status++) {
+                long count = stats.statuses.get(status);
+                if (count > 0) {
+                    out.append("http_requests_total{");
+                    routeLabels(out, stats).append(",status=\"").append(status).append("\"} ")
+                            .append(count).append('\n');
+                }
+            }
+        }
+        out.append("# HELP http_request_bytes_total Request body bytes received.\n")
+                .append("# TYPE http_request_bytes_total counter\n");
+        for (RouteStats stats : all) {
+            out.append("http_request_bytes_total{");
+            routeLabels(out, stats).append("} ").append(stats.bytesIn.sum()).append('\n');
+        }
+        out.append("# HELP http_response_bytes_total Response body bytes sent.\n")
+                .append("# TYPE http_response_bytes_total counter\n");
+        for (RouteStats stats : all) {
+            out.append("http_response_bytes_total{");
+            routeLabels(out, stats).append("} ").append(stats.bytesOut.sum()).append('\n');
+        }
+        out.append("# HELP http_request_duration_seconds Time from dispatch until the body is sent.\n")
+                .append("# TYPE http_request_duration_seconds summary\n");
+        for (RouteStats stats : all) {
+            StringBuilder labels = routeLabels(new StringBuilder(), stats);
+            summary(out, "http_request_duration_seconds", labels.toString(), stats.latency);
+        }
+
+        String family = null;
+        for (Timer timer : timers) {
+            String name = timer.family + "_duration_seconds";
+            if (!timer.family.equals(family)) {
+                family = timer.family;
+                out.append("# TYPE ").append(name).append(" summary\n");
+            }
+            summary(out, name, "op=\"" + timer.operation + "\"", timer.histogram);
+        }
+
+        for (Gauge gauge : gauges) {
+            out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n')
+                    .append("# TYPE ").append(gauge.name).append(' ').append(gauge.type).append('\n')
+                    .append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        out.append("# TYPE process_uptime_seconds gauge\n")
+                .append("process_uptime_seconds ")
+                .append((System.currentTimeMillis() - startMillis) / 1000).append('\n');
+        return out.toString();
+    }
+
+    // {"uptimeSeconds":..,"routes":[{"route":..,"method":..,"count":..,"errors":..,"p50Ms":..,
+    // "p99Ms":..,"maxMs":..,"bytesIn":..,"bytesOut":..}],"timers":[..],"gauges":{..}}
+    public String json() {
+        JsonBuffer json = new JsonBuffer(2048);
+        json.writeAscii("{\"uptimeSeconds\":")
+                .writeLong((System.currentTimeMillis() - startMillis) / 1000)
+                .writeAscii(",\"routes\":[");
+        boolean first = true;
+        for (RouteStats stats : allRoutes()) {
+            long count = 0;
+            long errors = 0;
+            for (int status = 0; status < 600; status++) {
+                long n = stats.statuses.get(status);
+                count += n;
+                if (status >= 500) {
+                    errors += n;
+                }
+            }
+            if (!first) {
+                json.writeByte(',');
+            }
+            first = false;
+            json.writeAscii("{\"route\":").writeString(stats.route)
+                    .writeAscii(",\"method\":").writeString(stats.method)
+                    .writeAscii(",\"count\":").writeLong(count)
+                    .writeAscii(",\"errors\":").writeLong(errors);
+            latencySummary(json, stats.latency);
+            json.writeAscii(",\"bytesIn\":").writeLong(stats.bytesIn.sum())
+                    .writeAscii(",\"bytesOut\":").writeLong(stats.bytesOut.sum())
+                    .writeByte('}');
+        }
+        json.writeAscii("],\"timers\":[");
+        first = true;
+        for (Timer timer : timers) {
+            if (!first) {
+                json.writeByte(',');
+            }
+            first = false;
+            json.writeAscii("{\"name\":").writeString(timer.family + "." + timer.operation)
+                    .writeAscii(",\"count\":").writeLong(timer.histogram.count());
+            latencySummary(json, timer.histogram);
+            json.writeByte('}');
+        }
+        json.writeAscii("],\"gauges\":{");
+        first = true;
+        for (Gauge gauge : gauges) {
+            if (!first) {
+                json.writeByte(',');
+            }
+            first = false;
+            json.writeString(gauge.name).writeByte(':').writeLong(gauge.value.getAsLong());
+        }
+        json.writeAscii("}}");
+        return new String(json.bytes(), 0, json.length(), StandardCharsets.UTF_8);
+    }
+
+    private List<RouteStats> allRoutes() {
+        List<RouteStats> all = new ArrayList<>();
+        for (RouteStats[] byMethod : routes.values()) {
+            for (RouteStats stats : byMethod) {
+                if (stats != null) {
+                    all.add(stats);
+                }
+            }
+        }
+        all.sort((a, b) -> a.route.equals(b.route)
+                ? a.method.compareTo(b.method) : a.route.compareTo(b.route));
+        return all;
+    }
+
+    private static StringBuilder routeLabels(StringBuilder out, RouteStats stats) {
+        return out.append("method=\"").append(stats.method).append("\",route=\"")
+                .append(escapeLabel(stats.route)).append('"');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile)
+                    .append("\"} ").append(seconds(histogram.percentileMicros(quantile))).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ")
+                .append(seconds(histogram.sumMicros())).append('\n')
+                .append(name).append("_count{").append(labels).append("} ")
+                .append(histogram.count()).append('\n');
+    }
+
+    private static void latencySummary(JsonBuffer json, LatencyHistogram histogram) {
+        json.writeAscii(",\"p50Ms\":").writeAscii(millis(histogram.percentileMicros(0.5)))
+                .writeAscii(",\"p99Ms\":").writeAscii(millis(histogram.percentileMicros(0.99)))
+                .writeAscii(",\"maxMs\":").writeAscii(millis(histogram.maxMicros()));
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1e3);
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
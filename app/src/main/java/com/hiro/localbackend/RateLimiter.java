@@ -0,0 +1,107 @@
+package com.hiro.localbackend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket rate limit per client. Each client may make requestsPerSecond requests on
+ * average, in bursts of up to burst.
+ *
+ * Buckets are kept in striped, access-ordered maps, so clients only contend when they hash
+ * to the same stripe. A stripe holds a bounded number of clients and forgets the least
+ * recently seen first. A client idle long enough to refill its bucket is forgotten as soon
+ * as its stripe is next used, since a new bucket would be the same.
+ */
+final class RateLimiter {
+
+    private static final int STRIPE_BITS = 4;
+
+    private final double tokensPerNano;
+    private final double burst;
+    // Time an empty bucket takes to fill
+    private final long refillNanos;
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    private final LongAdder limited = new LongAdder();
+
+    private static final class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private static final class Stripe {
+        final int maxClients;
+        // Access ordered, so the least recently seen client comes first
+        final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+
+        Stripe(int maxClients) {
+            this.maxClients = maxClients;
+        }
+    }
+
+    RateLimiter(int requestsPerSecond, int burst, int maxClients) {
+        this.tokensPerNano = requestsPerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.refillNanos = (long) Math.ceil(this.burst / tokensPerNano);
+        int perStripe = Math.max(1, maxClients >> STRIPE_BITS);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    // 0 if the client may go ahead, else the nanoseconds until it has a token again
+    long acquire(String client, long now) {
+        Stripe stripe = stripes[(client.hashCode() * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+        synchronized (stripe) {
+            evictIdle(stripe, now);
+            Bucket bucket = stripe.buckets.get(client);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                stripe.buckets.put(client, bucket);
+                if (stripe.buckets.size() > stripe.maxClients) {
+                    Iterator<Bucket> eldest = stripe.buckets.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            } else {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * tokensPerNano);
+                bucket.updated = now;
+            }
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            limited.increment();
+            return Math.max(1, (long) Math.ceil((1 - bucket.tokens) / tokensPerNano));
+        }
+    }
+
+    // Access order puts the longest idle clients first, so stop at the first active one
+    private void evictIdle(Stripe stripe, long now) {
+        Iterator<Bucket> eldest = stripe.buckets.values().iterator();
+        while (eldest.hasNext() && now - eldest.next().updated >= refillNanos) {
+            eldest.remove();
+        }
+    }
+
+    // Clients currently tracked
+    int clients() {
+        int clients = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                clients += stripe.buckets.size();
+            }
+        }
+        return clients;
+    }
+
+    // Requests turned away since the limiter was made
+    long limited() {
+        return limited.sum();
+    }
+}
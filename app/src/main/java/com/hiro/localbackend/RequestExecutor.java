@@ -0,0 +1,153 @@
+package com.hiro.localbackend;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Replacement for NanoHTTPD's DefaultAsyncRunner, which starts a new thread per connection.
+ * Runs client handlers on either a bounded pool or virtual threads, caps the number of
+ * open connections, and reports how busy it is.
+ */
+final class RequestExecutor implements NanoHTTPD.AsyncRunner {
+
+    private static final String TAG = "RequestExecutor";
+
+    // Hook for refusing a connection the executor has no room for
+    interface Rejector {
+        void reject(NanoHTTPD.ClientHandler handler);
+    }
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Rejector rejector;
+    private final int maxConnections;
+    private final Set<NanoHTTPD.ClientHandler> running = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    private RequestExecutor(ExecutorService executor, int maxConnections, Rejector rejector) {
+        this.executor = executor;
+        this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+        this.maxConnections = maxConnections;
+        this.rejector = rejector;
+    }
+
+    static RequestExecutor create(ServerConfig config, Rejector rejector) {
+        if (config.executorMode == ServerConfig.ExecutorMode.VIRTUAL_THREADS) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new RequestExecutor(virtual, config.maxConnections, rejector);
+            }
+            Log.w(TAG, "Virtual threads are not available on this runtime, using a bounded pool");
+        }
+        return bounded(config.maxWorkers, config.queueCapacity, config.maxConnections, rejector);
+    }
+
+    static RequestExecutor bounded(int maxWorkers, int queueCapacity, int maxConnections,
+                                   Rejector rejector) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                r -> {
+                    Thread thread = new Thread(r, "http-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new RequestExecutor(pool, maxConnections, rejector);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21; not on Android
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler handler) {
+        if (running.size() >= maxConnections) {
+            rejected.incrementAndGet();
+            rejector.reject(handler);
+            return;
+        }
+        running.add(handler);
+        try {
+            executor.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    handler.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.remove(handler);
+            rejected.incrementAndGet();
+            rejector.reject(handler);
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler handler) {
+        running.remove(handler);
+    }
+
+    @Override
+    public void closeAll() {
+        for (NanoHTTPD.ClientHandler handler : running) {
+            handler.close();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // After shutdown(): wait for workers to return; false if some were still busy at the timeout
+    boolean awaitTermination(long timeoutMs) {
+        try {
+            return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Connections accepted but still waiting for a worker
+    int getQueueDepth() {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    // Connections accepted and not yet closed, whether queued, busy or idle
+    int getOpenConnections() {
+        return running.size();
+    }
+
+    // Workers currently running a connection
+    int getActiveWorkers() {
+        return active.get();
+    }
+
+    // Connections turned away with 503 since start
+    int getRejectedCount() {
+        return rejected.get();
+    }
+}
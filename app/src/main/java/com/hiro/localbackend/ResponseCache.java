@@ -0,0 +1,154 @@
+package com.hiro.localbackend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded response bodies, bounded by total bytes.
+ *
+ * Every entry records the store version it was built from. A lookup with a different
+ * version treats the entry as invalid and drops it, so writes invalidate cached responses
+ * without the store having to know about the cache. Compressed copies of a body are made
+ * on first use and count against the same byte budget.
+ */
+final class ResponseCache {
+
+    /**
+     * One cached response: body bytes plus the headers that go with them.
+     */
+    static final class Entry {
+        final long version;
+        final byte[] body;
+        final int length;
+        // Extra headers as name, value pairs
+        final String[] headers;
+        // Guarded by the cache: encoded copies of the body, and whether the entry is held
+        private byte[] gzip;
+        private byte[] deflate;
+        private boolean cached;
+
+        Entry(long version, byte[] body, int length, String... headers) {
+            this.version = version;
+            this.body = body;
+            this.length = length;
+            this.headers = headers;
+        }
+
+        private byte[] encoded(Compression.Encoding encoding) {
+            return encoding == Compression.Encoding.GZIP ? gzip : deflate;
+        }
+
+        // Bytes charged to the cache
+        private long size() {
+            return length + (gzip != null ? gzip.length : 0) + (deflate != null ? deflate.length : 0);
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    ResponseCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // Largest body worth caching
+    int maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    // The entry for key if it was built from exactly this version, else null
+    synchronized Entry get(String key, long version) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version != version) {
+            entries.remove(key);
+            entry.cached = false;
+            bytes -= entry.size();
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        if (entry.length > maxEntryBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            previous.cached = false;
+            bytes -= previous.size();
+        }
+        entry.cached = true;
+        bytes += entry.size();
+        evict();
+    }
+
+    // The entry's body in the given encoding, compressed on first use. Compression runs
+    // outside the lock; if two threads race, the first copy stored wins.
+    byte[] encoded(Entry entry, Compression.Encoding encoding) {
+        synchronized (this) {
+            byte[] existing = entry.encoded(encoding);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        byte[] compressed = Compression.compress(encoding, entry.body, 0, entry.length);
+        synchronized (this) {
+            byte[] existing = entry.encoded(encoding);
+            if (existing != null) {
+                return existing;
+            }
+            if (encoding == Compression.Encoding.GZIP) {
+                entry.gzip = compressed;
+            } else {
+                entry.deflate = compressed;
+            }
+            if (entry.cached) {
+                bytes += compressed.length;
+                evict();
+            }
+        }
+        return compressed;
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.cached = false;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    // Drop least recently used entries until back under budget
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            entry.cached = false;
+            bytes -= entry.size();
+            eldest.remove();
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,10 @@
+package com.hiro.localbackend;
+
+/**
+ * Version stamp of the store or of one item. Versions come from one counter that every
+ * mutation bumps, so a newer write always has a larger version. They are counted from
+ * zero on each start. Only items written since the last compaction keep their own
+ * revision; the others report that compaction's, which is no older than theirs.
+ */
+public record Revision(long version, long modifiedMillis) {
+}
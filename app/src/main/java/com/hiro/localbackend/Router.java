@@ -0,0 +1,333 @@
+package com.hiro.localbackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Path router built once at startup. Routes are patterns like {@code /api/items/{id:int}}
+ * stored in a segment trie, with one handler slot per HTTP method on each node.
+ *
+ * Matching walks the URI in place (no split, no substring for literal or int segments) and
+ * fills a per-thread {@link Match}, so dispatching a request does not allocate. Literal
+ * segments win over parameters; {@code {name:int}} only matches decimal ints. Routes without
+ * parameters are also kept by exact path, so a request for one is a single hash lookup.
+ */
+final class Router {
+
+    // Request handler for one method on one route
+    interface Handler {
+        Response handle(IHTTPSession session, Match match) throws Exception;
+    }
+
+    // Outcome of a lookup
+    enum Result {
+        FOUND,
+        NOT_FOUND,
+        METHOD_NOT_ALLOWED
+    }
+
+    static final int MAX_PARAMS = 8;
+
+    private static final Method[] METHODS = Method.values();
+
+    private final Node root = new Node();
+    // Nodes of routes without parameters, by path as written in a request
+    private final Map<String, Node> statics = new HashMap<>();
+    private final ThreadLocal<Match> matches = ThreadLocal.withInitial(Match::new);
+
+    // Register a handler; patterns are '/'-separated, with {name} or {name:int} parameters
+    Router add(Method method, String pattern, Handler handler) {
+        Node node = root;
+        List<String> names = new ArrayList<>();
+        for (String segment : pattern.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String spec = segment.substring(1, segment.length() - 1);
+                boolean isInt = spec.endsWith(":int");
+                names.add(isInt ? spec.substring(0, spec.length() - 4) : spec);
+                if (isInt) {
+                    if (node.intChild == null) {
+                        node.intChild = new Node();
+                    }
+                    node = node.intChild;
+                } else {
+                    if (node.stringChild == null) {
+                        node.stringChild = new Node();
+                    }
+                    node = node.stringChild;
+                }
+            } else {
+                node = node.literal(segment);
+            }
+        }
+        if (names.size() > MAX_PARAMS) {
+            throw new IllegalArgumentException("Too many parameters in " + pattern);
+        }
+        if (node.handlers[method.ordinal()] != null) {
+            throw new IllegalArgumentException("Duplicate route " + method + " " + pattern);
+        }
+        String[] paramNames = names.toArray(new String[0]);
+        if (node.paramNames != null && !Arrays.equals(node.paramNames, paramNames)) {
+            throw new IllegalArgumentException("Conflicting parameter names in " + pattern);
+        }
+        node.paramNames = paramNames;
+        if (node.pattern == null) {
+            node.pattern = pattern;
+        }
+        if (paramNames.length == 0) {
+            statics.put(normalize(pattern), node);
+        }
+        node.handlers[method.ordinal()] = handler;
+        node.allow = null;
+        return this;
+    }
+
+    Router get(String pattern, Handler handler) {
+        return add(Method.GET, pattern, handler);
+    }
+
+    Router post(String pattern, Handler handler) {
+        return add(Method.POST, pattern, handler);
+    }
+
+    Router put(String pattern, Handler handler) {
+        return add(Method.PUT, pattern, handler);
+    }
+
+    Router delete(String pattern, Handler handler) {
+        return add(Method.DELETE, pattern, handler);
+    }
+
+    // Look up a request; the returned Match is reused by the next call on this thread
+    Match match(Method method, String uri) {
+        Match match = matches.get();
+        match.reset();
+        Node node = statics.get(uri);
+        if (node == null) {
+            node = walk(root, uri, skipSlashes(uri, 0), match);
+        }
+        if (node == null || node.paramNames == null) {
+            match.result = Result.NOT_FOUND;
+            return match;
+        }
+        match.node = node;
+        Handler handler = method != null ? node.handlers[method.ordinal()] : null;
+        if (handler == null) {
+            match.result = Result.METHOD_NOT_ALLOWED;
+            return match;
+        }
+        match.handler = handler;
+        match.result = Result.FOUND;
+        return match;
+    }
+
+    // Depth-first so a literal dead end can fall back to a parameter branch
+    private static Node walk(Node node, String uri, int start, Match match) {
+        int length = uri.length();
+        if (start >= length) {
+            return node;
+        }
+        int end = uri.indexOf('/', start);
+        if (end < 0) {
+            end = length;
+        }
+        int next = skipSlashes(uri, end);
+
+        Node child = node.findLiteral(uri, start, end);
+        if (child != null) {
+            Node found = walk(child, uri, next, match);
+            if (found != null && found.paramNames != null) {
+                return found;
+            }
+        }
+        int depth = match.count;
+        if (node.intChild != null && depth < MAX_PARAMS && parseInt(uri, start, end, match, depth)) {
+            match.count = depth + 1;
+            Node found = walk(node.intChild, uri, next, match);
+            if (found != null && found.paramNames != null) {
+                return found;
+            }
+            match.count = depth;
+        }
+        if (node.stringChild != null && depth < MAX_PARAMS) {
+            match.uri = uri;
+            match.starts[depth] = start;
+            match.ends[depth] = end;
+            match.count = depth + 1;
+            Node found = walk(node.stringChild, uri, next, match);
+            if (found != null && found.paramNames != null) {
+                return found;
+            }
+            match.count = depth;
+        }
+        return null;
+    }
+
+    // A static pattern as clients request it: segments joined by single slashes, no trailing one
+    private static String normalize(String pattern) {
+        StringBuilder path = new StringBuilder();
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty()) {
+                path.append('/').append(segment);
+            }
+        }
+        return path.length() > 0 ? path.toString() : "/";
+    }
+
+    private static int skipSlashes(String uri, int index) {
+        while (index < uri.length() && uri.charAt(index) == '/') {
+            index++;
+        }
+        return index;
+    }
+
+    // Decimal int in uri[start, end), with overflow checking, stored without boxing
+    private static boolean parseInt(String uri, int start, int end, Match match, int slot) {
+        boolean negative = uri.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 10) {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return false;
+        }
+        match.uri = uri;
+        match.ints[slot] = (int) value;
+        match.starts[slot] = start;
+        match.ends[slot] = end;
+        return true;
+    }
+
+    /**
+     * Result of {@link #match}. Parameters are addressed by the names used in the pattern.
+     */
+    static final class Match {
+        private final int[] ints = new int[MAX_PARAMS];
+        private final int[] starts = new int[MAX_PARAMS];
+        private final int[] ends = new int[MAX_PARAMS];
+        private String uri;
+        private int count;
+        private Node node;
+        private Handler handler;
+        private Result result;
+
+        private void reset() {
+            uri = null;
+            count = 0;
+            node = null;
+            handler = null;
+            result = Result.NOT_FOUND;
+        }
+
+        Result result() {
+            return result;
+        }
+
+        Handler handler() {
+            return handler;
+        }
+
+        int intParam(String name) {
+            return ints[indexOf(name)];
+        }
+
+        // Raw text of a parameter; allocates, unlike intParam
+        String param(String name) {
+            int index = indexOf(name);
+            return uri.substring(starts[index], ends[index]);
+        }
+
+        // Pattern of the matched route, e.g. for per-route metrics; null if nothing matched
+        String pattern() {
+            return node != null ? node.pattern : null;
+        }
+
+        // Comma-separated methods registered on the matched path, for the Allow header
+        String allowedMethods() {
+            return node != null ? node.allow() : "";
+        }
+
+        private int indexOf(String name) {
+            String[] names = node.paramNames;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No path parameter " + name);
+        }
+    }
+
+    private static final class Node {
+        private String[] literals = new String[0];
+        private Node[] literalChildren = new Node[0];
+        private Node intChild;
+        private Node stringChild;
+        private final Handler[] handlers = new Handler[METHODS.length];
+        // Non-null once a route ends here
+        private String[] paramNames;
+        // As first registered, the label for metrics; later routes on this node only add methods
+        private String pattern;
+        private volatile String allow;
+
+        private Node literal(String segment) {
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].equals(segment)) {
+                    return literalChildren[i];
+                }
+            }
+            Node child = new Node();
+            int n = literals.length;
+            literals = Arrays.copyOf(literals, n + 1);
+            literalChildren = Arrays.copyOf(literalChildren, n + 1);
+            literals[n] = segment;
+            literalChildren[n] = child;
+            return child;
+        }
+
+        // Few children per node, so a linear scan beats hashing a fresh substring
+        private Node findLiteral(String uri, int start, int end) {
+            int length = end - start;
+            for (int i = 0; i < literals.length; i++) {
+                String literal = literals[i];
+                if (literal.length() == length && uri.regionMatches(start, literal, 0, length)) {
+                    return literalChildren[i];
+                }
+            }
+            return null;
+        }
+
+        private String allow() {
+            String value = allow;
+            if (value == null) {
+                StringBuilder builder = new StringBuilder();
+                for (Method method : METHODS) {
+                    if (method != Method.OPTIONS && handlers[method.ordinal()] != null) {
+                        builder.append(builder.length() > 0 ? ", " : "").append(method.name());
+                    }
+                }
+                value = builder.append(builder.length() > 0 ? ", " : "").append("OPTIONS").toString();
+                allow = value;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.hiro.localbackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * In-memory index over one field of {@link Data}, registered with
+ * {@link LocalDatabase#createIndex} and kept up to date on every write.
+ *
+ * Queries return matching ids in ascending order. Indexes are not persisted: the store
+ * builds them from its contents when they are declared, i.e. on every startup. Updates
+ * arrive from writers holding different stripe locks, so each index has its own lock.
+ */
+abstract class SecondaryIndex {
+
+    private final Function<Data, String> field;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    SecondaryIndex(Function<Data, String> field) {
+        this.field = field;
+    }
+
+    /**
+     * A lookup read a page at a time: up to max matching ids above afterId, ascending.
+     * Fewer than max means there are no more.
+     */
+    interface Query {
+        int[] ids(int afterId, int max);
+    }
+
+    // Store hook: an item was added, changed or removed (previous or current may be null)
+    final void update(Data previous, Data current) {
+        String previousValue = previous != null ? field.apply(previous) : null;
+        String currentValue = current != null ? field.apply(current) : null;
+        if (previous != null && current != null && Objects.equals(previousValue, currentValue)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            // Unset values are not indexed
+            if (previousValue != null) {
+                remove(previousValue, previous.id());
+            }
+            if (currentValue != null) {
+                add(currentValue, current.id());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The indexed value of an item
+    final String valueOf(Data data) {
+        return field.apply(data);
+    }
+
+    final void lockRead() {
+        lock.readLock().lock();
+    }
+
+    final void unlockRead() {
+        lock.readLock().unlock();
+    }
+
+    // Called with the write lock held
+    abstract void add(String value, int id);
+
+    abstract void remove(String value, int id);
+
+    // Drop the id from a posting list, and the list itself once it is empty
+    static <K> void removeId(Map<K, SortedIntSet> postings, K key, int id) {
+        SortedIntSet ids = postings.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+
+    /**
+     * Exact-match lookups, e.g. {@code name = "Item 1"}.
+     */
+    static final class Hash extends SecondaryIndex {
+        private final Map<String, SortedIntSet> postings = new HashMap<>();
+
+        Hash(Function<Data, String> field) {
+            super(field);
+        }
+
+        int[] get(String value) {
+            return get(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        // Seeks to afterId in the posting list, so a page copies only its own ids
+        int[] get(String value, int afterId, int max) {
+            lockRead();
+            try {
+                SortedIntSet ids = postings.get(value);
+                if (ids == null) {
+                    return new int[0];
+                }
+                int from = ids.indexAfter(afterId);
+                return ids.toArray(from, from + Math.min(max, ids.size() - from));
+            } finally {
+                unlockRead();
+            }
+        }
+
+        @Override
+        void add(String value, int id) {
+            postings.computeIfAbsent(value, key -> new SortedIntSet()).add(id);
+        }
+
+        @Override
+        void remove(String value, int id) {
+            removeId(postings, value, id);
+        }
+    }
+
+    /**
+     * Ordered lookups: ranges of values, compared as Java strings. A prefix p is the range
+     * [p, prefixEnd(p)).
+     */
+    static final class Sorted extends SecondaryIndex {
+        private final TreeMap<String, SortedIntSet> postings = new TreeMap<>();
+
+        Sorted(Function<Data, String> field) {
+            super(field);
+        }
+
+        // Upper bound of the range holding the values that start with prefix
+        static String prefixEnd(String prefix) {
+            return prefix + Character.MAX_VALUE;
+        }
+
+        // Values in [from, to); either bound may be null for an open end
+        int[] range(String from, String to) {
+            return range(from, to, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        int[] range(String from, String to, int afterId, int max) {
+            lockRead();
+            try {
+                NavigableMap<String, SortedIntSet> view = postings;
+                if (from != null) {
+                    view = view.tailMap(from, true);
+                }
+                if (to != null) {
+                    view = view.headMap(to, false);
+                }
+                return merge(view.values(), afterId, max);
+            } finally {
+                unlockRead();
+            }
+        }
+
+        // The first max ids above afterId across the posting lists: a k-way merge over a
+        // heap of one cursor per list, so a page costs O(lists + max log lists) however
+        // many ids match in total
+        private static int[] merge(Collection<SortedIntSet> lists, int afterId, int max) {
+            SortedIntSet[] sets = new SortedIntSet[lists.size()];
+            int[] positions = new int[sets.length];
+            int count = 0;
+            for (SortedIntSet list : lists) {
+                int position = list.indexAfter(afterId);
+                if (position < list.size()) {
+                    sets[count] = list;
+                    positions[count++] = position;
+                }
+            }
+            for (int i = count / 2 - 1; i >= 0; i--) {
+                siftDown(sets, positions, count, i);
+            }
+            int[] ids = new int[Math.min(max, 64)];
+            int taken = 0;
+            while (count > 0 && taken < max) {
+                int id = sets[0].get(positions[0]);
+                // An item has one value, so lists only share an id mid-update; take it once
+                if (taken == 0 || ids[taken - 1] != id) {
+                    if (taken == ids.length) {
+                        ids = Arrays.copyOf(ids, (int) Math.min(max, ids.length * 2L));
+                    }
+                    ids[taken++] = id;
+                }
+                if (++positions[0] == sets[0].size()) {
+                    count--;
+                    sets[0] = sets[count];
+                    positions[0] = positions[count];
+                }
+                siftDown(sets, positions, count, 0);
+            }
+            return taken == ids.length ? ids : Arrays.copyOf(ids, taken);
+        }
+
+        // Restore heap order (by each cursor's current id) below node i
+        private static void siftDown(SortedIntSet[] sets, int[] positions, int count, int i) {
+            while (true) {
+                int smallest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < count; child++) {
+                    if (sets[child].get(positions[child]) < sets[smallest].get(positions[smallest])) {
+                        smallest = child;
+                    }
+                }
+                if (smallest == i) {
+                    return;
+                }
+                SortedIntSet set = sets[i];
+                sets[i] = sets[smallest];
+                sets[smallest] = set;
+                int position = positions[i];
+                positions[i] = positions[smallest];
+                positions[smallest] = position;
+                i = smallest;
+            }
+        }
+
+        @Override
+        void add(String value, int id) {
+            postings.computeIfAbsent(value, key -> new SortedIntSet()).add(id);
+        }
+
+        @Override
+        void remove(String value, int id) {
+            removeId(postings, value, id);
+        }
+    }
+
+    /**
+     * Inverted token index for word search. Text is split on anything that is not a letter
+     * or digit and lowercased; a query matches items containing all of its tokens.
+     */
+    static final class FullText extends SecondaryIndex {
+        private final Map<String, SortedIntSet> postings = new HashMap<>();
+
+        FullText(Function<Data, String> field) {
+            super(field);
+        }
+
+        int[] search(String query) {
+            List<String> tokens = tokenize(query);
+            if (tokens.isEmpty()) {
+                return new int[0];
+            }
+            lockRead();
+            try {
+                // Intersect starting from the rarest token
+                SortedIntSet smallest = null;
+                for (String token : tokens) {
+                    SortedIntSet ids = postings.get(token);
+                    if (ids == null) {
+                        return new int[0];
+                    }
+                    if (smallest == null || ids.size() < smallest.size()) {
+                        smallest = ids;
+                    }
+                }
+                int[] candidates = smallest.toArray();
+                int count = 0;
+                for (int id : candidates) {
+                    boolean all = true;
+                    for (String token : tokens) {
+                        if (!postings.get(token).contains(id)) {
+                            all = false;
+                            break;
+                        }
+                    }
+                    if (all) {
+                        candidates[count++] = id;
+                    }
+                }
+                return Arrays.copyOf(candidates, count);
+            } finally {
+                unlockRead();
+            }
+        }
+
+        // Whether the item still contains every query token; used to drop stale hits
+        boolean matches(Data data, String query) {
+            String value = valueOf(data);
+            if (value == null) {
+                return false;
+            }
+            List<String> have = tokenize(value);
+            return have.containsAll(tokenize(query));
+        }
+
+        @Override
+        void add(String value, int id) {
+            for (String token : tokenize(value)) {
+                postings.computeIfAbsent(token, key -> new SortedIntSet()).add(id);
+            }
+        }
+
+        @Override
+        void remove(String value, int id) {
+            for (String token : tokenize(value)) {
+                removeId(postings, token, id);
+            }
+        }
+
+        static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>();
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (wordChar && start < 0) {
+                    start = i;
+                } else if (!wordChar && start >= 0) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                    start = -1;
+                }
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.hiro.localbackend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tunables for {@link AndroidBackendServer}. Plain public fields with defaults, filled in by
+ * {@link BackendServerService} from the start intent.
+ */
+public class ServerConfig {
+
+    // How accepted connections are handed to worker threads
+    public enum ExecutorMode {
+        // Fixed pool with a bounded queue; overflow is rejected with 503
+        BOUNDED,
+        // One virtual thread per connection, on runtimes that have them
+        VIRTUAL_THREADS
+    }
+
+    public ExecutorMode executorMode = ExecutorMode.BOUNDED;
+    public int maxWorkers = Math.max(4, Runtime.getRuntime().availableProcessors() * 4);
+    public int queueCapacity = 64;
+
+    // Connections held open at once, idle or busy; more are turned away with 503
+    public int maxConnections = 512;
+    // How long a keep-alive connection may sit between requests (also the read timeout)
+    public int idleTimeoutMs = 5000;
+    // Requests served on one connection before it is closed; 0 for no limit
+    public int maxRequestsPerConnection = 1000;
+    // Socket options; 0 buffer sizes keep the system defaults
+    public boolean tcpNoDelay = true;
+    public int sendBufferBytes = 0;
+    public int receiveBufferBytes = 0;
+
+    // Requests per second each client address may make on average, in bursts of up to
+    // rateLimitBurst; past that it gets 429. Off (0) unless set.
+    public int rateLimitPerSecond = 0;
+    public int rateLimitBurst = 200;
+    // Client addresses tracked at once; the least recently seen are forgotten first
+    public int rateLimitClients = 1024;
+    // Requests handled at once across all clients; off (0) unless set. A request past the
+    // limit waits up to admissionTimeoutMs for a slot, then gets 503.
+    public int maxConcurrentRequests = 0;
+    public int admissionTimeoutMs = 100;
+
+    // When store writes reach the disk. ALWAYS acknowledges a write once it is synced;
+    // INTERVAL and NEVER acknowledge at once and a background writer gathers the log
+    // records, writing them every syncIntervalMs or once flushThresholdBytes have queued.
+    // Stopping the server flushes everything acknowledged.
+    public WriteAheadLog.SyncPolicy syncPolicy = LocalDatabase.DEFAULT_SYNC_POLICY;
+    public long syncIntervalMs = LocalDatabase.DEFAULT_SYNC_INTERVAL_MS;
+    public long flushThresholdBytes = LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES;
+
+    // Heap for decoded items kept by point reads, split evenly between the collections;
+    // the rest is read from the memory-mapped snapshots. 0 turns the item cache off.
+    public long itemCacheBytes = 8 * 1024 * 1024;
+    // Heap for encoded responses kept for repeat reads, and the largest one worth keeping
+    public long responseCacheBytes = 4 * 1024 * 1024;
+    public int responseCacheMaxEntryBytes = 512 * 1024;
+
+    // Collections served under /api/{name}, each stored apart from the others; the service
+    // reads them from a JSON declaration (CollectionSchema.fromJson)
+    public List<CollectionSchema> collections = new ArrayList<>(Collections.singletonList(CollectionSchema.items()));
+}
@@ -0,0 +1,330 @@
+package com.hiro.localbackend;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only, memory-mapped binary snapshot of one collection.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header   magic "LBSN" | version | count | nextId | logGeneration (long) | reserved
+ *   table    count x (id, recordOffset), sorted by id
+ *   records  valueCount | valueCount x (length | value (UTF-8)), length -1 for an unset value
+ * </pre>
+ * Version 1 snapshots, from before collections declared their fields, are still read: their
+ * records are a name and a description without the count, and never have unset values.
+ * Opening a snapshot only maps the file; records are decoded into {@link Data} when a
+ * caller asks for them. All reads use absolute offsets, so one instance is safe to share
+ * between threads.
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x4C42534E; // "LBSN"
+    static final int VERSION = 2;
+    private static final int VERSION_NAME_DESCRIPTION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int TABLE_ENTRY_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int version;
+    // Fields the decoded items get; null for the empty snapshot, which has no records
+    private final CollectionSchema schema;
+    private final int count;
+    private final int nextId;
+    private final long logGeneration;
+
+    private SnapshotFile(ByteBuffer buffer, int version, CollectionSchema schema, int count, int nextId,
+                         long logGeneration) {
+        this.buffer = buffer;
+        this.version = version;
+        this.schema = schema;
+        this.count = count;
+        this.nextId = nextId;
+        this.logGeneration = logGeneration;
+    }
+
+    // An empty snapshot, used before anything has been written
+    static SnapshotFile empty() {
+        return new SnapshotFile(ByteBuffer.allocate(HEADER_SIZE), VERSION, null, 0, 1, 0);
+    }
+
+    // Records are decoded into items with the schema's fields
+    static SnapshotFile open(File file, CollectionSchema schema) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Snapshot too short: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = mapped.getInt(4);
+            if (version != VERSION && version != VERSION_NAME_DESCRIPTION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int count = mapped.getInt(8);
+            if (count < 0 || HEADER_SIZE + (long) count * TABLE_ENTRY_SIZE > length) {
+                throw new IOException("Corrupt snapshot table in " + file);
+            }
+            return new SnapshotFile(mapped, version, schema, count, mapped.getInt(12), mapped.getLong(16));
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    // First id that has never been handed out when the snapshot was taken
+    int nextId() {
+        return nextId;
+    }
+
+    // First log generation whose records are not contained in this snapshot
+    long logGeneration() {
+        return logGeneration;
+    }
+
+    // Id stored in the given table slot; slots are ordered by id
+    int idAt(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * TABLE_ENTRY_SIZE);
+    }
+
+    // Table slot holding the given id, or -1
+    int find(int id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = idAt(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // First slot whose id is greater than the given id; count() if there is none
+    int slotAfter(int id) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idAt(mid) <= id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Decode the record in the given slot
+    Data read(int slot) {
+        int offset = recordOffset(slot);
+        int stored = 2;
+        if (version != VERSION_NAME_DESCRIPTION) {
+            stored = buffer.getInt(offset);
+            offset += 4;
+        }
+        // Values past the declared fields are skipped, missing ones stay unset
+        String[] values = new String[schema.fields.size()];
+        for (int i = 0; i < stored && i < values.length; i++) {
+            int length = buffer.getInt(offset);
+            offset += 4;
+            if (length >= 0) {
+                values[i] = readString(offset, length);
+                offset += length;
+            }
+        }
+        return new Data(schema, idAt(slot), values);
+    }
+
+    private int recordOffset(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * TABLE_ENTRY_SIZE + 4);
+    }
+
+    private int recordLength(int slot) {
+        int start = recordOffset(slot);
+        int offset = start;
+        int stored = 2;
+        if (version != VERSION_NAME_DESCRIPTION) {
+            stored = buffer.getInt(offset);
+            offset += 4;
+        }
+        for (int i = 0; i < stored; i++) {
+            offset += 4 + Math.max(0, buffer.getInt(offset));
+        }
+        return offset - start;
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Streams a new snapshot to a temporary file and atomically renames it into place.
+     * Records must be added in ascending id order.
+     */
+    static final class Writer implements Closeable {
+
+        private final File target;
+        private final File temp;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int count;
+        private final int[] ids;
+        private final int[] offsets;
+        private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        private int added;
+        private long position;
+        private boolean committed;
+
+        Writer(File target, int count) throws IOException {
+            this.target = target;
+            this.temp = new File(target.getPath() + ".tmp");
+            this.raf = new RandomAccessFile(temp, "rw");
+            this.channel = raf.getChannel();
+            this.count = count;
+            this.ids = new int[count];
+            this.offsets = new int[count];
+            channel.truncate(0);
+            position = HEADER_SIZE + (long) count * TABLE_ENTRY_SIZE;
+            channel.position(position);
+        }
+
+        void add(Data data) throws IOException {
+            byte[][] values = new byte[data.fieldCount()][];
+            int length = 4;
+            for (int i = 0; i < values.length; i++) {
+                String value = data.value(i);
+                if (value != null) {
+                    values[i] = value.getBytes(StandardCharsets.UTF_8);
+                    length += values[i].length;
+                }
+                length += 4;
+            }
+            begin(data.id(), length);
+            putInt(values.length);
+            for (byte[] value : values) {
+                if (value == null) {
+                    putInt(-1);
+                } else {
+                    putInt(value.length);
+                    write(ByteBuffer.wrap(value));
+                }
+            }
+        }
+
+        // Copy a record from an existing snapshot without decoding it, if it has this layout
+        void addRaw(SnapshotFile source, int slot) throws IOException {
+            if (source.version != VERSION) {
+                add(source.read(slot));
+                return;
+            }
+            int length = source.recordLength(slot);
+            begin(source.idAt(slot), length);
+            ByteBuffer view = source.buffer.duplicate();
+            int offset = source.recordOffset(slot);
+            view.position(offset);
+            view.limit(offset + length);
+            write(view);
+        }
+
+        private void begin(int id, int length) throws IOException {
+            if (added == count) {
+                throw new IllegalStateException("More records than declared");
+            }
+            if (added > 0 && id <= ids[added - 1]) {
+                throw new IllegalArgumentException("Ids must be strictly ascending");
+            }
+            if (position + length > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GB");
+            }
+            ids[added] = id;
+            offsets[added] = (int) position;
+            added++;
+            position += length;
+        }
+
+        private void putInt(int value) throws IOException {
+            if (out.remaining() < 4) {
+                flush();
+            }
+            out.putInt(value);
+        }
+
+        private void write(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                if (!out.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(out.remaining(), source.remaining());
+                int limit = source.limit();
+                source.limit(source.position() + chunk);
+                out.put(source);
+                source.limit(limit);
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+
+        void commit(int nextId, long logGeneration) throws IOException {
+            if (added != count) {
+                throw new IllegalStateException("Declared " + count + " records, added " + added);
+            }
+            flush();
+
+            channel.position(0);
+            out.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(nextId)
+                    .putLong(logGeneration).putLong(0);
+            for (int i = 0; i < count; i++) {
+                if (out.remaining() < TABLE_ENTRY_SIZE) {
+                    flush();
+                }
+                out.putInt(ids[i]).putInt(offsets[i]);
+            }
+            flush();
+
+            channel.force(true);
+            raf.close();
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not move snapshot into place: " + target);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                raf.close();
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.hiro.localbackend;
+
+import java.util.Arrays;
+
+/**
+ * Set of ints kept as a sorted array. Small and cache-friendly for the short id lists
+ * that secondary indexes hold per key, and iterates in id order for free.
+ * Not thread-safe - callers synchronize.
+ */
+final class SortedIntSet {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] values = EMPTY;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int value) {
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    // Returns false if the value was already present
+    boolean add(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, size * 2));
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+    // Returns false if the value was not present
+    boolean remove(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    int get(int index) {
+        return values[index];
+    }
+
+    // Position of the first value above the given one, size() if there is none
+    int indexAfter(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    // Values at positions [from, to)
+    int[] toArray(int from, int to) {
+        return Arrays.copyOfRange(values, from, to);
+    }
+}
@@ -0,0 +1,593 @@
+package com.hiro.localbackend;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of item mutations, split into numbered segment files.
+ *
+ * Callers append records from any thread; a single writer thread drains everything that
+ * queued up while the previous batch was being written, so concurrent writers share one
+ * write() and one fsync (group commit). When appenders do not wait for durability, the
+ * writer also holds records back until the sync interval is up or a threshold of bytes
+ * has queued, so a burst of writes becomes one write() instead of many. Each record is
+ * length-prefixed and CRC-checked, so a torn tail left by a crash is detected and cut off
+ * on replay. Records wrapped in {@link #appendBegin()} / {@link #appendCommit()} form a
+ * transaction that replay applies only once its commit record is found.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final String TAG = "WriteAheadLog";
+
+    private static final int MAGIC = 0x4C425741; // "LBWA"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_CLEAR = 3;
+    // Records between BEGIN and COMMIT are replayed together or not at all
+    static final byte OP_BEGIN = 4;
+    static final byte OP_COMMIT = 5;
+    // A put with any number of field values; OP_PUT records always hold two
+    static final byte OP_PUT_VALUES = 6;
+
+    // When the writer thread forces appended bytes to disk
+    enum SyncPolicy {
+        // fsync every batch; append() returns only once its record is durable
+        ALWAYS,
+        // write and fsync at most once per sync interval; append() does not wait
+        INTERVAL,
+        // write at most once per sync interval and leave flushing to the OS
+        NEVER
+    }
+
+    // Receives records in log order during replay
+    interface Visitor {
+        // values in the order they were written; null for unset fields
+        void put(int id, String[] values);
+
+        void delete(int id);
+
+        void clear();
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMs;
+    // Queued bytes that are written without waiting out the interval; 0 writes at once
+    private final long flushThresholdBytes;
+
+    private final Object lock = new Object();
+    private final Thread writer;
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private long appendedSeq;
+    // When the oldest record not yet handed to the writer was appended
+    private long pendingSinceMs;
+    private long syncedSeq;
+    private long appendedBytes;
+    private long segmentStart;
+    private long generation;
+    private int rotateMark = -1;
+    private boolean syncRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // Owned by the writer thread
+    private FileChannel channel;
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+
+    WriteAheadLog(File directory, String prefix, long generation,
+                  SyncPolicy syncPolicy, long syncIntervalMs) throws IOException {
+        this(directory, prefix, generation, syncPolicy, syncIntervalMs, 0);
+    }
+
+    WriteAheadLog(File directory, String prefix, long generation, SyncPolicy syncPolicy,
+                  long syncIntervalMs, long flushThresholdBytes) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.generation = generation;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMs = syncIntervalMs;
+        this.flushThresholdBytes = syncPolicy == SyncPolicy.ALWAYS ? 0 : flushThresholdBytes;
+        this.channel = openSegment(generation);
+
+        writer = new Thread(this::runWriter, "wal-writer-" + prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    long generation() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    // Bytes in the current segment, including records not yet written
+    long segmentBytes() {
+        synchronized (lock) {
+            return HEADER_SIZE + appendedBytes - segmentStart;
+        }
+    }
+
+    // id | count | count x (length | UTF-8), with length -1 for a null value
+    long appendPut(int id, String... values) {
+        byte[][] encoded = new byte[values.length][];
+        int payload = 1 + 4 + 4;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                payload += encoded[i].length;
+            }
+            payload += 4;
+        }
+
+        synchronized (lock) {
+            ByteBuffer buffer = reserve(payload);
+            int start = buffer.position();
+            buffer.put(OP_PUT_VALUES).putInt(id).putInt(values.length);
+            for (byte[] value : encoded) {
+                if (value == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(value.length).put(value);
+                }
+            }
+            return commitRecord(buffer, start, payload);
+        }
+    }
+
+    long appendDelete(int id) {
+        synchronized (lock) {
+            ByteBuffer buffer = reserve(1 + 4);
+            int start = buffer.position();
+            buffer.put(OP_DELETE).putInt(id);
+            return commitRecord(buffer, start, 1 + 4);
+        }
+    }
+
+    long appendClear() {
+        return appendMarker(OP_CLEAR);
+    }
+
+    // Start a transaction; the caller must keep other appends out until appendCommit
+    long appendBegin() {
+        return appendMarker(OP_BEGIN);
+    }
+
+    long appendCommit() {
+        return appendMarker(OP_COMMIT);
+    }
+
+    private long appendMarker(byte op) {
+        synchronized (lock) {
+            ByteBuffer buffer = reserve(1);
+            int start = buffer.position();
+            buffer.put(op);
+            return commitRecord(buffer, start, 1);
+        }
+    }
+
+    // Block until the record with the given sequence is durable, if the policy asks for it
+    void awaitDurable(long seq) {
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            awaitSynced(seq);
+        }
+    }
+
+    // Block until everything appended so far has been written and forced to disk
+    void sync() {
+        long target;
+        synchronized (lock) {
+            target = appendedSeq;
+        }
+        awaitSynced(target);
+    }
+
+    /**
+     * Close the current segment and start a new one. Returns the new generation; every
+     * record appended before this call lives in an older segment, every later one in the
+     * new segment.
+     */
+    long rotate() {
+        synchronized (lock) {
+            // One rotation in flight at a time keeps the buffer mark unambiguous
+            while (rotateMark >= 0 && failure == null && !closed) {
+                waitOnLock();
+            }
+            checkOpen();
+            rotateMark = pending.position();
+            segmentStart = appendedBytes;
+            generation++;
+            lock.notifyAll();
+            return generation;
+        }
+    }
+
+    // Delete all segments older than the given generation
+    void deleteSegmentsBefore(long generation) {
+        for (long segment : listGenerations(directory, prefix)) {
+            if (segment < generation && !segmentFile(directory, prefix, segment).delete()) {
+                Log.w(TAG, "Could not delete log segment " + segment);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            sync();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Closing log without a final sync", e);
+        }
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ByteBuffer reserve(int payload) {
+        checkOpen();
+        if (payload > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record too large: " + payload + " bytes");
+        }
+        int needed = 8 + payload;
+        appendedBytes += needed;
+        if (pending.position() == 0) {
+            pendingSinceMs = System.currentTimeMillis();
+        }
+        if (pending.remaining() < needed) {
+            int capacity = pending.capacity();
+            while (capacity - pending.position() < needed) {
+                capacity <<= 1;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        // Length and CRC are filled in by commitRecord
+        pending.putInt(payload).putInt(0);
+        return pending;
+    }
+
+    private long commitRecord(ByteBuffer buffer, int start, int payload) {
+        crc.reset();
+        crc.update(buffer.array(), start, payload);
+        buffer.putInt(start - 4, (int) crc.getValue());
+        appendedSeq++;
+        // The writer only needs waking to time a new batch or once the threshold is reached
+        if (start == 8 || buffer.position() >= flushThresholdBytes) {
+            lock.notifyAll();
+        }
+        return appendedSeq;
+    }
+
+    private void awaitSynced(long seq) {
+        synchronized (lock) {
+            while (syncedSeq < seq) {
+                checkOpen();
+                if (!syncRequested) {
+                    // Wake the writer once; other waiters piggyback on the same sync
+                    syncRequested = true;
+                    lock.notifyAll();
+                }
+                waitOnLock();
+            }
+        }
+    }
+
+    private void waitOnLock() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the log", e);
+        }
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new IllegalStateException("Write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+    }
+
+    private void runWriter() {
+        long lastSync = System.currentTimeMillis();
+
+        while (true) {
+            ByteBuffer batch;
+            long batchSeq;
+            int mark;
+            long nextGeneration;
+            boolean explicitSync;
+
+            synchronized (lock) {
+                try {
+                    while (rotateMark < 0 && !syncRequested && !closed) {
+                        long delay;
+                        if (pending.position() > 0) {
+                            if (pending.position() >= flushThresholdBytes) {
+                                break;
+                            }
+                            // Gather what else arrives within the interval into the same write
+                            delay = pendingSinceMs + syncIntervalMs - System.currentTimeMillis();
+                        } else if (syncPolicy == SyncPolicy.INTERVAL && syncedSeq < appendedSeq) {
+                            delay = lastSync + syncIntervalMs - System.currentTimeMillis();
+                        } else {
+                            lock.wait();
+                            continue;
+                        }
+                        if (delay <= 0) {
+                            break;
+                        }
+                        lock.wait(delay);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed && pending.position() == 0 && rotateMark < 0) {
+                    closeChannel();
+                    return;
+                }
+
+                // Swap buffers so appenders keep going while this batch is written
+                batch = pending;
+                pending = spare;
+                pending.clear();
+                spare = batch;
+                batchSeq = appendedSeq;
+                mark = rotateMark;
+                nextGeneration = generation;
+                explicitSync = syncRequested;
+                syncRequested = false;
+            }
+
+            try {
+                batch.flip();
+                if (mark >= 0) {
+                    // Records before the mark belong to the old segment
+                    int limit = batch.limit();
+                    batch.limit(mark);
+                    writeFully(batch);
+                    channel.force(false);
+                    channel.close();
+                    channel = openSegment(nextGeneration);
+                    batch.limit(limit);
+                }
+                writeFully(batch);
+
+                long now = System.currentTimeMillis();
+                boolean sync = explicitSync
+                        || syncPolicy == SyncPolicy.ALWAYS
+                        || (syncPolicy == SyncPolicy.INTERVAL && now - lastSync >= syncIntervalMs);
+                if (sync) {
+                    channel.force(false);
+                    lastSync = now;
+                }
+
+                synchronized (lock) {
+                    if (mark >= 0) {
+                        rotateMark = -1;
+                    }
+                    if (sync) {
+                        syncedSeq = batchSeq;
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write log segment", e);
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close log segment", e);
+        }
+    }
+
+    private FileChannel openSegment(long generation) throws IOException {
+        File file = segmentFile(directory, prefix, generation);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel fileChannel = raf.getChannel();
+        fileChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        while (header.hasRemaining()) {
+            fileChannel.write(header);
+        }
+        return fileChannel;
+    }
+
+    static File segmentFile(File directory, String prefix, long generation) {
+        return new File(directory, prefix + "-" + generation + ".wal");
+    }
+
+    // Generations of all segments on disk, ascending
+    static List<Long> listGenerations(File directory, String prefix) {
+        List<Long> generations = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return generations;
+        }
+        String head = prefix + "-";
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(head) && name.endsWith(".wal")) {
+                try {
+                    generations.add(Long.parseLong(name.substring(head.length(), name.length() - 4)));
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    /**
+     * Replay one segment into the visitor. Stops at the first torn or corrupt record and
+     * truncates the file there. Returns the number of valid bytes in the segment.
+     */
+    static long replay(File file, Visitor visitor) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a log segment: " + file);
+            }
+            valid = HEADER_SIZE;
+
+            CRC32 checksum = new CRC32();
+            byte[] payload = new byte[256];
+            // Records of an open transaction, held back until its commit record
+            List<ByteBuffer> transaction = null;
+            long transactionStart = 0;
+            while (true) {
+                int length;
+                int expectedCrc;
+                try {
+                    length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                checksum.reset();
+                checksum.update(payload, 0, length);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+
+                byte op = payload[0];
+                if (op == OP_BEGIN) {
+                    transaction = new ArrayList<>();
+                    transactionStart = valid;
+                } else if (op == OP_COMMIT) {
+                    if (transaction != null) {
+                        for (ByteBuffer record : transaction) {
+                            apply(record, visitor);
+                        }
+                    }
+                    transaction = null;
+                } else if (transaction != null) {
+                    transaction.add(ByteBuffer.wrap(Arrays.copyOf(payload, length)));
+                } else {
+                    apply(ByteBuffer.wrap(payload, 0, length), visitor);
+                }
+                valid += 8 + length;
+            }
+            if (transaction != null) {
+                // The crash hit mid-transaction; drop all of it
+                valid = transactionStart;
+            }
+        } catch (EOFException e) {
+            // Header itself is torn; nothing to replay
+        }
+
+        if (valid < file.length()) {
+            Log.w(TAG, "Truncating torn log tail in " + file.getName() + " at " + valid);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        return valid;
+    }
+
+    private static void apply(ByteBuffer record, Visitor visitor) {
+        byte op = record.get();
+        switch (op) {
+            case OP_PUT: {
+                int id = record.getInt();
+                String name = readString(record);
+                String description = readString(record);
+                visitor.put(id, new String[]{name, description});
+                break;
+            }
+            case OP_PUT_VALUES: {
+                int id = record.getInt();
+                String[] values = new String[record.getInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = readString(record);
+                }
+                visitor.put(id, values);
+                break;
+            }
+            case OP_DELETE:
+                visitor.delete(record.getInt());
+                break;
+            case OP_CLEAR:
+                visitor.clear();
+                break;
+            default:
+                Log.w(TAG, "Skipping unknown log record type " + op);
+        }
+    }
+
+    // null for the -1 length of an unset value
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(record.array(), record.arrayOffset() + record.position(),
+                length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,314 @@
+package com.hiro.localbackend;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests against a running AndroidBackendServer on a loopback port.
+ */
+public class AndroidBackendServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ContextWrapper context;
+    private AndroidBackendServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        File directory = folder.newFolder("files");
+        // Only what the stores ask of a Context; no legacy preferences to migrate
+        context = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return directory;
+            }
+
+            @Override
+            public String getPackageName() {
+                return "com.hiro.localbackend";
+            }
+
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return null;
+            }
+        };
+        start(new ServerConfig());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void missingItemIsNotFoundWhateverTheValidators() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String future = format.format(new Date(System.currentTimeMillis() + 24 * 3600 * 1000L));
+
+        assertEquals(404, get("/api/items/999", "If-None-Match", "*"));
+        assertEquals(404, get("/api/items/999", "If-Modified-Since", future));
+        assertEquals(304, get("/api/items/1", "If-None-Match", "*"));
+
+        assertEquals(200, request("DELETE", "/api/items/1"));
+        assertEquals(404, get("/api/items/1", "If-None-Match", "*"));
+        assertEquals(404, get("/api/items/1", "If-Modified-Since", future));
+    }
+
+    @Test
+    public void declaredCollectionStoresTypedFields() throws Exception {
+        server.stop();
+        ServerConfig config = new ServerConfig();
+        config.collections = CollectionSchema.fromJson("[{\"name\":\"notes\",\"fields\":["
+                + "{\"name\":\"title\",\"type\":\"string\",\"required\":true,\"indexed\":true},"
+                + "{\"name\":\"count\",\"type\":\"integer\"},"
+                + "{\"name\":\"pinned\",\"type\":\"boolean\",\"default\":false}]}]");
+        start(config);
+
+        assertEquals(201, send("POST", "/api/notes", "{\"title\":\"a\",\"count\":3}"));
+        assertEquals(201, send("POST", "/api/notes", "{\"title\":\"b\",\"count\":-4,\"pinned\":true}"));
+        assertEquals(400, send("POST", "/api/notes", "{\"title\":\"c\",\"count\":\"three\"}"));
+        assertEquals(400, send("POST", "/api/notes", "{\"count\":5}"));
+        assertEquals(404, request("GET", "/api/items"));
+
+        assertEquals("{\"id\":1,\"title\":\"a\",\"count\":3,\"pinned\":false}", body("/api/notes/1"));
+        String pinned = body("/api/notes?pinned=true");
+        assertTrue(pinned, pinned.contains("{\"id\":2,\"title\":\"b\",\"count\":-4,\"pinned\":true}"));
+        assertFalse(pinned, pinned.contains("\"id\":1"));
+        assertEquals(200, send("PUT", "/api/notes/2", "{\"count\":7}"));
+        assertEquals("{\"id\":2,\"title\":\"b\",\"count\":7,\"pinned\":true}", body("/api/notes/2"));
+    }
+
+    @Test
+    public void fieldsMayShareNamesWithDerivedIndexes() throws Exception {
+        server.stop();
+        ServerConfig config = new ServerConfig();
+        config.collections = CollectionSchema.fromJson("[{\"name\":\"notes\",\"fields\":["
+                + "{\"name\":\"title\",\"indexed\":true,\"fullText\":true},"
+                + "{\"name\":\"title_sorted\",\"indexed\":true},"
+                + "{\"name\":\"title_text\",\"fullText\":true}]}]");
+        start(config);
+
+        assertEquals(201, send("POST", "/api/notes",
+                "{\"title\":\"a b\",\"title_sorted\":\"c\",\"title_text\":\"d\"}"));
+        assertEquals("[{\"id\":1}]", body("/api/notes?title_sorted=c&prefix=a&fields=id"));
+        assertEquals("[{\"id\":1}]", body("/api/notes/search?q=b&fields=id"));
+        assertEquals("[{\"id\":1}]", body("/api/notes/search?field=title_text&q=d&fields=id"));
+
+        try {
+            CollectionSchema.fromJson("[{\"name\":\"jobs\",\"fields\":[{\"name\":\"op\"}]}]");
+            fail("Declared a field called op, which batch operations use as a key");
+        } catch (IllegalArgumentException expected) {
+            // Reserved
+        }
+    }
+
+    @Test
+    public void listsRangesOfTheFirstField() throws Exception {
+        assertEquals(201, send("POST", "/api/items", "{\"name\":\"Item 10\"}"));
+        assertEquals(201, send("POST", "/api/items", "{\"name\":\"Zed\"}"));
+
+        assertEquals("[{\"id\":2},{\"id\":4}]", body("/api/items?from=Item%202&fields=id"));
+        assertEquals("[{\"id\":1},{\"id\":3}]", body("/api/items?from=Item%201&to=Item%202&fields=id"));
+        assertEquals("[{\"id\":2}]", body("/api/items?prefix=Item&from=Item%2010%20&fields=id"));
+        assertEquals("[{\"id\":2},{\"id\":3}]", body("/api/items?to=Z&after=1&fields=id"));
+        assertEquals("[{\"id\":2}]", body("/api/items?from=Item%201&limit=1&after=1&fields=id"));
+    }
+
+    @Test
+    public void oversizedBodyIsRejectedBeforeItIsRead() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            // Headers only: a server that waited for the body would time out here
+            socket.getOutputStream().write(("POST /api/items HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + (AndroidBackendServer.MAX_ITEM_BODY_BYTES + 1) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            RawResponse response = RawResponse.read(in);
+            assertEquals(413, response.status);
+            assertEquals("close", response.headers.get("connection"));
+        }
+        assertEquals("[{\"id\":1},{\"id\":2}]", body("/api/items?fields=id"));
+    }
+
+    @Test
+    public void unreadBodyIsSkippedBeforeTheNextRequest() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            // Both requests in one write; nothing reads the first body, which is not found
+            String body = "{\"name\":\"unread\"}";
+            socket.getOutputStream().write(("POST /api/missing HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body
+                    + "GET /api/items/1 HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            RawResponse missing = RawResponse.read(in);
+            assertEquals(404, missing.status);
+            assertNotNull(missing.headers.get("keep-alive"));
+            RawResponse item = RawResponse.read(in);
+            assertEquals(200, item.status);
+            assertTrue(item.body, item.body.contains("\"name\":\"Item 1\""));
+        }
+    }
+
+    @Test
+    public void connectionsOverTheCapGet503() throws Exception {
+        server.stop();
+        ServerConfig config = new ServerConfig();
+        config.maxConnections = 1;
+        start(config);
+        try (Socket held = new Socket("127.0.0.1", port)) {
+            held.setSoTimeout(5000);
+            // A served request leaves the connection open and counted
+            held.getOutputStream().write("GET /api/items/1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals(200, RawResponse.read(held.getInputStream()).status);
+
+            try (Socket extra = new Socket("127.0.0.1", port)) {
+                extra.setSoTimeout(5000);
+                RawResponse rejected = RawResponse.read(extra.getInputStream());
+                assertEquals(503, rejected.status);
+                assertEquals("close", rejected.headers.get("connection"));
+            }
+        }
+    }
+
+    private void start(ServerConfig config) throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new AndroidBackendServer(context, port, config);
+        server.start(5000, true);
+    }
+
+    private int get(String path, String header, String value) throws Exception {
+        HttpURLConnection connection = open("GET", path);
+        connection.setRequestProperty(header, value);
+        return status(connection);
+    }
+
+    private int request(String method, String path) throws Exception {
+        return status(open(method, path));
+    }
+
+    private int send(String method, String path, String json) throws Exception {
+        HttpURLConnection connection = open(method, path);
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return status(connection);
+    }
+
+    private String body(String path) throws Exception {
+        HttpURLConnection connection = open("GET", path);
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String method, String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    // One response read off a raw connection, so tests can see what is on the wire
+    private static final class RawResponse {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        String body;
+
+        static RawResponse read(InputStream in) throws Exception {
+            RawResponse response = new RawResponse();
+            String statusLine = readLine(in);
+            response.status = Integer.parseInt(statusLine.split(" ")[1]);
+            for (String line; !(line = readLine(in)).isEmpty(); ) {
+                int colon = line.indexOf(':');
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equalsIgnoreCase(response.headers.get("transfer-encoding"))) {
+                for (int size; (size = Integer.parseInt(readLine(in).trim(), 16)) > 0; readLine(in)) {
+                    body.write(readBytes(in, size));
+                }
+                readLine(in);
+            } else {
+                String length = response.headers.get("content-length");
+                body.write(readBytes(in, length != null ? Integer.parseInt(length) : 0));
+            }
+            response.body = body.toString("UTF-8");
+            return response;
+        }
+
+        private static String readLine(InputStream in) throws Exception {
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != '\n'; ) {
+                if (c < 0) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static byte[] readBytes(InputStream in, int count) throws Exception {
+            byte[] bytes = new byte[count];
+            for (int read = 0, n; read < count; read += n) {
+                if ((n = in.read(bytes, read, count - read)) < 0) {
+                    throw new EOFException("Connection closed mid-body");
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static int status(HttpURLConnection connection) throws Exception {
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Format negotiation and the hand-written CBOR encoder and decoder.
+ */
+public class CodecTest {
+
+    private static final List<Data> ITEMS = Arrays.asList(
+            new Data(1, "plain", ""),
+            new Data(-25, "q\"b\\s\n", "\u00e9\u4e2d\ud83d\ude00 \ud800x"),
+            new Data(Integer.MAX_VALUE, "x".repeat(300), "y".repeat(70_000)),
+            new Data(Integer.MIN_VALUE, "min", "d"));
+
+    @Test
+    public void negotiatesFormat() {
+        assertSame(Codec.JSON, Codec.forAccept(null));
+        assertSame(Codec.JSON, Codec.forAccept("*/*"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/cbor"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/cbor, */*;q=0.8"));
+        assertSame(Codec.CBOR, Codec.forAccept("application/json;q=0.5, application/cbor"));
+        assertSame(Codec.JSON, Codec.forAccept("application/json, application/cbor"));
+        assertSame(Codec.JSON, Codec.forAccept("application/cbor;q=0, */*"));
+        assertSame(Codec.CBOR, Codec.forContentType("application/cbor"));
+        assertSame(Codec.JSON, Codec.forContentType("application/x-www-form-urlencoded"));
+        assertSame(Codec.JSON, Codec.forContentType(null));
+    }
+
+    @Test
+    public void encodesItemAsCborMap() {
+        CborBuffer cbor = new CborBuffer(16).writeData(new Data(500, "a", ""));
+        // map(3) "id" 500 "name" "a" "description" ""
+        byte[] expected = {(byte) 0xA3, 0x62, 'i', 'd', 0x19, 0x01, (byte) 0xF4,
+                0x64, 'n', 'a', 'm', 'e', 0x61, 'a',
+                0x6B, 'd', 'e', 's', 'c', 'r', 'i', 'p', 't', 'i', 'o', 'n', 0x60};
+        assertArrayEquals(expected, Arrays.copyOf(cbor.bytes(), cbor.length()));
+
+        cbor = new CborBuffer(16).writeData(new Data(-1, "a", ""), JsonBuffer.FIELD_ID);
+        assertArrayEquals(new byte[]{(byte) 0xA1, 0x62, 'i', 'd', 0x20},
+                Arrays.copyOf(cbor.bytes(), cbor.length()));
+    }
+
+    @Test
+    public void listsRoundTripThroughBufferAndStream() throws Exception {
+        CborBuffer buffer = new CborBuffer(16);
+        assertTrue(buffer.writeArray(ITEMS.iterator(), JsonBuffer.ALL_FIELDS, Integer.MAX_VALUE));
+        byte[] buffered = Arrays.copyOf(buffer.bytes(), buffer.length());
+        byte[] streamed = readAll(new CborArrayStream(ITEMS.iterator(), JsonBuffer.ALL_FIELDS));
+        assertArrayEquals(buffered, streamed);
+
+        List<Data> decoded = readList(streamed);
+        // The unpaired surrogate is replaced, as it would be by String.getBytes
+        assertEquals(new Data(-25, "q\"b\\s\n", "\u00e9\u4e2d\ud83d\ude00 ?x"), decoded.get(1));
+        assertEquals(ITEMS.get(0), decoded.get(0));
+        assertEquals(ITEMS.get(2), decoded.get(2));
+        assertEquals(ITEMS.get(3), decoded.get(3));
+
+        assertArrayEquals(new byte[]{(byte) 0x9F, (byte) 0xFF},
+                readAll(new CborArrayStream(new ArrayList<Data>().iterator(), JsonBuffer.ALL_FIELDS)));
+    }
+
+    @Test
+    public void readsRequestItems() throws Exception {
+        // {"extra":[1,{"k":2.5}],"name":"n","description":null, 7: true} with an indefinite map
+        byte[] body = {(byte) 0xBF, 0x65, 'e', 'x', 't', 'r', 'a', (byte) 0x82, 0x01,
+                (byte) 0xA1, 0x61, 'k', (byte) 0xF9, 0x41, 0x00,
+                0x64, 'n', 'a', 'm', 'e', 0x61, 'n',
+                0x6B, 'd', 'e', 's', 'c', 'r', 'i', 'p', 't', 'i', 'o', 'n', (byte) 0xF6,
+                0x07, (byte) 0xF5, (byte) 0xFF};
+        Codec.Item item = Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, body, body.length);
+        assertEquals("n", item.value(0));
+        assertNull(item.value(1));
+
+        for (int cut = 0; cut < body.length; cut++) {
+            try {
+                Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, body, cut);
+                fail("Read a body truncated to " + cut + " bytes");
+            } catch (Codec.MalformedException expected) {
+                // Truncated
+            }
+        }
+        try {
+            Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, new byte[]{(byte) 0x80}, 1);
+            fail("Read an array as an item");
+        } catch (Codec.MalformedException expected) {
+            // Not a map
+        }
+    }
+
+    @Test
+    public void indefiniteStringsTakeOnlyDefiniteChunks() throws Exception {
+        // {"name": (_ "ab", "c")}
+        byte[] chunked = {(byte) 0xA1, 0x64, 'n', 'a', 'm', 'e', 0x7F, 0x62, 'a', 'b', 0x61, 'c', (byte) 0xFF};
+        assertEquals("abc", Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, chunked, chunked.length).value(0));
+
+        // {"name": (_ (_ (_ ...} nested 20,000 deep, as a value and as an ignored key's value
+        for (String key : new String[]{"name", "other"}) {
+            byte[] nested = new byte[2 + key.length() + 20_000];
+            nested[0] = (byte) 0xA1;
+            nested[1] = (byte) (0x60 + key.length());
+            System.arraycopy(key.getBytes(StandardCharsets.UTF_8), 0, nested, 2, key.length());
+            Arrays.fill(nested, 2 + key.length(), nested.length, (byte) 0x7F);
+            try {
+                Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, nested, nested.length);
+                fail("Read nested indefinite strings under " + key);
+            } catch (Codec.MalformedException expected) {
+                // Chunks must be definite-length
+            }
+        }
+        // A byte string chunk inside a text string
+        byte[] mixed = {(byte) 0xA1, 0x65, 'o', 't', 'h', 'e', 'r', 0x7F, 0x41, 'a', (byte) 0xFF};
+        try {
+            Codec.CBOR.readItem(CollectionSchema.ITEMS_SHAPE, mixed, mixed.length);
+            fail("Read a byte string chunk in a text string");
+        } catch (Codec.MalformedException expected) {
+            // Chunks must match the string's type
+        }
+    }
+
+    @Test
+    public void cborListIsSmallerThanJsonAndReadsBack() throws Exception {
+        // Speed is measured by CodecBenchmark
+        List<Data> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(new Data(i * 37, "Item " + i, "Description of item number " + i + " \u00e9"));
+        }
+        JsonBuffer json = new JsonBuffer(64 * 1024);
+        json.writeArray(items.iterator(), JsonBuffer.ALL_FIELDS, Integer.MAX_VALUE);
+        CborBuffer cbor = new CborBuffer(64 * 1024);
+        cbor.writeArray(items.iterator(), JsonBuffer.ALL_FIELDS, Integer.MAX_VALUE);
+
+        assertTrue("CBOR " + cbor.length() + " bytes, JSON " + json.length(), cbor.length() < json.length());
+        assertEquals(items, readList(Arrays.copyOf(cbor.bytes(), cbor.length())));
+    }
+
+    private static List<Data> readList(byte[] encoded) throws Codec.MalformedException {
+        CborReader reader = new CborReader(encoded, 0, encoded.length);
+        List<Data> items = new ArrayList<>();
+        long count = reader.readArrayStart();
+        for (long i = 0; count < 0 ? !reader.readBreak() : i < count; i++) {
+            items.add(reader.readData());
+        }
+        assertFalse(reader.hasMore());
+        return items;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        for (int n; (n = in.read(buffer, 0, buffer.length)) >= 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
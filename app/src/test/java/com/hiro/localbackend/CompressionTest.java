@@ -0,0 +1,63 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accept-Encoding negotiation and round trips through both encoders.
+ */
+public class CompressionTest {
+
+    @Test
+    public void negotiatesByQuality() {
+        assertNull(Compression.negotiate(null));
+        assertNull(Compression.negotiate("identity"));
+        assertNull(Compression.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals(Compression.Encoding.GZIP, Compression.negotiate("gzip, deflate, br"));
+        assertEquals(Compression.Encoding.DEFLATE, Compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(Compression.Encoding.DEFLATE, Compression.negotiate("gzip;q=0, *"));
+        assertEquals(Compression.Encoding.GZIP, Compression.negotiate("*"));
+    }
+
+    @Test
+    public void buffersAndStreamsDecodeToTheInput() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            text.append("{\"id\":").append(i).append(",\"name\":\"Item ").append(i).append("\"},");
+        }
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            byte[] buffered = Compression.compress(encoding, body, 0, body.length);
+            assertTrue(buffered.length < body.length / 4);
+            assertArrayEquals(body, decode(encoding, new ByteArrayInputStream(buffered)));
+
+            InputStream streamed = Compression.compressing(encoding, new ByteArrayInputStream(body));
+            assertArrayEquals(body, decode(encoding, streamed));
+            streamed.close();
+        }
+        // Empty bodies still produce a valid stream
+        assertArrayEquals(new byte[0], decode(Compression.Encoding.GZIP,
+                Compression.compressing(Compression.Encoding.GZIP, new ByteArrayInputStream(new byte[0]))));
+    }
+
+    private static byte[] decode(Compression.Encoding encoding, InputStream encoded) throws IOException {
+        InputStream in = encoding == Compression.Encoding.GZIP
+                ? new GZIPInputStream(encoded) : new InflaterInputStream(encoded);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
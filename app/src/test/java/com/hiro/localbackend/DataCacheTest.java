@@ -0,0 +1,65 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Weighted LRU eviction and snapshot tagging in DataCache.
+ */
+public class DataCacheTest {
+
+    private final SnapshotFile first = SnapshotFile.empty();
+    private final SnapshotFile second = SnapshotFile.empty();
+
+    @Test
+    public void evictsLeastRecentlyUsedWithinBudget() {
+        // Room for two small items per stripe
+        DataCache cache = new DataCache(16 * 2 * DataCache.weigh(new Data(0, "n", "d")));
+        int[] ids = sameStripe(4);
+        Data a = new Data(ids[0], "n", "d");
+        Data b = new Data(ids[1], "n", "d");
+        Data c = new Data(ids[2], "n", "d");
+        cache.put(a.id(), a, first);
+        cache.put(b.id(), b, first);
+        assertSame(a, cache.get(a.id(), first));
+        cache.put(c.id(), c, first);
+        assertNull(cache.get(b.id(), first));
+        assertSame(a, cache.get(a.id(), first));
+        assertSame(c, cache.get(c.id(), first));
+        assertEquals(1, cache.evictions());
+        assertEquals(3, cache.hits());
+        assertEquals(3, cache.misses());
+
+        // Larger than a whole stripe: never held
+        cache.put(ids[3], new Data(ids[3], "n", new String(new char[4096])), first);
+        assertNull(cache.get(ids[3], first));
+        assertEquals(2, cache.size());
+    }
+
+    // Ids that land in the same stripe as id 1
+    private static int[] sameStripe(int count) {
+        int[] ids = new int[count];
+        int found = 0;
+        for (int id = 1; found < count; id++) {
+            if (DataCache.stripeIndex(id) == DataCache.stripeIndex(1)) {
+                ids[found++] = id;
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void entriesOnlyAnswerForTheirSnapshot() {
+        DataCache cache = new DataCache(1024 * 1024);
+        cache.put(1, new Data(1, "kept", ""), first);
+        cache.put(2, new Data(2, "rewritten", ""), first);
+        assertNull(cache.get(1, second));
+
+        cache.rebase(first, second, new int[]{2});
+        assertEquals("kept", cache.get(1, second).name());
+        assertNull(cache.get(2, second));
+        assertNull(cache.get(1, first));
+        assertEquals(DataCache.weigh(new Data(1, "kept", "")), cache.bytes());
+    }
+}
@@ -0,0 +1,44 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntObjectMapTest {
+    @Test
+    public void putGetRemove() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.get(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (int key = 0; key < 5_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Output of the hand-written JSON serializer used for streamed item lists.
+ */
+public class JsonArrayStreamTest {
+
+    @Test
+    public void writesEmptyArray() throws Exception {
+        assertEquals("[]", readAll(new JsonArrayStream(Collections.emptyIterator()), 64));
+    }
+
+    @Test
+    public void escapesStrings() throws Exception {
+        Iterator<Data> items = Arrays.asList(
+                new Data(1, "plain", ""),
+                new Data(-2, "q\"b\\s\n\t\u0001", "\u00e9\u4e2d\ud83d\ude00 \u2028")).iterator();
+        assertEquals("[{\"id\":1,\"name\":\"plain\",\"description\":\"\"},"
+                        + "{\"id\":-2,\"name\":\"q\\\"b\\\\s\\n\\t\\u0001\","
+                        + "\"description\":\"\u00e9\u4e2d\ud83d\ude00 \\u2028\"}]",
+                readAll(new JsonArrayStream(items), 7));
+    }
+
+    @Test
+    public void streamsItemsLazily() throws Exception {
+        int total = 200_000;
+        // Items are created on demand and never collected, as with the store iterator
+        Iterator<Data> items = new Iterator<Data>() {
+            int produced;
+
+            @Override
+            public boolean hasNext() {
+                return produced < total;
+            }
+
+            @Override
+            public Data next() {
+                produced++;
+                return new Data(produced, "name " + produced, "description");
+            }
+        };
+        InputStream stream = new JsonArrayStream(items);
+        byte[] buffer = new byte[4096];
+        long objects = 0;
+        int last = -1;
+        for (int n; (n = stream.read(buffer, 0, buffer.length)) > 0; ) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '{') {
+                    objects++;
+                }
+            }
+            last = buffer[n - 1];
+        }
+        assertEquals(total, objects);
+        assertEquals(']', last);
+    }
+
+    private static String readAll(InputStream stream, int chunk) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunk];
+        for (int n; (n = stream.read(buffer, 0, chunk)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+}
@@ -0,0 +1,124 @@
+package com.hiro.localbackend;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * The byte-level JSON parser, and what it saves over an org.json round trip.
+ */
+public class JsonParserTest {
+
+    @Test
+    public void readsItemsWithEscapesAndUnicode() throws Exception {
+        Codec.Item item = readItem("{\"id\":7, \"name\" : \"q\\\"b\\\\s\\n\\u00e9\\ud83d\\ude00\","
+                + "\"extra\":{\"a\":[1,-2.5e3,true,false,null,{}],\"b\":\"x\"},"
+                + "\"description\":\"\u00e9\u4e2d\ud83d\ude00\"}");
+        assertEquals("q\"b\\s\n\u00e9\ud83d\ude00", item.value(0));
+        assertEquals("\u00e9\u4e2d\ud83d\ude00", item.value(1));
+
+        item = readItem(" {\"description\":null} \n");
+        assertNull(item.value(0));
+        assertNull(item.value(1));
+
+        // Keys with escapes still match
+        assertEquals("n", readItem("{\"na\\u006de\":\"n\"}").value(0));
+    }
+
+    @Test
+    public void readsDataWrittenByJsonBuffer() throws Exception {
+        Data data = new Data(Integer.MIN_VALUE, "a\u0001\u2028b", "\ud800 tail");
+        JsonBuffer json = new JsonBuffer(16).writeData(data);
+        Data read = new JsonParser(json.bytes(), 0, json.length()).readData();
+        // The unpaired surrogate is written as '?', like String.getBytes does
+        assertEquals(new Data(Integer.MIN_VALUE, "a\u0001\u2028b", "? tail"), read);
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] bodies = {"", "[]", "{", "{\"name\"}", "{\"name\":\"a\",}", "{\"name\":\"a\" \"b\":1}",
+                "{\"name\":\"unterminated}", "{\"name\":\"a\"} x", "{\"a\":[1,]}", "{\"a\":01}",
+                "{\"a\":tru}", "{\"name\":\"\\x\"}", "{\"name\":\"tab\there\"}", "{\"a\":-}"};
+        for (String body : bodies) {
+            try {
+                readItem(body);
+                fail("Accepted " + body);
+            } catch (Codec.MalformedException expected) {
+                // Rejected
+            }
+        }
+    }
+
+    @Test
+    public void numbersThatAreNotIntsAreReportedSeparately() throws Exception {
+        JsonParser parser = parser("[1.5, 4294967296, 12]");
+        parser.beginArray();
+        for (int i = 0; i < 2; i++) {
+            try {
+                parser.nextInt();
+                fail();
+            } catch (NumberFormatException expected) {
+                // Consumed, so parsing goes on
+            }
+        }
+        assertEquals(12, parser.nextInt());
+        parser.endArray();
+        parser.requireEnd();
+    }
+
+    @Test
+    public void allocatesAFifthOfAnOrgJsonRoundTrip() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+        byte[] body = "{\"name\":\"Sample item name\",\"description\":\"A description of moderate length\"}"
+                .getBytes(StandardCharsets.UTF_8);
+        int rounds = 20_000;
+        long sink = 0;
+        long orgJsonBytes = 0;
+        long parserBytes = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            // What createItem did before: body as a String, JSONObject both ways, String response
+            long start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < rounds; i++) {
+                JSONObject request = new JSONObject(new String(body, StandardCharsets.UTF_8));
+                Data data = new Data(i, request.optString("name"), request.optString("description"));
+                JSONObject response = new JSONObject();
+                response.put("id", data.id());
+                response.put("name", data.name());
+                response.put("description", data.description());
+                sink += response.toString().getBytes(StandardCharsets.UTF_8).length;
+            }
+            orgJsonBytes = (threads.getThreadAllocatedBytes(thread) - start) / rounds;
+
+            start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < rounds; i++) {
+                Codec.Item request = Codec.JSON.readItem(CollectionSchema.ITEMS_SHAPE, body, body.length);
+                Data data = new Data(i, request.value(0), request.value(1));
+                JsonBuffer response = new JsonBuffer(128).writeData(data);
+                sink += response.length();
+            }
+            parserBytes = (threads.getThreadAllocatedBytes(thread) - start) / rounds;
+        }
+        // The sink keeps the loops from being optimised away
+        assertTrue(sink > 0);
+        assertTrue("org.json " + orgJsonBytes + " bytes, JsonParser/JsonBuffer " + parserBytes,
+                orgJsonBytes >= 5 * parserBytes);
+    }
+
+    private static Codec.Item readItem(String body) throws Codec.MalformedException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return Codec.JSON.readItem(CollectionSchema.ITEMS_SHAPE, bytes, bytes.length);
+    }
+
+    private static JsonParser parser(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return new JsonParser(bytes, 0, bytes.length);
+    }
+}
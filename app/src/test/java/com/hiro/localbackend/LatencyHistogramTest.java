@@ -0,0 +1,39 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucket layout and percentile reads of LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContiguousAndWithinSixPercent() {
+        int previous = -1;
+        for (long micros = 0; micros < 1_000_000; micros++) {
+            int index = LatencyHistogram.indexOf(micros);
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+            long top = LatencyHistogram.highestValueAt(index);
+            assertTrue(top >= micros);
+            assertTrue(top - micros <= Math.max(1, micros / 16));
+        }
+    }
+
+    @Test
+    public void percentilesComeFromRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(0.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1000, histogram.maxMicros());
+        assertEquals(500_500, histogram.sumMicros());
+        long median = histogram.percentileMicros(0.5);
+        assertTrue(median >= 500 && median <= 500 * 17 / 16);
+        assertEquals(1000, histogram.percentileMicros(1.0));
+    }
+}
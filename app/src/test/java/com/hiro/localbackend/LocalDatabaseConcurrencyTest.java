@@ -0,0 +1,172 @@
+package com.hiro.localbackend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency stress test for LocalDatabase, run against a temp directory on the host JVM.
+ */
+public class LocalDatabaseConcurrencyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private LocalDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("db");
+        database = open(256 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void concurrentAddsGetUniqueIds() throws Exception {
+        int threads = 8;
+        int perThread = 2_000;
+        List<List<Data>> added = runConcurrently(threads, thread -> {
+            List<Data> mine = new ArrayList<>();
+            for (int i = 0; i < perThread; i++) {
+                mine.add(database.addData("t" + thread + "-" + i, "d"));
+            }
+            return mine;
+        });
+
+        Set<Integer> ids = new HashSet<>();
+        for (List<Data> list : added) {
+            for (Data data : list) {
+                assertTrue("duplicate id " + data.id(), ids.add(data.id()));
+            }
+        }
+        assertEquals(threads * perThread, ids.size());
+        assertEquals(threads * perThread, database.size());
+        assertEquals(threads * perThread, database.getData().size());
+    }
+
+    @Test
+    public void concurrentWritesSurviveCompactionAndRestart() throws Exception {
+        database.close();
+        // Small threshold so several compactions run while writers are active
+        database = open(32 * 1024);
+
+        int threads = 6;
+        runConcurrently(threads, thread -> {
+            List<Data> mine = new ArrayList<>();
+            for (int i = 0; i < 1_500; i++) {
+                Data data = database.addData("t" + thread, "v0");
+                mine.add(data);
+                if (i % 3 == 0) {
+                    Data update = new Data(data.id(), data.name(), "v" + i);
+                    assertTrue(database.updateData(update));
+                    assertEquals(update, database.getData(update.id()));
+                }
+                if (i % 5 == 0) {
+                    assertTrue(database.deleteData(data.id()));
+                    assertNull(database.getData(data.id()));
+                }
+            }
+            return mine;
+        });
+
+        List<Data> before = database.getData();
+        assertEquals(database.size(), before.size());
+        List<Data> iterated = new ArrayList<>();
+        database.iterator().forEachRemaining(iterated::add);
+        assertEquals(before, iterated);
+
+        database.close();
+        database = open(32 * 1024);
+        assertEquals(before, database.getData());
+
+        int maxId = before.isEmpty() ? 0 : before.get(before.size() - 1).id();
+        assertTrue(database.addData("after", "restart").id() > maxId);
+    }
+
+    @Test
+    public void compareAndSwapUpdatesLoseNothing() throws Exception {
+        Data counter = database.addData("counter", "0");
+        int threads = 6;
+        int perThread = 500;
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < perThread; i++) {
+                while (true) {
+                    // Version first, so a racing write can only make it stale
+                    long version = database.revision(counter.id()).version();
+                    int value = Integer.parseInt(database.getData(counter.id()).description());
+                    LocalDatabase.WriteResult result = database.updateData(counter.id(), null,
+                            Integer.toString(value + 1), version);
+                    if (result.status() == LocalDatabase.WriteResult.Status.WRITTEN) {
+                        // Other threads may have written since, but never an older version
+                        assertTrue(database.revision(counter.id()).version() >= result.revision().version());
+                        break;
+                    }
+                    assertEquals(LocalDatabase.WriteResult.Status.CONFLICT, result.status());
+                }
+            }
+            return null;
+        });
+        assertEquals(Integer.toString(threads * perThread), database.getData(counter.id()).description());
+        // The name was left out of every update and kept
+        assertEquals("counter", database.getData(counter.id()).name());
+
+        long stale = database.revision(counter.id()).version() - 1;
+        assertEquals(LocalDatabase.WriteResult.Status.CONFLICT, database.deleteData(counter.id(), stale).status());
+        long current = database.revision(counter.id()).version();
+        assertEquals(LocalDatabase.WriteResult.Status.WRITTEN, database.deleteData(counter.id(), current).status());
+        assertEquals(LocalDatabase.WriteResult.Status.NOT_FOUND,
+                database.deleteData(counter.id(), LocalDatabase.ANY_VERSION).status());
+    }
+
+    private LocalDatabase open(long compactionThresholdBytes) {
+        return new LocalDatabase(directory, null, WriteAheadLog.SyncPolicy.NEVER,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, compactionThresholdBytes);
+    }
+
+    private interface Worker<T> {
+        T run(int thread) throws Exception;
+    }
+
+    private static <T> List<T> runConcurrently(int threads, Worker<T> worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return worker.run(thread);
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(60, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
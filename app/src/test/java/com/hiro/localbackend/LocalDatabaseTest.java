@@ -0,0 +1,403 @@
+package com.hiro.localbackend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single-threaded LocalDatabase behaviour, against a temp directory on the host JVM.
+ */
+public class LocalDatabaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private LocalDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("db");
+        database = open();
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void pagesWalkIdOrderAcrossSnapshotAndOverlay() {
+        for (int i = 0; i < 50; i++) {
+            database.addData("item " + i, "first");
+        }
+        // Restart so the first half comes from the snapshot and the rest from the log
+        database.close();
+        database = open();
+        for (int i = 50; i < 100; i++) {
+            database.addData("item " + i, "second");
+        }
+        for (int id = 3; id <= 100; id += 7) {
+            database.deleteData(id);
+        }
+
+        List<Data> expected = database.getData();
+        List<Data> paged = new ArrayList<>();
+        int after = Integer.MIN_VALUE;
+        while (true) {
+            Iterator<Data> page = database.iterator(after);
+            int taken = 0;
+            while (taken < 9 && page.hasNext()) {
+                paged.add(page.next());
+                taken++;
+            }
+            if (taken == 0) {
+                break;
+            }
+            after = paged.get(paged.size() - 1).id();
+        }
+        assertEquals(expected, paged);
+        assertFalse(database.iterator(100).hasNext());
+        assertEquals(2, database.iterator(1).next().id());
+    }
+
+    @Test
+    public void indexesFollowWritesAndRebuildOnRestart() {
+        Data apple = database.addData("apple", "Red fruit, crisp");
+        Data apricot = database.addData("apricot", "orange fruit");
+        Data banana = database.addData("banana", "yellow FRUIT");
+        createIndexes();
+
+        SecondaryIndex.Hash names = database.index("name");
+        SecondaryIndex.Sorted sorted = database.index("sorted");
+        SecondaryIndex.FullText text = database.index("text");
+        assertArrayEquals(new int[]{apple.id()}, names.get("apple"));
+        assertArrayEquals(new int[]{apple.id(), apricot.id()},
+                sorted.range("ap", SecondaryIndex.Sorted.prefixEnd("ap")));
+        assertArrayEquals(new int[]{apricot.id(), banana.id()}, sorted.range("apr", "c"));
+        assertArrayEquals(new int[]{apple.id(), apricot.id(), banana.id()}, text.search("fruit"));
+
+        database.updateData(new Data(apple.id(), "avocado", "green"));
+        database.deleteData(banana.id());
+        Data cherry = database.addData("cherry", "red fruit");
+        assertArrayEquals(new int[0], names.get("apple"));
+        assertArrayEquals(new int[]{apple.id()}, names.get("avocado"));
+        assertArrayEquals(new int[]{apricot.id(), cherry.id()}, text.search("FRUIT"));
+        assertArrayEquals(new int[]{cherry.id()}, text.search("red fruit"));
+
+        database.close();
+        database = open();
+        createIndexes();
+        SecondaryIndex.Sorted rebuilt = database.index("sorted");
+        assertArrayEquals(new int[]{apple.id(), apricot.id()},
+                rebuilt.range("a", SecondaryIndex.Sorted.prefixEnd("a")));
+        SecondaryIndex.FullText rebuiltText = database.index("text");
+        assertArrayEquals(new int[]{cherry.id()}, rebuiltText.search("red"));
+    }
+
+    @Test
+    public void indexQueriesPageFromTheCursor() {
+        for (int i = 0; i < 300; i++) {
+            // Values out of id order, some shared, so the merge interleaves many lists
+            database.addData("k" + (i * 37 % 101), "v");
+        }
+        for (int id = 5; id <= 300; id += 11) {
+            database.deleteData(id);
+        }
+        createIndexes();
+        SecondaryIndex.Sorted sorted = database.index("sorted");
+        SecondaryIndex.Hash names = database.index("name");
+
+        List<Integer> expected = new ArrayList<>();
+        for (Data data : database.getData()) {
+            if (data.name().startsWith("k1")) {
+                expected.add(data.id());
+            }
+        }
+        List<Integer> paged = new ArrayList<>();
+        int after = Integer.MIN_VALUE;
+        for (int[] page; (page = sorted.range("k1", "k2", after, 7)).length > 0; after = page[page.length - 1]) {
+            assertTrue(page.length <= 7);
+            for (int id : page) {
+                paged.add(id);
+            }
+        }
+        assertEquals(expected, paged);
+
+        List<Integer> iterated = new ArrayList<>();
+        database.iterator((afterId, max) -> sorted.range("k1", "k2", afterId, max), Integer.MIN_VALUE)
+                .forEachRemaining(data -> iterated.add(data.id()));
+        assertEquals(expected, iterated);
+
+        int[] all = names.get("k1");
+        assertArrayEquals(Arrays.copyOfRange(all, 1, 3), names.get("k1", all[0], 2));
+        assertArrayEquals(new int[0], names.get("k1", all[all.length - 1], 10));
+    }
+
+    @Test
+    public void batchesApplyTogetherAndUncommittedOnesAreDropped() throws Exception {
+        Data keep = database.addData("keep", "k");
+        Data gone = database.addData("gone", "g");
+        List<BatchOperation.Result> results = database.applyBatch(Arrays.asList(
+                BatchOperation.create("new", "n"),
+                BatchOperation.update(keep.id(), null, "k2"),
+                BatchOperation.delete(gone.id()),
+                BatchOperation.delete(12345),
+                BatchOperation.put(100, "fixed", "f")));
+        assertEquals(BatchOperation.Outcome.CREATED, results.get(0).outcome());
+        assertEquals(new Data(keep.id(), "keep", "k2"), results.get(1).data());
+        assertEquals(BatchOperation.Outcome.DELETED, results.get(2).outcome());
+        assertEquals(BatchOperation.Outcome.NOT_FOUND, results.get(3).outcome());
+        assertEquals(BatchOperation.Outcome.CREATED, results.get(4).outcome());
+        List<Data> expected = database.getData();
+        database.close();
+
+        // A transaction cut off by a crash: begin and a put, but no commit
+        WriteAheadLog log = new WriteAheadLog(directory, "items_data", 1_000,
+                WriteAheadLog.SyncPolicy.NEVER, 0);
+        log.appendBegin();
+        log.appendPut(7, "half", "written");
+        log.close();
+
+        database = open();
+        assertEquals(expected, database.getData());
+        assertTrue(database.addData("next", "").id() > 100);
+    }
+
+    @Test
+    public void changeFeedKeepsMutationsInOrderAndSkipsReplay() throws Exception {
+        database.addData("a", "x");
+        database.close();
+        database = open();
+        ChangeFeed feed = database.changes();
+        long start = feed.latest();
+        // The replayed create is part of the initial state, not a change since it
+        assertNull(feed.since(start - 1, 10));
+
+        Data created = database.addData("b", "y");
+        database.updateData(new Data(created.id(), "b2", "y"));
+        database.deleteData(1);
+
+        List<ChangeFeed.Change> changes = feed.since(start, 10);
+        assertEquals(3, changes.size());
+        assertEquals(ChangeFeed.Type.CREATE, changes.get(0).type());
+        assertEquals(ChangeFeed.Type.UPDATE, changes.get(1).type());
+        assertEquals("b2", changes.get(1).data().name());
+        assertEquals(ChangeFeed.Type.DELETE, changes.get(2).type());
+        assertNull(changes.get(2).data());
+        assertEquals(database.revision().version(), changes.get(2).seq());
+        assertEquals(changes.get(1).seq(), database.revision(created.id()).version());
+        // A deleted id keeps no revision of its own
+        assertEquals(0, database.revision(1).version());
+
+        // Nothing new: a poll waits out its timeout and comes back empty
+        assertTrue(feed.await(feed.latest(), 10, 20).isEmpty());
+        assertNull(feed.since(feed.latest() + 1, 10));
+    }
+
+    @Test
+    public void compactedItemsReportTheCompactionsRevision() throws Exception {
+        Data first = database.addData("first", "x");
+        long created = database.revision(first.id()).version();
+        // Enough writes to other ids that the tiny threshold compacts the first one away
+        for (int i = 0; database.timings().compaction.count() == 0; i++) {
+            assertTrue("No compaction finished", i < 10_000);
+            database.addData("item " + i, "padding to grow the log");
+            if (i > 100) {
+                Thread.sleep(1);
+            }
+        }
+
+        Revision compacted = database.revision(first.id());
+        assertTrue(compacted.version() > created);
+        assertTrue(compacted.version() <= database.revision().version());
+        // The version it reports is the one compare-and-swap checks against
+        assertEquals(LocalDatabase.WriteResult.Status.CONFLICT,
+                database.updateData(first.id(), "first", "y", created).status());
+        LocalDatabase.WriteResult written = database.updateData(first.id(), "first", "y", compacted.version());
+        assertEquals(LocalDatabase.WriteResult.Status.WRITTEN, written.status());
+        assertEquals(written.revision(), database.revision(first.id()));
+    }
+
+    @Test
+    public void collectionsInOneDirectoryStayApart() {
+        database.addData("a", "x");
+        // The files of a collection named "items_data" start with those of "items"
+        LocalDatabase other = new LocalDatabase(directory, "items_data_data", null,
+                WriteAheadLog.SyncPolicy.NEVER, LocalDatabase.DEFAULT_SYNC_INTERVAL_MS,
+                LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES, 1024, 0);
+        try {
+            for (int i = 0; i < 50; i++) {
+                other.addData("o" + i, "y");
+            }
+            other.deleteData(1);
+            assertEquals(Arrays.asList(new Data(1, "a", "x")), database.getData());
+            assertEquals(1, database.revision().version());
+
+            database.close();
+            other.close();
+            database = open();
+            other = new LocalDatabase(directory, "items_data_data", null,
+                    WriteAheadLog.SyncPolicy.NEVER, LocalDatabase.DEFAULT_SYNC_INTERVAL_MS,
+                    LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES, 1024, 0);
+            assertEquals(Arrays.asList(new Data(1, "a", "x")), database.getData());
+            assertEquals(49, other.size());
+            // Id sequences are separate too
+            assertEquals(2, database.addData("b", "").id());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void cachedReadsFollowWritesAcrossCompactions() {
+        database.close();
+        // A budget too small for every item, so reads both hit and evict
+        database = new LocalDatabase(directory, "items_data", null, WriteAheadLog.SyncPolicy.NEVER,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES, 1024, 4 * 1024);
+        for (int i = 0; i < 200; i++) {
+            database.addData("item " + i, "v0");
+        }
+        database.close();
+        database = new LocalDatabase(directory, "items_data", null, WriteAheadLog.SyncPolicy.NEVER,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES, 1024, 4 * 1024);
+
+        String[] expected = new String[201];
+        java.util.Arrays.fill(expected, "v0");
+        for (int round = 1; round <= 20; round++) {
+            for (int id = round; id <= 200; id += 7) {
+                assertEquals(expected[id], database.getData(id).description());
+                database.updateData(new Data(id, "item " + (id - 1), "v" + round));
+                expected[id] = "v" + round;
+            }
+            for (int id = 1; id <= 200; id++) {
+                assertEquals(expected[id], database.getData(id).description());
+            }
+        }
+        DataCache cache = database.cache();
+        assertTrue(cache.hits() > 0);
+        assertTrue(cache.evictions() > 0);
+        assertTrue(cache.bytes() <= 4 * 1024);
+    }
+
+    @Test
+    public void flushWritesOutWhatTheIntervalHoldsBack() throws Exception {
+        database.close();
+        // An interval and threshold long enough that nothing would be written on its own
+        database = new LocalDatabase(directory, "items_data", null, WriteAheadLog.SyncPolicy.NEVER,
+                60_000, 1024 * 1024, LocalDatabase.DEFAULT_COMPACTION_THRESHOLD_BYTES, 0);
+        long empty = logBytes();
+        for (int i = 0; i < 100; i++) {
+            database.addData("item " + i, "v");
+        }
+        assertEquals(100, database.size());
+        assertEquals(empty, logBytes());
+
+        database.flush();
+        assertTrue(logBytes() > empty);
+        database.updateData(new Data(1, "first", "v2"));
+        database.close();
+        database = open();
+        assertEquals(100, database.size());
+        assertEquals("first", database.getData(1).name());
+    }
+
+    @Test
+    public void declaredFieldsSurviveRestartsAndCompaction() throws Exception {
+        CollectionSchema.Field title = new CollectionSchema.Field("title", CollectionSchema.Field.Type.STRING);
+        CollectionSchema schema = new CollectionSchema("notes", title,
+                new CollectionSchema.Field("count", CollectionSchema.Field.Type.INTEGER),
+                new CollectionSchema.Field("score", CollectionSchema.Field.Type.NUMBER),
+                new CollectionSchema.Field("done", CollectionSchema.Field.Type.BOOLEAN));
+        LocalDatabase notes = openNotes(schema);
+        try {
+            for (int i = 0; i < 40; i++) {
+                notes.addData("note " + i, Long.toString(i - 20), i % 2 == 0 ? "0.5" : null, "false");
+            }
+            notes.updateData(3, new String[]{null, null, "1.0E10", "true"}, LocalDatabase.ANY_VERSION);
+            notes.close();
+            notes = openNotes(schema);
+            notes.deleteData(4);
+            notes.close();
+            notes = openNotes(schema);
+
+            assertEquals(39, notes.size());
+            Data third = notes.getData(3);
+            assertSame(schema, third.schema());
+            assertEquals("note 2", third.value(0));
+            assertEquals("-18", third.value(1));
+            assertEquals("1.0E10", third.value(2));
+            assertEquals("true", third.value(3));
+            assertNull(notes.getData(2).value(2));
+            assertEquals("{\"id\":3,\"title\":\"note 2\",\"count\":-18,\"score\":1.0E10,\"done\":true}",
+                    third.toJsonString());
+            assertEquals("{\"id\":2,\"title\":\"note 1\",\"count\":-19,\"score\":null,\"done\":false}",
+                    notes.getData(2).toJsonString());
+        } finally {
+            notes.close();
+        }
+    }
+
+    @Test
+    public void readsSnapshotsFromBeforeDeclaredFields() throws Exception {
+        database.close();
+        // Version 1 layout: a name and a description per record, without a value count
+        byte[] name = "old".getBytes(StandardCharsets.UTF_8);
+        byte[] description = "item".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer snapshot = ByteBuffer.allocate(40 + 8 + name.length + description.length);
+        snapshot.putInt(0x4C42534E).putInt(1).putInt(1).putInt(2).putLong(0).putLong(0)
+                .putInt(1).putInt(40)
+                .putInt(name.length).put(name).putInt(description.length).put(description);
+        Files.write(new File(directory, "items_data.snapshot").toPath(), snapshot.array());
+
+        database = open();
+        assertEquals(Arrays.asList(new Data(1, "old", "item")), database.getData());
+        // Enough writes to compact, which copies the old record into the current layout
+        for (int i = 0; i < 50; i++) {
+            database.addData("item " + i, "v");
+        }
+        database.close();
+        database = open();
+        assertEquals(new Data(1, "old", "item"), database.getData(1));
+        assertEquals(51, database.size());
+    }
+
+    private LocalDatabase openNotes(CollectionSchema schema) {
+        return new LocalDatabase(directory, "notes_data", schema, null, WriteAheadLog.SyncPolicy.NEVER,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, LocalDatabase.DEFAULT_FLUSH_THRESHOLD_BYTES, 1024, 0);
+    }
+
+    private long logBytes() {
+        long bytes = 0;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".wal"));
+        for (File file : files) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private void createIndexes() {
+        database.createIndex("name", new SecondaryIndex.Hash(Data::name));
+        database.createIndex("sorted", new SecondaryIndex.Sorted(Data::name));
+        database.createIndex("text", new SecondaryIndex.FullText(Data::description));
+    }
+
+    private LocalDatabase open() {
+        // A tiny threshold so restarts and writes go through compaction too
+        return new LocalDatabase(directory, null, WriteAheadLog.SyncPolicy.NEVER,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, 1024);
+    }
+}
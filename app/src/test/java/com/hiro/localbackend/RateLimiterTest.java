@@ -0,0 +1,55 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Token buckets and client eviction in RateLimiter, on a clock the test drives.
+ */
+public class RateLimiterTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void burstThenSteadyRatePerClient() {
+        RateLimiter limiter = new RateLimiter(10, 3, 1024);
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("a", now));
+        }
+        long wait = limiter.acquire("a", now);
+        assertEquals(100 * MS, wait);
+        // Other clients have buckets of their own
+        assertEquals(0, limiter.acquire("b", now));
+
+        now += 50 * MS;
+        assertEquals(50 * MS, limiter.acquire("a", now));
+        now += 50 * MS;
+        assertEquals(0, limiter.acquire("a", now));
+        assertTrue(limiter.acquire("a", now) > 0);
+        assertEquals(3, limiter.limited());
+    }
+
+    @Test
+    public void forgetsLeastRecentlySeenClientsPastCapacity() {
+        // Room for one client per stripe, so newer clients push older ones out
+        RateLimiter limiter = new RateLimiter(10, 2, 16);
+        for (int i = 0; i < 64; i++) {
+            limiter.acquire("c" + i, 0);
+        }
+        assertEquals(16, limiter.clients());
+    }
+
+    @Test
+    public void forgetsClientsOnceTheirBucketsAreFull() {
+        RateLimiter limiter = new RateLimiter(10, 2, 1024);
+        limiter.acquire("a", 0);
+        limiter.acquire("b", 0);
+        // Full again after 200ms; using a stripe drops its idle clients first
+        for (int i = 0; i < 64; i++) {
+            limiter.acquire("c" + i, 300 * MS);
+        }
+        assertEquals(64, limiter.clients());
+    }
+}
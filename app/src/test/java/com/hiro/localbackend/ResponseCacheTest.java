@@ -0,0 +1,57 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Version checks and byte-budget eviction in ResponseCache.
+ */
+public class ResponseCacheTest {
+
+    @Test
+    public void newerVersionInvalidatesEntry() {
+        ResponseCache cache = new ResponseCache(1024, 512);
+        cache.put("/a", entry(1, 10));
+        assertNotNull(cache.get("/a", 1));
+        assertNull(cache.get("/a", 2));
+        // Dropped on the failed lookup, not just hidden
+        assertNull(cache.get("/a", 1));
+        assertEquals(0, cache.bytes());
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() {
+        ResponseCache cache = new ResponseCache(100, 60);
+        cache.put("/a", entry(1, 40));
+        cache.put("/b", entry(1, 40));
+        assertNotNull(cache.get("/a", 1));
+        cache.put("/c", entry(1, 40));
+        assertNull(cache.get("/b", 1));
+        assertNotNull(cache.get("/a", 1));
+        assertNotNull(cache.get("/c", 1));
+        assertEquals(80, cache.bytes());
+
+        cache.put("/big", entry(1, 61));
+        assertNull(cache.get("/big", 1));
+    }
+
+    @Test
+    public void compressedCopiesAreKeptAndCharged() {
+        ResponseCache cache = new ResponseCache(1 << 20, 1 << 16);
+        ResponseCache.Entry entry = entry(1, 4096);
+        cache.put("/a", entry);
+        byte[] gzip = cache.encoded(entry, Compression.Encoding.GZIP);
+        assertSame(gzip, cache.encoded(entry, Compression.Encoding.GZIP));
+        assertEquals(4096 + gzip.length, cache.bytes());
+        // Released with the entry once a write invalidates it
+        assertNull(cache.get("/a", 2));
+        assertEquals(0, cache.bytes());
+    }
+
+    private static ResponseCache.Entry entry(long version, int length) {
+        return new ResponseCache.Entry(version, new byte[length], length);
+    }
+}
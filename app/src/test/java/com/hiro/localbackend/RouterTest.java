@@ -0,0 +1,75 @@
+package com.hiro.localbackend;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Route matching rules. Dispatch cost is measured by RouterBenchmark.
+ */
+public class RouterTest {
+
+    private static final Router.Handler LIST = (session, match) -> null;
+    private static final Router.Handler ITEM = (session, match) -> null;
+    private static final Router.Handler SEARCH = (session, match) -> null;
+    private static final Router.Handler NESTED = (session, match) -> null;
+
+    private final Router router = new Router()
+            .get("/api/items", LIST)
+            .post("/api/items", LIST)
+            .put("api/items/", LIST)
+            .get("/api/items/search", SEARCH)
+            .get("/api/items/{id:int}", ITEM)
+            .delete("/api/items/{id:int}", ITEM)
+            .get("/api/{collection}/{id:int}", NESTED);
+
+    @Test
+    public void matchesLiteralAndIntRoutes() {
+        assertSame(LIST, router.match(Method.GET, "/api/items").handler());
+        assertSame(LIST, router.match(Method.POST, "/api/items/").handler());
+        assertSame(SEARCH, router.match(Method.GET, "/api/items/search").handler());
+        // Static routes are found by exact path; other spellings go through the trie
+        assertSame(LIST, router.match(Method.PUT, "//api/items").handler());
+        // The metrics label is the first pattern registered for a path
+        assertEquals("/api/items", router.match(Method.PUT, "/api/items").pattern());
+
+        Router.Match match = router.match(Method.GET, "/api/items/42");
+        assertSame(ITEM, match.handler());
+        assertEquals(42, match.intParam("id"));
+        assertEquals(-7, router.match(Method.DELETE, "/api/items/-7").intParam("id"));
+    }
+
+    @Test
+    public void fallsBackFromLiteralToParameter() {
+        Router.Match match = router.match(Method.GET, "/api/items/search/3");
+        assertEquals(Router.Result.NOT_FOUND, match.result());
+
+        match = router.match(Method.GET, "/api/notes/3");
+        assertSame(NESTED, match.handler());
+        assertEquals("notes", match.param("collection"));
+        assertEquals(3, match.intParam("id"));
+
+        // The literal branch wins when both could match
+        assertSame(ITEM, router.match(Method.GET, "/api/items/3").handler());
+    }
+
+    @Test
+    public void reportsMissingRoutesAndMethods() {
+        assertEquals(Router.Result.NOT_FOUND, router.match(Method.GET, "/api").result());
+        assertEquals(Router.Result.NOT_FOUND, router.match(Method.GET, "/other").result());
+        assertEquals(Router.Result.NOT_FOUND, router.match(Method.GET, "/api/items/abc").result());
+        assertEquals(Router.Result.NOT_FOUND,
+                router.match(Method.GET, "/api/items/99999999999").result());
+
+        Router.Match match = router.match(Method.PUT, "/api/items/1");
+        assertEquals(Router.Result.METHOD_NOT_ALLOWED, match.result());
+        assertEquals("GET, DELETE, OPTIONS", match.allowedMethods());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateRoutes() {
+        router.get("/api/items/{id:int}", ITEM);
+    }
+}
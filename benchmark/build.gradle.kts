@@ -0,0 +1,49 @@
+// JMH benchmarks for the server and store, run on the host JVM: ./gradlew :benchmark:jmh
+// The app sources are compiled in directly, against the small android.* fakes in src/main.
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            // UI and service glue need the real framework
+            exclude("com/hiro/localbackend/MainActivity.java")
+            exclude("com/hiro/localbackend/BackendServerService.java")
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.nanohttpd)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh.get())
+    // Pick benchmarks with -PjmhIncludes=<regex>, e.g. -PjmhIncludes=Codec
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.set(listOf(it)) }
+    fork.set(1)
+    // Allocation per operation (gc.alloc.rate.norm) next to every score
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+// Load test against a real server on localhost, e.g.
+// ./gradlew :benchmark:loadTest -PloadTestArgs="--mode open --rate 2000 --connections 8,32"
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "Drives AndroidBackendServer on localhost and reports throughput and latency."
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("com.hiro.localbackend.LoadTest")
+    val results = layout.buildDirectory.file("results/loadtest/results.json").get().asFile
+    args(listOf("--out", results.path) +
+            (providers.gradleProperty("loadTestArgs").orNull?.trim()?.split(Regex("\\s+")) ?: emptyList()))
+}
@@ -0,0 +1,115 @@
+package com.hiro.localbackend;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A parsed request as NanoHTTPD would hand it to serve(), without a socket. Everything is
+ * built once, so serving the same session again allocates nothing on this side.
+ */
+final class BenchmarkSession implements NanoHTTPD.IHTTPSession {
+
+    private final NanoHTTPD.Method method;
+    private final String uri;
+    private final String query;
+    private final Map<String, String> headers = new HashMap<>();
+    private final Map<String, List<String>> parameters = new HashMap<>();
+    private final Map<String, String> parms = new HashMap<>();
+    private final ByteArrayInputStream body;
+
+    BenchmarkSession(NanoHTTPD.Method method, String uri, String body, String... headers) {
+        int question = uri.indexOf('?');
+        this.method = method;
+        this.uri = question < 0 ? uri : uri.substring(0, question);
+        this.query = question < 0 ? null : uri.substring(question + 1);
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                parameters.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+                parms.putIfAbsent(name, value);
+            }
+        }
+        // NanoHTTPD lower-cases header names
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            this.headers.put(headers[i].toLowerCase(Locale.ROOT), headers[i + 1]);
+        }
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (body != null) {
+            this.headers.put("content-length", Integer.toString(bytes.length));
+        }
+        this.body = new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void execute() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NanoHTTPD.CookieHandler getCookies() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    // The same body from the start for every request
+    @Override
+    public InputStream getInputStream() {
+        body.reset();
+        return body;
+    }
+
+    @Override
+    public NanoHTTPD.Method getMethod() {
+        return method;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, String> getParms() {
+        return parms;
+    }
+
+    @Override
+    public Map<String, List<String>> getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public String getQueryParameterString() {
+        return query;
+    }
+
+    @Override
+    public String getUri() {
+        return uri;
+    }
+
+    @Override
+    public void parseBody(Map<String, String> files) {
+        // Handlers read the body stream themselves
+    }
+
+    @Override
+    public String getRemoteIpAddress() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public String getRemoteHostName() {
+        return "localhost";
+    }
+}
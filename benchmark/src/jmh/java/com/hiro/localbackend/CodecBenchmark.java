@@ -0,0 +1,91 @@
+package com.hiro.localbackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of item bodies in each wire format: one Data, a request body, and
+ * a page of items as the list endpoint writes it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodecBenchmark {
+
+    private static final int PAGE = 100;
+
+    @Param({"json", "cbor"})
+    public String format;
+
+    private Codec codec;
+    private Data item;
+    private List<Data> page;
+    private byte[] encodedItem;
+    private byte[] encodedPage;
+
+    @Setup
+    public void setUp() throws Exception {
+        codec = format.equals("cbor") ? Codec.CBOR : Codec.JSON;
+        item = new Data(12345, "Sample item name", "A description of moderate length, caf\u00e9");
+        page = Fixtures.items(PAGE);
+
+        Codec.Output output = codec.newOutput(128).writeData(item, JsonBuffer.ALL_FIELDS);
+        encodedItem = Arrays.copyOf(output.bytes(), output.length());
+        output = codec.newOutput(PAGE * 64);
+        output.writeArray(page.iterator(), JsonBuffer.ALL_FIELDS, Integer.MAX_VALUE);
+        encodedPage = Arrays.copyOf(output.bytes(), output.length());
+    }
+
+    @Benchmark
+    public Codec.Output encodeItem() {
+        return codec.newOutput(128).writeData(item, JsonBuffer.ALL_FIELDS);
+    }
+
+    // What create and update do with a request body
+    @Benchmark
+    public Codec.Item decodeItem() throws Exception {
+        return codec.readItem(CollectionSchema.ITEMS_SHAPE, encodedItem, encodedItem.length);
+    }
+
+    @Benchmark
+    public Codec.Output encodePage() {
+        Codec.Output output = codec.newOutput(PAGE * 64);
+        output.writeArray(page.iterator(), JsonBuffer.ALL_FIELDS, Integer.MAX_VALUE);
+        return output;
+    }
+
+    // Full decode back into Data, the client side of a list response
+    @Benchmark
+    public int decodePage() throws Exception {
+        int sum = 0;
+        if (codec == Codec.CBOR) {
+            CborReader reader = new CborReader(encodedPage, 0, encodedPage.length);
+            long count = reader.readArrayStart();
+            for (long i = 0; count < 0 ? !reader.readBreak() : i < count; i++) {
+                sum += reader.readData().id();
+            }
+        } else {
+            JsonParser parser = new JsonParser(encodedPage, 0, encodedPage.length);
+            parser.beginArray();
+            while (parser.hasNext()) {
+                sum += parser.readData().id();
+            }
+            parser.endArray();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hiro.localbackend;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LocalDatabase reads and writes against a store of a given size, on a fresh directory.
+ *
+ * Add and delete change the size, so they run as single-shot batches: each measurement
+ * is BATCH operations, and the store is put back to its starting size in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LocalDatabaseBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"100", "10000", "100000"})
+    public int items;
+
+    // ALWAYS is what the app ships with; NEVER leaves only the CPU cost of a write
+    @Param({"ALWAYS", "NEVER"})
+    public WriteAheadLog.SyncPolicy sync;
+
+    LocalDatabase database;
+    private File directory;
+    private int maxId;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Fixtures.tempDirectory("store");
+        database = new LocalDatabase(directory, null, sync, LocalDatabase.DEFAULT_SYNC_INTERVAL_MS,
+                LocalDatabase.DEFAULT_COMPACTION_THRESHOLD_BYTES);
+        database.saveData(Fixtures.items(items));
+        maxId = items;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        database.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Data getById() {
+        return database.getData(randomId());
+    }
+
+    @Benchmark
+    public List<Data> getAll() {
+        return database.getData();
+    }
+
+    @Benchmark
+    public boolean update() {
+        int id = randomId();
+        return database.updateData(new Data(id, "Updated " + id, "Updated description of item " + id));
+    }
+
+    // The same update from four threads at once, to compare against update() for how writes
+    // scale with the striped locks and group commit
+    @Benchmark
+    @Threads(4)
+    public boolean updateFromFourThreads() {
+        return update();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = BATCH)
+    @Measurement(iterations = 20, batchSize = BATCH)
+    public Data add(Added added) {
+        Data data = database.addData("Added item", "Added by the benchmark");
+        added.ids.add(data.id());
+        return data;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = BATCH)
+    @Measurement(iterations = 20, batchSize = BATCH)
+    public boolean delete(Deletable deletable) {
+        return database.deleteData(deletable.ids.remove(deletable.ids.size() - 1));
+    }
+
+    private int randomId() {
+        return ThreadLocalRandom.current().nextInt(1, maxId + 1);
+    }
+
+    // Items added during an iteration, deleted again once it is over
+    @State(Scope.Benchmark)
+    public static class Added {
+        final List<Integer> ids = new ArrayList<>(BATCH);
+
+        @TearDown(Level.Iteration)
+        public void restore(LocalDatabaseBenchmark benchmark) {
+            for (int id : ids) {
+                benchmark.database.deleteData(id);
+            }
+            ids.clear();
+        }
+    }
+
+    // Items added before an iteration for it to delete
+    @State(Scope.Benchmark)
+    public static class Deletable {
+        final List<Integer> ids = new ArrayList<>(BATCH);
+
+        @Setup(Level.Iteration)
+        public void prepare(LocalDatabaseBenchmark benchmark) {
+            ids.clear();
+            for (int i = 0; i < BATCH; i++) {
+                ids.add(benchmark.database.addData("Doomed item", "Deleted by the benchmark").id());
+            }
+        }
+    }
+}
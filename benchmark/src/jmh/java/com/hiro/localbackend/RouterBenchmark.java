@@ -0,0 +1,88 @@
+package com.hiro.localbackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+
+/**
+ * Request dispatch: Router.match over the server's route table for two collections, against
+ * the if/else chain serve() used before the router, which only knew the items routes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RouterBenchmark {
+
+    @Param({"/api/items", "/api/items/12345", "/api/notes/12345", "/api/missing"})
+    public String uri;
+
+    private Router router;
+
+    @Setup
+    public void setUp() {
+        Router.Handler handler = (session, match) -> null;
+        router = new Router().get("/metrics", handler);
+        for (String name : new String[]{"items", "notes"}) {
+            String base = "/api/" + name;
+            router.get(base, handler)
+                    .get(base + "/search", handler)
+                    .get(base + "/changes", handler)
+                    .post(base + "/batch", handler)
+                    .post(base + "/import", handler)
+                    .post(base, handler)
+                    .get(base + "/{id:int}", handler)
+                    .put(base + "/{id:int}", handler)
+                    .delete(base + "/{id:int}", handler);
+        }
+    }
+
+    // A fresh String per request, as NanoHTTPD decodes one, so no hash is cached on it
+    @Benchmark
+    public Router.Result router() {
+        return router.match(Method.GET, new String(uri)).result();
+    }
+
+    @Benchmark
+    public int ifChain() {
+        return ifChain(Method.GET, new String(uri));
+    }
+
+    // The dispatch serve() used before the router, including its per-request CORS map
+    private static int ifChain(Method method, String uri) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+        headers.put("Access-Control-Allow-Headers", "Content-Type");
+        try {
+            if (uri.equals("/api/items") && Method.GET.equals(method)) {
+                return 1;
+            } else if (uri.startsWith("/api/items/") && Method.GET.equals(method)) {
+                return Integer.parseInt(uri.substring("/api/items/".length()));
+            } else if (uri.equals("/api/items") && Method.POST.equals(method)) {
+                return 2;
+            } else if (uri.startsWith("/api/items/") && Method.PUT.equals(method)) {
+                return Integer.parseInt(uri.substring("/api/items/".length()));
+            } else if (uri.startsWith("/api/items/") && Method.DELETE.equals(method)) {
+                return Integer.parseInt(uri.substring("/api/items/".length()));
+            }
+            return headers.size();
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
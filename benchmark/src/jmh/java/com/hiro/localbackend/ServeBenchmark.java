@@ -0,0 +1,121 @@
+package com.hiro.localbackend;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * AndroidBackendServer.serve on prepared sessions, never started and without sockets:
+ * routing, handlers, the store, encoding and the response cache, with the body read out
+ * the way NanoHTTPD would send it. Runs against a store of ITEMS items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServeBenchmark {
+
+    private static final int ITEMS = 1000;
+
+    private final byte[] sink = new byte[8192];
+    private File directory;
+    private AndroidBackendServer server;
+
+    private BenchmarkSession getItem;
+    private BenchmarkSession getItemCbor;
+    private BenchmarkSession getItemNotModified;
+    private BenchmarkSession listPage;
+    private BenchmarkSession updateItem;
+    private BenchmarkSession notFound;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Fixtures.tempDirectory("serve");
+        LocalDatabase database = new LocalDatabase(directory, null, LocalDatabase.DEFAULT_SYNC_POLICY,
+                LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, LocalDatabase.DEFAULT_COMPACTION_THRESHOLD_BYTES);
+        database.saveData(Fixtures.items(ITEMS));
+        database.close();
+        server = new AndroidBackendServer(new Context(directory), 0, new ServerConfig());
+
+        getItem = new BenchmarkSession(NanoHTTPD.Method.GET, "/api/items/42", null);
+        getItemCbor = new BenchmarkSession(NanoHTTPD.Method.GET, "/api/items/42", null,
+                "Accept", "application/cbor");
+        String etag = server.serve(getItem).getHeader("ETag");
+        getItemNotModified = new BenchmarkSession(NanoHTTPD.Method.GET, "/api/items/42", null,
+                "If-None-Match", etag);
+        listPage = new BenchmarkSession(NanoHTTPD.Method.GET, "/api/items?after=500&limit=50", null);
+        updateItem = new BenchmarkSession(NanoHTTPD.Method.PUT, "/api/items/7",
+                "{\"name\":\"Item 7\",\"description\":\"Updated by the benchmark\"}",
+                "Content-Type", "application/json");
+        notFound = new BenchmarkSession(NanoHTTPD.Method.GET, "/api/nothing", null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        Fixtures.delete(directory);
+    }
+
+    // Served from the response cache after the first call
+    @Benchmark
+    public long getItem() throws IOException {
+        return send(getItem);
+    }
+
+    @Benchmark
+    public long getItemCbor() throws IOException {
+        return send(getItemCbor);
+    }
+
+    @Benchmark
+    public long getItemNotModified() throws IOException {
+        return send(getItemNotModified);
+    }
+
+    @Benchmark
+    public long listPage() throws IOException {
+        return send(listPage);
+    }
+
+    // Parse, store write (fsync with the default policy) and response for the same item
+    @Benchmark
+    public long updateItem() throws IOException {
+        return send(updateItem);
+    }
+
+    @Benchmark
+    public long notFound() throws IOException {
+        return send(notFound);
+    }
+
+    // Read the body out and close it, which is when NanoHTTPD records the request
+    private long send(BenchmarkSession session) throws IOException {
+        NanoHTTPD.Response response = server.serve(session);
+        long bytes = response.getStatus().getRequestStatus();
+        try (InputStream body = response.getData()) {
+            if (body != null) {
+                for (int n; (n = body.read(sink, 0, sink.length)) > 0; ) {
+                    bytes += n;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,33 @@
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the few parts of android.content.Context the server and store use.
+ * Files live under a directory chosen by the caller; preferences are kept in memory.
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    private final File filesDir;
+    private final Map<String, SharedPreferences> preferences = new HashMap<>();
+
+    public Context(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    public String getPackageName() {
+        return "com.hiro.localbackend";
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        return preferences.computeIfAbsent(name, key -> new MemorySharedPreferences());
+    }
+}
@@ -0,0 +1,123 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SharedPreferences held in a map. Edits are staged and applied together on commit, as on
+ * a device, so code that forgets to commit behaves the same here.
+ */
+final class MemorySharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T get(String key, T defValue) {
+        Object value = values.get(key);
+        // A value of another type throws, as it does on a device
+        return value != null ? (T) value : defValue;
+    }
+
+    private final class MemoryEditor implements Editor {
+        private final Map<String, Object> puts = new HashMap<>();
+        private final Set<String> removes = new HashSet<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            removes.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (MemorySharedPreferences.this) {
+                if (clear) {
+                    values.clear();
+                }
+                for (String key : removes) {
+                    values.remove(key);
+                }
+                values.putAll(puts);
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+
+        private Editor put(String key, Object value) {
+            // A null value removes the key, as it does on a device
+            if (value == null) {
+                return remove(key);
+            }
+            puts.put(key, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.hiro.localbackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sample items and scratch directories shared by the benchmarks and the load test.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    // Items 1..count with names and descriptions of a typical length
+    static List<Data> items(int count) {
+        List<Data> items = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            items.add(new Data(i, "Item " + i, "Description of item number " + i));
+        }
+        return items;
+    }
+
+    static File tempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("localbackend-" + prefix).toFile();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,232 @@
+package com.hiro.localbackend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal blocking HTTP/1.1 client on one keep-alive connection, so the load test measures
+ * the server rather than a client library's pooling. Reads fixed-length, chunked and
+ * close-delimited bodies; reconnects after the server closes the connection.
+ */
+final class LoadClient implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    private final InetSocketAddress address;
+    private final String host;
+    private final StringBuilder line = new StringBuilder(128);
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] body = new byte[8192];
+    private int bodyLength;
+    private boolean reused;
+
+    LoadClient(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+        this.host = host + ":" + port;
+    }
+
+    // Send one request and read the whole response; returns the status code
+    int send(String method, String path, byte[] requestBody) throws IOException {
+        try {
+            return exchange(method, path, requestBody);
+        } catch (IOException e) {
+            // A kept connection the server had already dropped as idle: nothing was read,
+            // so the request never reached a handler and is sent once more
+            if (!reused || e instanceof SocketTimeoutException) {
+                throw e;
+            }
+            close();
+            return exchange(method, path, requestBody);
+        }
+    }
+
+    // Body of the last response
+    byte[] body() {
+        return body;
+    }
+
+    int bodyLength() {
+        return bodyLength;
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            socket = null;
+        }
+    }
+
+    private int exchange(String method, String path, byte[] requestBody) throws IOException {
+        if (socket == null) {
+            connect();
+        } else {
+            reused = true;
+        }
+        try {
+            writeRequest(method, path, requestBody);
+            return readResponse(method);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket connection = new Socket();
+        connection.setTcpNoDelay(true);
+        connection.connect(address, CONNECT_TIMEOUT_MS);
+        connection.setSoTimeout(READ_TIMEOUT_MS);
+        socket = connection;
+        in = new BufferedInputStream(connection.getInputStream(), 16 * 1024);
+        out = new BufferedOutputStream(connection.getOutputStream(), 8 * 1024);
+        reused = false;
+    }
+
+    private void writeRequest(String method, String path, byte[] requestBody) throws IOException {
+        StringBuilder head = new StringBuilder(128)
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append("\r\n");
+        if (requestBody != null) {
+            head.append("Content-Type: application/json\r\n")
+                    .append("Content-Length: ").append(requestBody.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (requestBody != null) {
+            out.write(requestBody);
+        }
+        out.flush();
+    }
+
+    private int readResponse(String method) throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        // Anything read means the server saw the request; no retry from here on
+        reused = false;
+        int status = parseStatus(statusLine);
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        for (String header; (header = readLine()) != null && !header.isEmpty(); ) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(colon + 1).trim();
+            if (name.equals("content-length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equals("transfer-encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equals("connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+
+        bodyLength = 0;
+        if (method.equals("HEAD") || status == 204 || status == 304) {
+            // No body, whatever the headers say
+        } else if (chunked) {
+            readChunks();
+        } else if (contentLength >= 0) {
+            readBody(contentLength);
+        } else {
+            // Delimited by the end of the connection
+            readBody(Long.MAX_VALUE);
+            close = true;
+        }
+        if (close) {
+            close();
+        }
+        return status;
+    }
+
+    private void readChunks() throws IOException {
+        while (true) {
+            String size = readLine();
+            if (size == null) {
+                throw new EOFException("Connection closed inside a chunked body");
+            }
+            int extension = size.indexOf(';');
+            long length = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+            if (length == 0) {
+                // Trailers, then the blank line
+                for (String trailer; (trailer = readLine()) != null && !trailer.isEmpty(); ) {
+                    // Ignored
+                }
+                return;
+            }
+            readBody(length);
+            readLine();
+        }
+    }
+
+    // Append up to length bytes of body; Long.MAX_VALUE reads to the end of the stream
+    private void readBody(long length) throws IOException {
+        long left = length;
+        while (left > 0) {
+            if (bodyLength == body.length) {
+                body = Arrays.copyOf(body, body.length * 2);
+            }
+            int n = in.read(body, bodyLength, (int) Math.min(left, body.length - bodyLength));
+            if (n < 0) {
+                if (length == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("Connection closed inside a body");
+            }
+            bodyLength += n;
+            left -= n;
+        }
+    }
+
+    // One CRLF-terminated line without the terminator, or null at the end of the stream
+    private String readLine() throws IOException {
+        line.setLength(0);
+        for (int b; (b = in.read()) >= 0; ) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int space = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.hiro.localbackend;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Headless load generator: starts AndroidBackendServer on localhost over a fresh, preloaded
+ * store and drives /api/items from a number of keep-alive connections, one concurrency
+ * level after another, each against its own server and store.
+ *
+ * Closed loop: each connection sends its next request as soon as the previous response is
+ * in. Open loop: each connection sends on a fixed schedule, rate / connections requests a
+ * second, whether or not the server keeps up.
+ *
+ * Latency is corrected for coordinated omission. In the open loop it is measured from when
+ * a request was due rather than when it went out, so a stall is charged to every request
+ * queued behind it. In the closed loop a response slower than the connection's usual pace
+ * (its mean during warmup) also stands for the requests that would have been sent in the
+ * meantime, as HdrHistogram's recordValueWithExpectedInterval does. Raw service time is
+ * reported next to it.
+ *
+ * Runs with the same options send the same request sequence (seeded per connection) to the
+ * same starting data. Results are written as JSON, and --baseline compares against the file
+ * of an earlier run.
+ */
+public final class LoadTest {
+
+    private static final String USAGE = String.join("\n",
+            "Options:",
+            "  --mode closed|open       closed loop, or open loop at --rate (default closed)",
+            "  --workload read|write|mixed   request mix on /api/items (default mixed)",
+            "  --connections 1,8,32     concurrency levels to run, in order (default 1,4,16,64)",
+            "  --rate N                 open loop: requests per second over all connections",
+            "  --duration S             measured seconds per level (default 30)",
+            "  --warmup S               seconds per level before measuring (default 10)",
+            "  --items N                items preloaded into the store (default 10000)",
+            "  --workers N              server worker threads (default from ServerConfig)",
+            "  --queue N                server connection queue (default from ServerConfig)",
+            "  --seed N                 seed of the request sequence (default 1)",
+            "  --out FILE               where to write the JSON results",
+            "  --baseline FILE          results of an earlier run to compare against");
+
+    // Items per list request
+    private static final int PAGE = 20;
+    // Below this, waiting for a due time spins instead of parking, which overshoots
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final byte[][] RESULT_KEYS = JsonParser.keys("signature", "levels");
+    private static final byte[][] LEVEL_KEYS = JsonParser.keys("connections", "throughput", "latencyMicros");
+    private static final byte[][] PERCENTILE_KEYS = JsonParser.keys("p50", "p99", "p999");
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        Baseline baseline = options.baseline != null ? Baseline.read(Paths.get(options.baseline)) : null;
+        if (baseline != null && !baseline.signature.equals(options.signature())) {
+            System.out.println("Baseline was run with different options: " + baseline.signature);
+        }
+
+        System.out.println(options.describe());
+        System.out.printf(Locale.ROOT, "%11s %10s %9s %9s %9s %9s %12s %8s%n", "connections", "req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms", "errors");
+        List<LevelResult> results = new ArrayList<>();
+        for (int connections : options.connections) {
+            LevelResult result = runLevel(options, connections);
+            results.add(result);
+            System.out.printf(Locale.ROOT, "%11d %10.0f %9.2f %9.2f %9.2f %9.2f %12.2f %8d%n",
+                    connections, result.throughput(), result.latency[0] / 1e3, result.latency[1] / 1e3,
+                    result.latency[2] / 1e3, result.latency[3] / 1e3, result.service[1] / 1e3,
+                    result.failures());
+            if (baseline != null && baseline.levels.containsKey(connections)) {
+                long[] before = baseline.levels.get(connections);
+                System.out.printf(Locale.ROOT, "%11s %+9.1f%% %+8.1f%% %+8.1f%% %+8.1f%%%n", "vs baseline",
+                        change(before[0], result.throughput()), change(before[1], result.latency[0]),
+                        change(before[2], result.latency[1]), change(before[3], result.latency[2]));
+            }
+        }
+
+        if (options.out != null) {
+            Path out = Paths.get(options.out);
+            if (out.getParent() != null) {
+                Files.createDirectories(out.getParent());
+            }
+            JsonBuffer json = writeResults(options, results);
+            Files.write(out, Arrays.copyOf(json.bytes(), json.length()));
+            System.out.println("Results written to " + out);
+        }
+    }
+
+    // One concurrency level against its own server and store
+    private static LevelResult runLevel(Options options, int connections) throws Exception {
+        File directory = Fixtures.tempDirectory("load");
+        AndroidBackendServer server = null;
+        try {
+            LocalDatabase database = new LocalDatabase(directory, null, LocalDatabase.DEFAULT_SYNC_POLICY,
+                    LocalDatabase.DEFAULT_SYNC_INTERVAL_MS, LocalDatabase.DEFAULT_COMPACTION_THRESHOLD_BYTES);
+            database.saveData(Fixtures.items(options.items));
+            database.close();
+
+            ServerConfig config = new ServerConfig();
+            if (options.workers > 0) {
+                config.maxWorkers = options.workers;
+            }
+            if (options.queue >= 0) {
+                config.queueCapacity = options.queue;
+            }
+            server = new AndroidBackendServer(new Context(directory), 0, config);
+            server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+            // Leftovers of the previous level should not be collected during this one
+            System.gc();
+
+            Recorder recorder = new Recorder();
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+            Thread[] threads = new Thread[connections];
+            for (int i = 0; i < connections; i++) {
+                Connection connection = new Connection(options, i, server.getListeningPort(), recorder,
+                        start, measureStart, end);
+                threads[i] = new Thread(() -> {
+                    try {
+                        if (options.open) {
+                            // Spread the first requests over one interval
+                            long interval = Math.round(connections * 1e9 / options.rate);
+                            connection.runOpen(interval, start + interval * connection.index / connections);
+                        } else {
+                            connection.runClosed();
+                        }
+                    } finally {
+                        connection.client.close();
+                    }
+                }, "load-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return recorder.result(connections, measureStart, end);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            Fixtures.delete(directory);
+        }
+    }
+
+    private static double change(double before, double after) {
+        return before == 0 ? 0 : (after - before) * 100 / before;
+    }
+
+    private static JsonBuffer writeResults(Options options, List<LevelResult> results) {
+        JsonBuffer json = new JsonBuffer(1024);
+        json.writeAscii("{\"signature\":").writeString(options.signature())
+                .writeAscii(",\"mode\":").writeString(options.open ? "open" : "closed")
+                .writeAscii(",\"workload\":").writeString(options.workload.name().toLowerCase(Locale.ROOT))
+                .writeAscii(",\"rate\":").writeLong(options.rate)
+                .writeAscii(",\"items\":").writeInt(options.items)
+                .writeAscii(",\"warmupSeconds\":").writeInt(options.warmupSeconds)
+                .writeAscii(",\"durationSeconds\":").writeInt(options.durationSeconds)
+                .writeAscii(",\"seed\":").writeLong(options.seed)
+                .writeAscii(",\"environment\":{\"java\":").writeString(System.getProperty("java.version"))
+                .writeAscii(",\"os\":").writeString(System.getProperty("os.name") + " " + System.getProperty("os.arch"))
+                .writeAscii(",\"processors\":").writeInt(Runtime.getRuntime().availableProcessors())
+                .writeAscii("},\"levels\":[");
+        for (int i = 0; i < results.size(); i++) {
+            LevelResult result = results.get(i);
+            json.writeAscii(i == 0 ? "{" : ",{")
+                    .writeAscii("\"connections\":").writeInt(result.connections)
+                    .writeAscii(",\"requests\":").writeLong(result.requests)
+                    .writeAscii(",\"throughput\":").writeLong(Math.round(result.throughput()))
+                    .writeAscii(",\"latencyMicros\":");
+            writePercentiles(json, result.latency);
+            json.writeAscii(",\"serviceMicros\":");
+            writePercentiles(json, result.service);
+            json.writeAscii(",\"status\":{\"2xx\":").writeLong(result.statuses[2])
+                    .writeAscii(",\"3xx\":").writeLong(result.statuses[3])
+                    .writeAscii(",\"4xx\":").writeLong(result.statuses[4])
+                    .writeAscii(",\"5xx\":").writeLong(result.statuses[5])
+                    .writeAscii("},\"errors\":").writeLong(result.statuses[0])
+                    .writeAscii(",\"unsent\":").writeLong(result.unsent)
+                    .writeAscii("}");
+        }
+        return json.writeAscii("]}\n");
+    }
+
+    private static void writePercentiles(JsonBuffer json, long[] micros) {
+        json.writeAscii("{\"p50\":").writeLong(micros[0])
+                .writeAscii(",\"p99\":").writeLong(micros[1])
+                .writeAscii(",\"p999\":").writeLong(micros[2])
+                .writeAscii(",\"max\":").writeLong(micros[3])
+                .writeAscii("}");
+    }
+
+    /**
+     * Command line options; anything not given keeps its default.
+     */
+    static final class Options {
+        boolean open;
+        Workload workload = Workload.MIXED;
+        int[] connections = {1, 4, 16, 64};
+        long rate;
+        int durationSeconds = 30;
+        int warmupSeconds = 10;
+        int items = 10_000;
+        int workers;
+        int queue = -1;
+        long seed = 1;
+        String out;
+        String baseline;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                String name = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + name);
+                }
+                String value = args[i + 1];
+                try {
+                    switch (name) {
+                        case "--mode":
+                            if (!value.equals("open") && !value.equals("closed")) {
+                                throw new IllegalArgumentException("Unknown mode " + value);
+                            }
+                            options.open = value.equals("open");
+                            break;
+                        case "--workload":
+                            options.workload = Workload.parse(value);
+                            break;
+                        case "--connections":
+                            options.connections = Arrays.stream(value.split(","))
+                                    .mapToInt(level -> Integer.parseInt(level.trim())).toArray();
+                            break;
+                        case "--rate":
+                            options.rate = Long.parseLong(value);
+                            break;
+                        case "--duration":
+                            options.durationSeconds = Integer.parseInt(value);
+                            break;
+                        case "--warmup":
+                            options.warmupSeconds = Integer.parseInt(value);
+                            break;
+                        case "--items":
+                            options.items = Integer.parseInt(value);
+                            break;
+                        case "--workers":
+                            options.workers = Integer.parseInt(value);
+                            break;
+                        case "--queue":
+                            options.queue = Integer.parseInt(value);
+                            break;
+                        case "--seed":
+                            options.seed = Long.parseLong(value);
+                            break;
+                        case "--out":
+                            options.out = value;
+                            break;
+                        case "--baseline":
+                            options.baseline = value;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number for " + name + ": " + value);
+                }
+            }
+            if (options.open && options.rate <= 0) {
+                throw new IllegalArgumentException("The open loop needs --rate");
+            }
+            if (options.items < 1 || options.durationSeconds < 1 || options.warmupSeconds < 0
+                    || Arrays.stream(options.connections).anyMatch(level -> level < 1)) {
+                throw new IllegalArgumentException("Items, duration and connections must be positive");
+            }
+            return options;
+        }
+
+        // Everything that changes what is measured; results are only comparable when equal
+        String signature() {
+            return String.format(Locale.ROOT, "%s %s rate=%d items=%d warmup=%ds duration=%ds workers=%s queue=%s seed=%d",
+                    open ? "open" : "closed", workload.name().toLowerCase(Locale.ROOT), rate, items,
+                    warmupSeconds, durationSeconds, workers > 0 ? workers : "default",
+                    queue >= 0 ? queue : "default", seed);
+        }
+
+        String describe() {
+            String loop = open ? "Open loop at " + rate + " req/s" : "Closed loop";
+            return String.format(Locale.ROOT, "%s, %s workload, %d items, %d s measured after %d s warmup",
+                    loop, workload.name().toLowerCase(Locale.ROOT), items, durationSeconds, warmupSeconds);
+        }
+    }
+
+    /**
+     * One client connection and the state of its request sequence.
+     */
+    private static final class Connection {
+        final int index;
+        final LoadClient client;
+        private final Workload workload;
+        private final int items;
+        private final SplittableRandom random;
+        private final Recorder recorder;
+        private final long start;
+        private final long measureStart;
+        private final long end;
+        // Items this connection created and has not deleted yet
+        private final ArrayDeque<Integer> created = new ArrayDeque<>();
+        private int sequence;
+
+        Connection(Options options, int index, int port, Recorder recorder, long start, long measureStart,
+                   long end) {
+            this.index = index;
+            this.client = new LoadClient("127.0.0.1", port);
+            this.workload = options.workload;
+            this.items = options.items;
+            this.random = new SplittableRandom(options.seed * 1_000_003 + index);
+            this.recorder = recorder;
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        void runClosed() {
+            awaitNanos(start);
+            long warmupNanos = 0;
+            long warmupCount = 0;
+            long expectedInterval = -1;
+            for (long sent; (sent = System.nanoTime()) < end; ) {
+                int status = sendNext();
+                long latency = System.nanoTime() - sent;
+                if (sent < measureStart) {
+                    warmupNanos += latency;
+                    warmupCount++;
+                    continue;
+                }
+                if (expectedInterval < 0) {
+                    // Without warmup there is no usual pace, and no correction
+                    expectedInterval = warmupCount > 0 ? warmupNanos / warmupCount : 0;
+                }
+                recorder.record(status, latency, latency, expectedInterval);
+            }
+        }
+
+        void runOpen(long interval, long firstDue) {
+            // Past this, the server is too far behind for the run to end on time
+            long giveUp = end + (end - measureStart);
+            long due = firstDue;
+            while (due < end) {
+                awaitNanos(due);
+                long sent = System.nanoTime();
+                if (sent >= giveUp) {
+                    // Requests still due count with how long they have waited so far
+                    for (; due < end; due += interval) {
+                        if (due >= measureStart) {
+                            recorder.unsent(sent - due);
+                        }
+                    }
+                    return;
+                }
+                int status = sendNext();
+                long done = System.nanoTime();
+                if (due >= measureStart) {
+                    recorder.record(status, done - due, done - sent, 0);
+                }
+                due += interval;
+            }
+        }
+
+        // Send the next request of the mix; returns the status, or 0 if it failed
+        private int sendNext() {
+            Workload.Operation operation = workload.next(random);
+            if (operation == Workload.Operation.DELETE && created.isEmpty()) {
+                operation = Workload.Operation.CREATE;
+            }
+            try {
+                switch (operation) {
+                    case GET:
+                        return client.send("GET", "/api/items/" + preloadedId(), null);
+                    case LIST:
+                        return client.send("GET", "/api/items?after=" + (preloadedId() - 1) + "&limit=" + PAGE, null);
+                    case UPDATE:
+                        int id = preloadedId();
+                        return client.send("PUT", "/api/items/" + id, itemBody("Item " + id));
+                    case CREATE:
+                        int status = client.send("POST", "/api/items", itemBody("Load " + index + "-" + sequence++));
+                        if (status == 201) {
+                            created.add(new JsonParser(client.body(), 0, client.bodyLength()).readData().id());
+                        }
+                        return status;
+                    default:
+                        return client.send("DELETE", "/api/items/" + created.poll(), null);
+                }
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        private int preloadedId() {
+            return 1 + random.nextInt(items);
+        }
+
+        private byte[] itemBody(String name) {
+            return ("{\"name\":\"" + name + "\",\"description\":\"Written by the load test, round "
+                    + sequence + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Park until shortly before the deadline, then spin, so requests go out on time
+        private static void awaitNanos(long deadline) {
+            for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+                if (left > SPIN_NANOS) {
+                    LockSupport.parkNanos(left - SPIN_NANOS);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Measurements of one level, shared by its connections.
+     */
+    private static final class Recorder {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong unsent = new AtomicLong();
+        private final AtomicLong lastDone = new AtomicLong(Long.MIN_VALUE);
+        // Responses by status class (index 2 for 2xx and so on); index 0 counts I/O errors
+        private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+        // With an expected interval, a slow response also records the ones it held up
+        void record(int status, long latencyNanos, long serviceNanos, long expectedIntervalNanos) {
+            requests.incrementAndGet();
+            lastDone.accumulateAndGet(System.nanoTime(), Math::max);
+            statuses.incrementAndGet(Math.min(status / 100, 5));
+            latency.record(latencyNanos);
+            service.record(serviceNanos);
+            if (expectedIntervalNanos > 0) {
+                for (long missing = latencyNanos - expectedIntervalNanos; missing >= expectedIntervalNanos;
+                     missing -= expectedIntervalNanos) {
+                    latency.record(missing);
+                }
+            }
+        }
+
+        void unsent(long waitedNanos) {
+            unsent.incrementAndGet();
+            latency.record(waitedNanos);
+        }
+
+        // Throughput is over the measured window, or until the last response if that came later
+        LevelResult result(int connections, long measureStart, long end) {
+            long[] counts = new long[statuses.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = statuses.get(i);
+            }
+            double seconds = (Math.max(end, lastDone.get()) - measureStart) / 1e9;
+            return new LevelResult(connections, seconds, requests.get(), percentiles(latency),
+                    percentiles(service), counts, unsent.get());
+        }
+
+        private static long[] percentiles(LatencyHistogram histogram) {
+            return new long[]{histogram.percentileMicros(0.5), histogram.percentileMicros(0.99),
+                    histogram.percentileMicros(0.999), histogram.maxMicros()};
+        }
+    }
+
+    /**
+     * Outcome of one level. Latencies are p50, p99, p99.9 and max in microseconds.
+     */
+    private static final class LevelResult {
+        final int connections;
+        final double seconds;
+        final long requests;
+        final long[] latency;
+        final long[] service;
+        final long[] statuses;
+        final long unsent;
+
+        LevelResult(int connections, double seconds, long requests, long[] latency, long[] service,
+                    long[] statuses, long unsent) {
+            this.connections = connections;
+            this.seconds = seconds;
+            this.requests = requests;
+            this.latency = latency;
+            this.service = service;
+            this.statuses = statuses;
+            this.unsent = unsent;
+        }
+
+        double throughput() {
+            return requests / seconds;
+        }
+
+        // Requests that did not get a 2xx or 3xx answer
+        long failures() {
+            return statuses[0] + statuses[1] + statuses[4] + statuses[5] + unsent;
+        }
+    }
+
+    /**
+     * The parts of an earlier results file that a run is compared on, by connections:
+     * throughput, then p50, p99 and p99.9 in microseconds.
+     */
+    private static final class Baseline {
+        String signature = "";
+        final Map<Integer, long[]> levels = new HashMap<>();
+
+        static Baseline read(Path path) throws IOException {
+            byte[] bytes = Files.readAllBytes(path);
+            JsonParser parser = new JsonParser(bytes, 0, bytes.length);
+            Baseline baseline = new Baseline();
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int key = parser.nextKey(RESULT_KEYS);
+                if (key == 0) {
+                    baseline.signature = parser.nextString();
+                } else if (key == 1) {
+                    parser.beginArray();
+                    while (parser.hasNext()) {
+                        readLevel(parser, baseline.levels);
+                    }
+                    parser.endArray();
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            return baseline;
+        }
+
+        private static void readLevel(JsonParser parser, Map<Integer, long[]> levels) throws IOException {
+            int connections = -1;
+            long[] values = new long[4];
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int key = parser.nextKey(LEVEL_KEYS);
+                if (key == 0) {
+                    connections = parser.nextInt();
+                } else if (key == 1) {
+                    values[0] = parser.nextLong();
+                } else if (key == 2) {
+                    parser.beginObject();
+                    while (parser.hasNext()) {
+                        int percentile = parser.nextKey(PERCENTILE_KEYS);
+                        if (percentile >= 0) {
+                            values[1 + percentile] = parser.nextLong();
+                        } else {
+                            parser.skipValue();
+                        }
+                    }
+                    parser.endObject();
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            levels.put(connections, values);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.hiro.localbackend;
+
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Request mixes for the load test, as weights over the operations on /api/items.
+ *
+ * Reads and updates go to the preloaded items, which no client deletes, so they never miss.
+ * A client only deletes items it created itself and creates one instead when it has none,
+ * so the store stays near its starting size and every request is expected to succeed.
+ */
+enum Workload {
+    //    get  list update create delete
+    READ(90, 10, 0, 0, 0),
+    WRITE(10, 0, 50, 20, 20),
+    MIXED(50, 10, 20, 10, 10);
+
+    enum Operation {
+        GET, LIST, UPDATE, CREATE, DELETE
+    }
+
+    private final int[] cumulative = new int[Operation.values().length];
+
+    Workload(int... weights) {
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cumulative[i] = total;
+        }
+    }
+
+    Operation next(SplittableRandom random) {
+        int pick = random.nextInt(cumulative[cumulative.length - 1]);
+        for (int i = 0; ; i++) {
+            if (pick < cumulative[i]) {
+                return Operation.values()[i];
+            }
+        }
+    }
+
+    static Workload parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -21,3 +21,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "LocalBackend"
 include(":app")
+include(":benchmark")